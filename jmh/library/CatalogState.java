@@ -0,0 +1,129 @@
+/*
+ * CatalogState.java
+ *
+ * A synthetic catalog shared by the benchmarks, with the same size for
+ * every benchmark in a run. Titles are a few random words followed by the
+ * book's ID, so they are unique, and each author has about ten books. The
+ * same amount of books always gives the same catalog and inputs.
+ */
+
+package library;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+public class CatalogState {
+    // Benchmarks pick their inputs from this many random books
+    static final int INPUTS = 1024;
+    private static final int INPUT_MASK = INPUTS - 1;
+
+    // Words synthetic titles and authors are made of
+    private static final String[] WORDS = {"The", "War", "Peace", "River",
+            "Night", "House", "Garden", "Winter", "King", "Stone", "Light",
+            "Shadow", "City", "Sea", "Road", "Fire", "Glass", "Iron", "Song",
+            "Storm", "Island", "Crown", "Letter", "Mountain", "Silent", "Last",
+            "Golden", "Broken", "Hidden", "Long", "Red", "Of"};
+    private static final String[] NAMES = {"Ada", "Leo", "Mary", "Anton",
+            "Emily", "Jane", "Franz", "Virginia", "Tolstoy", "Austen", "Kafka",
+            "Woolf", "Bronte", "Chekhov", "Eliot", "Shelley"};
+
+    // The amount of books in the catalog
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int books;
+
+    LibraryCatalog catalog;
+
+    // Inputs taken from the same random books: their indexes, titles and
+    // authors, the titles without their last word, and random IDs, which
+    // are found inside titles
+    int[] inputBooks;
+    String[] titles;
+    String[] authors;
+    String[] prefixes;
+    String[] substrings;
+
+    // How many inputs were taken so far
+    private int inputs = 0;
+
+    /**
+     * setUp
+     *
+     * Generate the catalog and pick the inputs. Searches are not cached,
+     * so they are measured themselves.
+     *
+     * @throws IOException never, as the catalog has no files
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        catalog = generateBooks(books);
+        catalog.setQueryCacheSize(0);
+
+        SplittableRandom random = new SplittableRandom(books);
+        inputBooks = new int[INPUTS];
+        titles = new String[INPUTS];
+        authors = new String[INPUTS];
+        prefixes = new String[INPUTS];
+        substrings = new String[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            inputBooks[i] = random.nextInt(books);
+            titles[i] = catalog.getBookTitle(inputBooks[i]);
+            authors[i] = catalog.getBookAuthor(inputBooks[i]);
+            prefixes[i] = titles[i].substring(0,
+                    titles[i].lastIndexOf(' ') + 1);
+            substrings[i] = String.valueOf(random.nextInt(books));
+        }
+    }
+
+    /**
+     * nextInput
+     *
+     * Get the number of the next input to use, going through all of them
+     * in turn.
+     *
+     * @return the number of the input
+     */
+    int nextInput() {
+        return inputs++ & INPUT_MASK;
+    }
+
+    /**
+     * generateBooks
+     *
+     * Create a synthetic catalog, which is not saved.
+     *
+     * @param books the amount of books
+     * @return      the catalog
+     * @throws IOException never, as the catalog has no files
+     */
+    static LibraryCatalog generateBooks(int books) throws IOException {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.startBooks(books);
+
+        SplittableRandom random = new SplittableRandom(books);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < books; i++) {
+            text.setLength(0);
+            for (int words = random.nextInt(2, 5); words > 0; words--) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            String title = text.append(i + 1).toString();
+
+            text.setLength(0);
+            text.append(NAMES[random.nextInt(NAMES.length)]).append(' ');
+            text.append(NAMES[random.nextInt(NAMES.length)]).append(' ');
+            String author = text.append(random.nextInt(books / 10 + 1))
+                    .toString();
+
+            catalog.appendBook(title, author, random.nextInt(1, 5));
+        }
+
+        catalog.finishBooks();
+        return catalog;
+    }
+}
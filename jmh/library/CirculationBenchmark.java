@@ -0,0 +1,46 @@
+/*
+ * CirculationBenchmark.java
+ *
+ * A loan followed by a return of the same book, and a new book added and
+ * then deleted again, so the catalog stays the same size.
+ */
+
+package library;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class CirculationBenchmark {
+
+    // How many books were added so far, so each has a new title
+    private int added = 0;
+
+    @Benchmark
+    public int loanAndReturn(CatalogState state) {
+        int book = state.inputBooks[state.nextInput()];
+        return (state.catalog.loan(book) ? 1 : 0)
+                + (state.catalog.returnCopy(book) ? 1 : 0);
+    }
+
+    @Benchmark
+    public int addAndDelete(CatalogState state) {
+        int book = state.catalog.add("Benchmark book " + added++,
+                "Benchmark author", 1);
+        state.catalog.delete(book);
+        return book;
+    }
+}
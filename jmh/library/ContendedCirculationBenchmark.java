@@ -0,0 +1,146 @@
+/*
+ * ContendedCirculationBenchmark.java
+ *
+ * Loans and returns from several threads at once, all on a small set of
+ * hot books, so the threads contend for the same books instead of each
+ * using its own. With one hot book every thread changes the same book,
+ * and with more the threads spread over neighboring books, which don't
+ * share a loan lock. The same loans are also timed while another thread
+ * keeps listing the overdue loans, which reads the loans of every book.
+ */
+
+package library;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class ContendedCirculationBenchmark {
+    // The amount of books in the catalog, which only matters for where the
+    // hot books are
+    private static final int BOOKS = 10000;
+
+    // The amount of hot books the threads loan and return
+    @Param({"1", "8", "64"})
+    public int hotBooks;
+
+    LibraryCatalog catalog;
+
+    /**
+     * setUp
+     *
+     * Generate the catalog shared by every thread.
+     *
+     * @throws IOException never, as the catalog has no files
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        catalog = CatalogState.generateBooks(BOOKS);
+    }
+
+    @State(Scope.Thread)
+    public static class Desk {
+        // The next hot book this thread loans, starting from a different
+        // one in each thread
+        private int next;
+
+        /**
+         * setUp
+         *
+         * Start the thread at its own hot book.
+         *
+         * @param params the thread's place among the benchmark threads
+         */
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams params) {
+            next = params.getThreadIndex();
+        }
+
+        /**
+         * nextBook
+         *
+         * Get the next hot book to loan, going through all of them in turn.
+         *
+         * @param hotBooks the amount of hot books
+         * @return         the index of the book
+         */
+        int nextBook(int hotBooks) {
+            return next++ % hotBooks;
+        }
+    }
+
+    /**
+     * loanAndReturn
+     *
+     * Loan a hot book and return it again. Either may fail when other
+     * threads have every copy out on loan.
+     *
+     * @param desk the state of the thread
+     * @return     how many of the loan and return were made
+     */
+    private int loanAndReturn(Desk desk) {
+        int book = desk.nextBook(hotBooks);
+        return (catalog.loan(book) ? 1 : 0)
+                + (catalog.returnCopy(book) ? 1 : 0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int loanAndReturn1Thread(Desk desk) {
+        return loanAndReturn(desk);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public int loanAndReturn2Threads(Desk desk) {
+        return loanAndReturn(desk);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int loanAndReturn4Threads(Desk desk) {
+        return loanAndReturn(desk);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int loanAndReturn8Threads(Desk desk) {
+        return loanAndReturn(desk);
+    }
+
+    @Benchmark
+    @Group("withOverdueLoans")
+    @GroupThreads(3)
+    public int loanAndReturnWithOverdueLoans(Desk desk) {
+        return loanAndReturn(desk);
+    }
+
+    @Benchmark
+    @Group("withOverdueLoans")
+    @GroupThreads(1)
+    public int overdueLoans() {
+        // Every loan made is due before this
+        return catalog.getOverdueLoans(Long.MAX_VALUE).size();
+    }
+}
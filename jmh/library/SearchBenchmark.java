@@ -0,0 +1,78 @@
+/*
+ * SearchBenchmark.java
+ *
+ * Binary searches of the sorted titles, hash lookups of whole titles,
+ * checks for an existing book and substring searches, and substring
+ * searches answered from the query cache.
+ */
+
+package library;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SearchBenchmark {
+
+    /**
+     * CacheState
+     *
+     * Cache every substring search, so they are answered from the query
+     * cache once warmed up.
+     */
+    @State(Scope.Benchmark)
+    public static class CacheState {
+        @Setup(Level.Trial)
+        public void setUp(CatalogState state) {
+            state.catalog.setQueryCacheSize(CatalogState.INPUTS);
+        }
+    }
+
+    @Benchmark
+    public int prefixSearch(CatalogState state) {
+        return state.catalog.prefixSearch(LibraryCatalog.TITLE_KEY,
+                state.prefixes[state.nextInput()], 0).size();
+    }
+
+    @Benchmark
+    public int hashSearch(CatalogState state) {
+        return state.catalog.search(LibraryCatalog.TITLE_KEY,
+                state.titles[state.nextInput()],
+                LibraryCatalog.SEARCH_EXACT).size();
+    }
+
+    @Benchmark
+    public boolean searchExistingBooks(CatalogState state) {
+        int input = state.nextInput();
+        return state.catalog.searchExistingBooks(state.titles[input],
+                state.authors[input]);
+    }
+
+    @Benchmark
+    public int substringSearch(CatalogState state) {
+        return state.catalog.search(LibraryCatalog.TITLE_KEY,
+                state.substrings[state.nextInput()],
+                LibraryCatalog.SEARCH_CONTAINS).size();
+    }
+
+    @Benchmark
+    public int cachedSearch(CatalogState state, CacheState cacheState) {
+        return state.catalog.search(LibraryCatalog.TITLE_KEY,
+                state.substrings[state.nextInput()],
+                LibraryCatalog.SEARCH_CONTAINS).size();
+    }
+}
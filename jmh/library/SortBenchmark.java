@@ -0,0 +1,67 @@
+/*
+ * SortBenchmark.java
+ *
+ * Sorting every book by title and author, and the insertion sort merge
+ * sort uses for small runs of books.
+ */
+
+package library;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SortBenchmark {
+
+    /**
+     * RunState
+     *
+     * The title prefixes insertion sort compares first, and a run of books
+     * to sort.
+     */
+    @State(Scope.Benchmark)
+    public static class RunState {
+        long[] prefixes;
+        int[] run = new int[LibraryCatalog.INSERTION_SORT_THRESHOLD];
+
+        @Setup(Level.Trial)
+        public void setUp(CatalogState state) {
+            prefixes = new long[state.books];
+            for (int i = 0; i < state.books; i++) {
+                prefixes[i] = state.catalog.getTextPrefix(
+                        LibraryCatalog.TITLE_KEY, i);
+            }
+        }
+    }
+
+    @Benchmark
+    public int sortBooks(CatalogState state) {
+        state.catalog.sortBooks();
+        return state.catalog.getSortedBooks(LibraryCatalog.TITLE_KEY).get(0);
+    }
+
+    @Benchmark
+    public int insertionSort(CatalogState state, RunState runState) {
+        int[] run = runState.run;
+        for (int i = 0; i < run.length; i++) {
+            run[i] = state.inputBooks[state.nextInput()];
+        }
+        state.catalog.insertionSort(run, LibraryCatalog.TITLE_KEY,
+                runState.prefixes, 0, run.length);
+        return run[0];
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * CatalogFile.java
+ *
+ * The layout of the files a LibraryCatalog is saved to, which are used both
+ * as catalog files and as snapshots of a data directory. A file starts with
+ * a 32 byte header (magic, version, sequence number of the last operation
+ * in it, books, text length, loan records and capacity), followed by 8 int
+ * columns, the text of all titles and then all authors, and the loan
+ * records (book, patron, loan time and due time). The columns are the
+ * starts and lengths of the titles, then of the authors, the copies, the
+ * copies on loan and the books sorted by title and by author.
+ *
+ * The columns have room for more books than the file holds, so loans of
+ * books added later are written to the file too. Version 1 files had no
+ * room. A file is mapped into memory when it is opened, and the text and
+ * loans are used from the mapping as they are.
+ */
+
+package library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class CatalogFile {
+    private static final int MAGIC = 0x4C494243;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int COLUMNS = 8;
+    private static final int LOAN_RECORD_SIZE = 24;
+
+    // Numbers of the columns
+    private static final int COPIES_COLUMN = 4;
+    private static final int LOANS_COLUMN = 5;
+    private static final int SORTED_COLUMN = 6;
+
+    // The mapping and its header
+    private final MappedByteBuffer map;
+    private final long sequence;
+    private final int books;
+    private final int textLength;
+    private final int loanRecords;
+    private final int capacity;
+    private final IntBuffer columns;
+
+    /**
+     * CatalogFile
+     *
+     * Map a catalog file into memory and check its header.
+     *
+     * @param path the path of the catalog file
+     * @param mode READ_WRITE to write changes to the file, or PRIVATE to
+     *             keep them in memory
+     * @throws IOException if the file could not be opened or is invalid
+     */
+    CatalogFile(Path path, FileChannel.MapMode mode) throws IOException {
+        // Private mappings also need the file to be open for writing
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Catalog file is over 2 GB");
+            }
+            map = channel.map(mode, 0, channel.size());
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Validate header
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC
+                || map.getInt(4) < 1 || map.getInt(4) > VERSION) {
+            throw new IOException("Not a catalog file");
+        }
+        sequence = map.getLong(8);
+        books = map.getInt(16);
+        textLength = map.getInt(20);
+        loanRecords = map.getInt(24);
+        capacity = map.getInt(4) == 1 ? books : map.getInt(28);
+        if (books < 0 || capacity < books || textLength < 0
+                || loanRecords < 0 || map.capacity() < getRecordsStart()
+                + (long) LOAN_RECORD_SIZE * loanRecords) {
+            throw new IOException("Catalog file is incomplete");
+        }
+
+        columns = map.slice(HEADER_SIZE, (int) getColumnsLength())
+                .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * getColumnsLength
+     *
+     * Get the length of the columns in bytes.
+     *
+     * @return the length of the columns
+     */
+    private long getColumnsLength() {
+        return 4L * COLUMNS * capacity;
+    }
+
+    /**
+     * getRecordsStart
+     *
+     * Get the position of the loan records, which follow the text.
+     *
+     * @return the position of the loan records
+     */
+    private long getRecordsStart() {
+        return HEADER_SIZE + getColumnsLength() + textLength;
+    }
+
+    /**
+     * readColumn
+     *
+     * Copy a column into an array.
+     *
+     * @param column the number of the column
+     * @param length the amount of values to copy
+     * @return       an array holding the column
+     */
+    private int[] readColumn(int column, int length) {
+        int[] values = new int[length];
+        columns.get(column * capacity, values);
+        return values;
+    }
+
+    /**
+     * getSequence
+     *
+     * Get the sequence number of the last operation saved in the file.
+     *
+     * @return the sequence number
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * getBooks
+     *
+     * Get the amount of book slots in the file, including deleted books.
+     *
+     * @return the amount of book slots
+     */
+    int getBooks() {
+        return books;
+    }
+
+    /**
+     * readTextStarts
+     *
+     * Copy the positions of the titles or authors in getText.
+     *
+     * @param key the key (TITLE_KEY or AUTHOR_KEY)
+     * @return    the position of each book's text
+     */
+    int[] readTextStarts(int key) {
+        return readColumn(key * 2, books);
+    }
+
+    /**
+     * readTextLengths
+     *
+     * Copy the lengths of the titles or authors.
+     *
+     * @param key the key (TITLE_KEY or AUTHOR_KEY)
+     * @return    the length of each book's text in bytes
+     */
+    int[] readTextLengths(int key) {
+        return readColumn(key * 2 + 1, books);
+    }
+
+    /**
+     * readCopies
+     *
+     * Copy the amount of copies of each book. The copies keep the room the
+     * file has, so books added up to it are loaned in it.
+     *
+     * @return the copies, with room for the file's capacity
+     */
+    int[] readCopies() {
+        return readColumn(COPIES_COLUMN, capacity);
+    }
+
+    /**
+     * readSortedIndex
+     *
+     * Copy the books sorted by title or by author.
+     *
+     * @param key the key (TITLE_KEY or AUTHOR_KEY)
+     * @return    the indexes of the books in sorted order
+     */
+    int[] readSortedIndex(int key) {
+        return readColumn(SORTED_COLUMN + key, books);
+    }
+
+    /**
+     * getLoans
+     *
+     * Get the copies on loan of each book, which stay in the mapping.
+     *
+     * @return the copies on loan, with room for the file's capacity
+     */
+    ByteBuffer getLoans() {
+        return map.slice(HEADER_SIZE + LOANS_COLUMN * 4 * capacity,
+                4 * capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * getText
+     *
+     * Get the text of all titles and authors, which stays in the mapping.
+     *
+     * @return the text as UTF-8
+     */
+    ByteBuffer getText() {
+        return map.slice(HEADER_SIZE + (int) getColumnsLength(), textLength);
+    }
+
+    /**
+     * getTextLength
+     *
+     * Get the length of the text of all titles and authors.
+     *
+     * @return the length in bytes
+     */
+    int getTextLength() {
+        return textLength;
+    }
+
+    /**
+     * getLoanRecords
+     *
+     * Get the amount of loan records in the file.
+     *
+     * @return the amount of loan records
+     */
+    int getLoanRecords() {
+        return loanRecords;
+    }
+
+    /**
+     * getLoanBook
+     *
+     * Get the book of a loan record.
+     *
+     * @param record the number of the loan record
+     * @return       the index of the book
+     */
+    int getLoanBook(int record) {
+        return map.getInt(getRecordPosition(record));
+    }
+
+    /**
+     * getLoanPatron
+     *
+     * Get the patron of a loan record.
+     *
+     * @param record the number of the loan record
+     * @return       the patron
+     */
+    int getLoanPatron(int record) {
+        return map.getInt(getRecordPosition(record) + 4);
+    }
+
+    /**
+     * getLoanTime
+     *
+     * Get when the copy of a loan record was loaned.
+     *
+     * @param record the number of the loan record
+     * @return       the loan time in milliseconds
+     */
+    long getLoanTime(int record) {
+        return map.getLong(getRecordPosition(record) + 8);
+    }
+
+    /**
+     * getDueTime
+     *
+     * Get when the copy of a loan record is due.
+     *
+     * @param record the number of the loan record
+     * @return       the due time in milliseconds
+     */
+    long getDueTime(int record) {
+        return map.getLong(getRecordPosition(record) + 16);
+    }
+
+    /**
+     * getRecordPosition
+     *
+     * Get the position of a loan record in the file.
+     *
+     * @param record the number of the loan record
+     * @return       the position of the record
+     */
+    private int getRecordPosition(int record) {
+        return (int) getRecordsStart() + record * LOAN_RECORD_SIZE;
+    }
+
+    /**
+     * getMap
+     *
+     * Get the mapping of the file.
+     *
+     * @return the mapping
+     */
+    MappedByteBuffer getMap() {
+        return map;
+    }
+
+    /**
+     * encodeLoanRecords
+     *
+     * Copy the loan records of every stripe in the layout of a catalog
+     * file. Must be called holding every stripe's lock.
+     *
+     * @param stripes the loan stripes
+     * @return        a buffer holding the records
+     */
+    static ByteBuffer encodeLoanRecords(LoanRecords[] stripes) {
+        int recordCount = 0;
+        for (LoanRecords stripe : stripes) {
+            recordCount += stripe.size();
+        }
+        ByteBuffer records = ByteBuffer.allocate(recordCount
+                * LOAN_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (LoanRecords stripe : stripes) {
+            for (int i = 0; i < stripe.size(); i++) {
+                int record = stripe.getHeapRecord(i);
+                records.putInt(stripe.getBook(record))
+                        .putInt(stripe.getPatron(record))
+                        .putLong(stripe.getLoanTime(record))
+                        .putLong(stripe.getDueTime(record));
+            }
+        }
+        records.flip();
+        return records;
+    }
+
+    /**
+     * write
+     *
+     * Write all books of a catalog and their sorted indexes to a catalog
+     * file. Must be called holding the catalog's logLock, so no book is
+     * changed meanwhile.
+     *
+     * @param path          the path of the catalog file
+     * @param catalog       the catalog
+     * @param sequence      the sequence number of the last operation saved
+     * @param capacity      the amount of books the columns have room for
+     * @param loans         the copies on loan of each book
+     * @param loanRecords   the loan records, from encodeLoanRecords
+     * @param sortedIndexes the books sorted by title and by author
+     * @param sortedCount   the amount of books in each sorted index
+     * @throws IOException if the file could not be written
+     */
+    static void write(Path path, LibraryCatalog catalog, long sequence,
+            int capacity, int[] loans, ByteBuffer loanRecords,
+            int[][] sortedIndexes, int sortedCount) throws IOException {
+        int books = catalog.getBookSlots();
+        ByteBuffer text = catalog.getTextBuffer();
+
+        long textLength = 0;
+        for (int key = LibraryCatalog.TITLE_KEY;
+                key <= LibraryCatalog.AUTHOR_KEY; key++) {
+            for (int i = 0; i < books; i++) {
+                textLength += catalog.getTextLength(key, i);
+            }
+        }
+        if (textLength > Integer.MAX_VALUE - HEADER_SIZE
+                - 4L * COLUMNS * capacity - loanRecords.remaining()) {
+            throw new IOException("Catalog is over 2 GB");
+        }
+
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(sequence)
+                    .putInt(books).putInt((int) textLength)
+                    .putInt(loanRecords.remaining() / LOAN_RECORD_SIZE)
+                    .putInt(capacity);
+
+            // Offset table, with all titles followed by all authors
+            int start = 0;
+            for (int key = LibraryCatalog.TITLE_KEY;
+                    key <= LibraryCatalog.AUTHOR_KEY; key++) {
+                for (int i = 0; i < books; i++) {
+                    putColumnValue(channel, buffer, start);
+                    start += catalog.getTextLength(key, i);
+                }
+                putEmptyColumnValues(channel, buffer, capacity - books);
+                for (int i = 0; i < books; i++) {
+                    putColumnValue(channel, buffer,
+                            catalog.getTextLength(key, i));
+                }
+                putEmptyColumnValues(channel, buffer, capacity - books);
+            }
+
+            // Copies, loans and sorted indexes
+            for (int i = 0; i < books; i++) {
+                putColumnValue(channel, buffer, catalog.getBookCopies(i));
+            }
+            putEmptyColumnValues(channel, buffer, capacity - books);
+            for (int i = 0; i < books; i++) {
+                putColumnValue(channel, buffer, loans[i]);
+            }
+            putEmptyColumnValues(channel, buffer, capacity - books);
+            // Deleted books fill the end of the sorted indexes
+            for (int[] indexes : sortedIndexes) {
+                for (int i = 0; i < sortedCount; i++) {
+                    putColumnValue(channel, buffer, indexes[i]);
+                }
+                for (int i = 0; i < books; i++) {
+                    if (catalog.isDeleted(i)) {
+                        putColumnValue(channel, buffer, i);
+                    }
+                }
+                putEmptyColumnValues(channel, buffer, capacity - books);
+            }
+
+            // Text of all titles, then all authors
+            for (int key = LibraryCatalog.TITLE_KEY;
+                    key <= LibraryCatalog.AUTHOR_KEY; key++) {
+                for (int i = 0; i < books; i++) {
+                    int textStart = catalog.getTextStart(key, i);
+                    int length = catalog.getTextLength(key, i);
+                    if (buffer.remaining() < length) {
+                        writeBuffer(channel, buffer);
+                    }
+
+                    // Text longer than the buffer is written directly
+                    if (length > buffer.capacity()) {
+                        channel.write(text.slice(textStart, length));
+                    } else {
+                        buffer.put(buffer.position(), text, textStart,
+                                length);
+                        buffer.position(buffer.position() + length);
+                    }
+                }
+            }
+            writeBuffer(channel, buffer);
+            while (loanRecords.hasRemaining()) {
+                channel.write(loanRecords);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * putColumnValue
+     *
+     * Add a value of a column to a buffer, writing the buffer to a file
+     * first if it is full.
+     *
+     * @param channel the file
+     * @param buffer  the buffer
+     * @param value   the value
+     * @throws IOException if the buffer could not be written
+     */
+    private static void putColumnValue(FileChannel channel, ByteBuffer buffer,
+            int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            writeBuffer(channel, buffer);
+        }
+        buffer.putInt(value);
+    }
+
+    /**
+     * putEmptyColumnValues
+     *
+     * Add zeros to a column being written to a file, for the books it has
+     * room for but doesn't hold.
+     *
+     * @param channel the file
+     * @param buffer  the buffer holding the values not yet written
+     * @param count   the amount of zeros
+     * @throws IOException if the buffer could not be written
+     */
+    private static void putEmptyColumnValues(FileChannel channel,
+            ByteBuffer buffer, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            putColumnValue(channel, buffer, 0);
+        }
+    }
+
+    /**
+     * writeBuffer
+     *
+     * Write everything in a buffer to a file and empty the buffer. The
+     * buffer is emptied even if writing fails, so it is never written
+     * twice.
+     *
+     * @param channel the file
+     * @param buffer  the buffer
+     * @throws IOException if the buffer could not be written
+     */
+    static void writeBuffer(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+}
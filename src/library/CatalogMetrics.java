@@ -0,0 +1,503 @@
+/*
+ * CatalogMetrics.java
+ *
+ * Latency histograms, counts and allocation estimates for the operations of
+ * a LibraryCatalog. Operations are recorded without locks, so loans and
+ * returns from several threads do not wait on each other, and the metrics
+ * can be read at any time.
+ *
+ * Like HdrHistogram, latencies are counted in buckets: every power of two of
+ * nanoseconds is split into 16 buckets, so percentiles are within about 6%
+ * of the real latency whether an operation takes nanoseconds or minutes.
+ *
+ * Reading the clock takes longer than a search answered from the query
+ * cache or a loan, so those operations are only timed one time in 16, at
+ * random. Every operation is still counted. Slower operations are always
+ * timed.
+ *
+ * The metrics can be read with the getters, printed as a text report, or
+ * registered as JMX MXBeans, one for each operation.
+ */
+
+package library;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class CatalogMetrics {
+    // Operations that are measured
+    public static final int APPEND_BOOK = 0;
+    public static final int FINISH_BOOKS = 1;
+    public static final int RECOVER = 2;
+    public static final int OPEN = 3;
+    public static final int SAVE = 4;
+    public static final int SORT_BOOKS = 5;
+    public static final int BUILD_HASH_INDEXES = 6;
+    public static final int FOLD_KEYS = 7;
+    public static final int BUILD_TRIGRAM_INDEX = 8;
+    public static final int BUILD_WORD_INDEX = 9;
+    public static final int SUBSTRING_SEARCH = 10;
+    public static final int HASH_SEARCH = 11;
+    public static final int PREFIX_SEARCH = 12;
+    public static final int RANGE_SEARCH = 13;
+    public static final int FUZZY_SEARCH = 14;
+    public static final int BOOLEAN_SEARCH = 15;
+    public static final int SEARCH_EXISTING_BOOKS = 16;
+    public static final int LOAN = 17;
+    public static final int RETURN_COPY = 18;
+    public static final int REPLACE = 19;
+    public static final int ADD = 20;
+    public static final int DELETE = 21;
+    public static final int COMPACT = 22;
+    public static final int OVERDUE_LOANS = 23;
+
+    // Names of the operations, as shown in reports and JMX
+    private static final String[] OPERATION_NAMES = {"appendBook",
+            "finishBooks", "recover", "open", "save", "sortBooks",
+            "buildHashIndexes", "foldKeys", "buildTrigramIndex",
+            "buildWordIndex", "substringSearch", "hashSearch", "prefixSearch",
+            "rangeSearch", "fuzzySearch", "booleanSearch",
+            "searchExistingBooks", "loan", "returnCopy", "replace", "add",
+            "delete", "compactSortedIndexes", "overdueLoans"};
+    public static final int OPERATIONS = OPERATION_NAMES.length;
+
+    // Each power of two of nanoseconds is split into this many buckets
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1)
+            * SUB_BUCKETS;
+
+    // Fast operations are timed one time in this many
+    private static final int SAMPLE_MASK = 15;
+
+    // Amount of times each operation was recorded
+    private final LongAdder[] counts = new LongAdder[OPERATIONS];
+
+    // Latency buckets of every operation, one after another, the total and
+    // longest latency of each operation, and the bytes allocated by
+    // operations that measure allocations. Changed atomically
+    private final long[] buckets = new long[OPERATIONS * BUCKETS];
+    private final long[] totalNanos = new long[OPERATIONS];
+    private final long[] maxNanos = new long[OPERATIONS];
+    private final long[] allocatedBytes = new long[OPERATIONS];
+    private final long[] allocationCounts = new long[OPERATIONS];
+    private static final VarHandle LONGS = MethodHandles
+            .arrayElementVarHandle(long[].class);
+
+    // Counts the bytes each thread allocates, or null if the JVM cannot
+    private static final com.sun.management.ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean()
+            instanceof com.sun.management.ThreadMXBean threads
+            && threads.isThreadAllocatedMemorySupported()
+            && threads.isThreadAllocatedMemoryEnabled() ? threads : null;
+
+    private volatile boolean enabled = true;
+
+    /**
+     * CatalogMetrics
+     *
+     * Create metrics with no operations recorded.
+     */
+    public CatalogMetrics() {
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            counts[operation] = new LongAdder();
+        }
+    }
+
+    /**
+     * setEnabled
+     *
+     * Turn recording on or off. Operations already started are still
+     * recorded.
+     *
+     * @param enabled whether to record operations
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * isEnabled
+     *
+     * Check if operations are recorded.
+     *
+     * @return true if operations are recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * start
+     *
+     * Get the start time of an operation, to be passed to record.
+     *
+     * @return the current time in nanoseconds, or 0 if recording is off
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * startSampled
+     *
+     * Get the start time of a fast operation, to be passed to record. Only
+     * one operation in 16 is timed.
+     *
+     * @return the current time in nanoseconds, or 0 if the operation is not
+     *         timed
+     */
+    public long startSampled() {
+        return enabled && (ThreadLocalRandom.current().nextInt()
+                & SAMPLE_MASK) == 0 ? System.nanoTime() : 0;
+    }
+
+    /**
+     * record
+     *
+     * Count an operation, and record its latency if it was timed.
+     *
+     * @param operation the operation
+     * @param startTime the start time given by start or startSampled
+     */
+    public void record(int operation, long startTime) {
+        if (!enabled) {
+            return;
+        }
+        counts[operation].increment();
+        if (startTime == 0) {
+            return;
+        }
+        long nanos = Math.max(System.nanoTime() - startTime, 0);
+        LONGS.getAndAdd(buckets, operation * BUCKETS + getBucket(nanos), 1L);
+        LONGS.getAndAdd(totalNanos, operation, nanos);
+
+        // Most operations are not the slowest, so only read the maximum
+        long max = (long) LONGS.getOpaque(maxNanos, operation);
+        while (nanos > max && !LONGS.weakCompareAndSet(maxNanos, operation,
+                max, nanos)) {
+            max = (long) LONGS.getOpaque(maxNanos, operation);
+        }
+    }
+
+    /**
+     * startAllocation
+     *
+     * Get the bytes allocated by the current thread so far, to be passed to
+     * recordAllocation. Only used for large operations, as reading it takes
+     * longer than reading the clock.
+     *
+     * @return the bytes allocated, or -1 if recording is off or not
+     *         supported
+     */
+    public long startAllocation() {
+        return enabled && THREADS != null
+                ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /**
+     * recordAllocation
+     *
+     * Record the bytes an operation allocated on the current thread. Memory
+     * allocated outside the heap or by other threads is not counted.
+     *
+     * @param operation  the operation
+     * @param startBytes the bytes given by startAllocation
+     */
+    public void recordAllocation(int operation, long startBytes) {
+        if (startBytes < 0) {
+            return;
+        }
+        LONGS.getAndAdd(allocatedBytes, operation,
+                THREADS.getCurrentThreadAllocatedBytes() - startBytes);
+        LONGS.getAndAdd(allocationCounts, operation, 1L);
+    }
+
+    /**
+     * getBucket
+     *
+     * Get the bucket a latency is counted in.
+     *
+     * @param nanos the latency in nanoseconds
+     * @return      the bucket
+     */
+    private static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * getBucketStart
+     *
+     * Get the lowest latency counted in a bucket.
+     *
+     * @param bucket the bucket
+     * @return       the latency in nanoseconds
+     */
+    private static long getBucketStart(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS)
+                << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * getBucketEnd
+     *
+     * Get the highest latency counted in a bucket.
+     *
+     * @param bucket the bucket
+     * @return       the latency in nanoseconds
+     */
+    private static long getBucketEnd(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE
+                : getBucketStart(bucket + 1) - 1;
+    }
+
+    /**
+     * getOperationName
+     *
+     * Get the name of an operation.
+     *
+     * @param operation the operation
+     * @return          the name
+     */
+    public static String getOperationName(int operation) {
+        return OPERATION_NAMES[operation];
+    }
+
+    /**
+     * getCount
+     *
+     * Get the amount of times an operation was recorded.
+     *
+     * @param operation the operation
+     * @return          the amount of times
+     */
+    public long getCount(int operation) {
+        return counts[operation].sum();
+    }
+
+    /**
+     * getTimedCount
+     *
+     * Get the amount of times an operation was timed.
+     *
+     * @param operation the operation
+     * @return          the amount of times
+     */
+    private long getTimedCount(int operation) {
+        long count = 0;
+        for (int i = operation * BUCKETS; i < (operation + 1) * BUCKETS; i++) {
+            count += (long) LONGS.getOpaque(buckets, i);
+        }
+        return count;
+    }
+
+    /**
+     * getMeanNanos
+     *
+     * Get the average latency of an operation.
+     *
+     * @param operation the operation
+     * @return          the latency in nanoseconds, or 0 if there is none
+     */
+    public double getMeanNanos(int operation) {
+        long count = getTimedCount(operation);
+        return count > 0 ? (double) (long) LONGS.getOpaque(totalNanos,
+                operation) / count : 0;
+    }
+
+    /**
+     * getPercentileNanos
+     *
+     * Get a percentile of the latency of an operation, rounded up to the
+     * end of its bucket.
+     *
+     * @param operation  the operation
+     * @param percentile the percentile, from 0 to 1
+     * @return           the latency in nanoseconds, or 0 if there is none
+     */
+    public long getPercentileNanos(int operation, double percentile) {
+        long count = getTimedCount(operation);
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS && count > 0; bucket++) {
+            seen += (long) LONGS.getOpaque(buckets,
+                    operation * BUCKETS + bucket);
+            if (seen >= rank) {
+                return Math.min(getBucketEnd(bucket),
+                        getMaxNanos(operation));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * getMaxNanos
+     *
+     * Get the longest latency an operation was timed at.
+     *
+     * @param operation the operation
+     * @return          the latency in nanoseconds
+     */
+    public long getMaxNanos(int operation) {
+        return (long) LONGS.getOpaque(maxNanos, operation);
+    }
+
+    /**
+     * getAllocatedBytes
+     *
+     * Get the bytes allocated on average by an operation, for operations
+     * that measure allocations.
+     *
+     * @param operation the operation
+     * @return          the bytes, or -1 if they were not measured
+     */
+    public long getAllocatedBytes(int operation) {
+        long count = (long) LONGS.getOpaque(allocationCounts, operation);
+        return count > 0 ? (long) LONGS.getOpaque(allocatedBytes, operation)
+                / count : -1;
+    }
+
+    /**
+     * appendReport
+     *
+     * Add a table of every recorded operation to a text report, one line
+     * for each operation.
+     *
+     * @param report the report
+     */
+    public void appendReport(StringBuilder report) {
+        report.append(String.format("%-20s %12s %12s %12s %12s %12s %12s "
+                + "%12s\n", "Operation", "Count", "Mean us", "p50 us",
+                "p99 us", "p99.9 us", "Max us", "Allocated"));
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            long count = getCount(operation);
+            if (count == 0) {
+                continue;
+            }
+            report.append(String.format("%-20s %,12d",
+                    OPERATION_NAMES[operation], count));
+
+            // Operations timed one time in 16 may not have been timed yet
+            if (getTimedCount(operation) > 0) {
+                report.append(String.format(" %,12.1f %,12.1f %,12.1f "
+                        + "%,12.1f %,12.1f", getMeanNanos(operation) / 1e3,
+                        getPercentileNanos(operation, 0.5) / 1e3,
+                        getPercentileNanos(operation, 0.99) / 1e3,
+                        getPercentileNanos(operation, 0.999) / 1e3,
+                        getMaxNanos(operation) / 1e3));
+            } else {
+                report.append(String.format(" %12s %12s %12s %12s %12s",
+                        "-", "-", "-", "-", "-"));
+            }
+
+            long allocated = getAllocatedBytes(operation);
+            report.append(String.format(" %12s\n", allocated < 0 ? "-"
+                    : String.format("%,d KB", allocated / 1024)));
+        }
+    }
+
+    /**
+     * register
+     *
+     * Register an MXBean for every operation with the platform MBean
+     * server, named LibrarySystem:type=CatalogMetrics,catalog=<name>,
+     * operation=<operation>.
+     *
+     * @param catalogName the name of the catalog
+     * @throws JMException if the MXBeans could not be registered
+     */
+    public void register(String catalogName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            server.registerMBean(new OperationStats(operation),
+                    new ObjectName("LibrarySystem:type=CatalogMetrics,catalog="
+                    + ObjectName.quote(catalogName) + ",operation="
+                    + OPERATION_NAMES[operation]));
+        }
+    }
+
+    /**
+     * OperationStatsMXBean
+     *
+     * The metrics of one operation, as shown in JMX.
+     */
+    public interface OperationStatsMXBean {
+        long getCount();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+
+        long getAllocatedBytes();
+    }
+
+    /**
+     * OperationStats
+     *
+     * Reads the metrics of one operation for JMX.
+     */
+    private class OperationStats implements OperationStatsMXBean {
+        private final int operation;
+
+        OperationStats(int operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public long getCount() {
+            return CatalogMetrics.this.getCount(operation);
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return getMeanNanos(operation) / 1e3;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return getPercentileNanos(operation, 0.5) / 1e3;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return getPercentileNanos(operation, 0.99) / 1e3;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return getPercentileNanos(operation, 0.999) / 1e3;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return getMaxNanos(operation) / 1e3;
+        }
+
+        @Override
+        public long getAllocatedBytes() {
+            return CatalogMetrics.this.getAllocatedBytes(operation);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * FoldedKeys.java
+ *
+ * Case-folded copies of the titles and authors of a LibraryCatalog's
+ * books, which substring, fuzzy and word searches compare queries to. The
+ * folded characters of each key are packed one after another, and a book's
+ * folded key is at [starts, ends). A book's previous folded key is left
+ * unused when it changes, until the keys are compacted.
+ *
+ * The keys are dropped when a catalog file is opened and built from the
+ * stored books on first use. Every method that changes them must be called
+ * holding the catalog's search write lock, or before other threads use the
+ * catalog.
+ */
+
+package library;
+
+import java.util.Arrays;
+
+class FoldedKeys {
+    // Whether the keys hold every book, else they are built on first use
+    private boolean built = false;
+
+    // Folded characters of titles and authors, and where each book's are
+    private final char[][] chars = new char[2][];
+    private final int[][] starts = new int[2][];
+    private final int[][] ends = new int[2][];
+    private final int[] length = new int[2];
+    private final int[] unused = new int[2];
+
+    /**
+     * foldCase
+     *
+     * Get the form of a character used to compare it ignoring case. Two
+     * characters that String.regionMatches considers equal ignoring case
+     * have the same form.
+     *
+     * @param c the character
+     * @return  the case-folded character
+     */
+    static char foldCase(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * fold
+     *
+     * Get the case-folded characters of a query.
+     *
+     * @param query the query
+     * @return      the case-folded characters
+     */
+    static char[] fold(String query) {
+        char[] folded = new char[query.length()];
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = foldCase(query.charAt(i));
+        }
+        return folded;
+    }
+
+    /**
+     * isBuilt
+     *
+     * Check if the keys hold every book.
+     *
+     * @return true if the keys are built, else false
+     */
+    boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * drop
+     *
+     * Drop the keys so they are built from the stored books on first use.
+     */
+    void drop() {
+        built = false;
+    }
+
+    /**
+     * reset
+     *
+     * Empty the case-folded titles and authors and size them for a given
+     * amount of books.
+     *
+     * @param capacity the amount of books expected to be folded
+     */
+    void reset(int capacity) {
+        for (int key = LibraryCatalog.TITLE_KEY;
+                key <= LibraryCatalog.AUTHOR_KEY; key++) {
+            chars[key] = new char[Math.max(capacity, 1024) * 16];
+            starts[key] = new int[capacity];
+            ends[key] = new int[capacity];
+            length[key] = 0;
+            unused[key] = 0;
+        }
+        built = true;
+    }
+
+    /**
+     * foldBook
+     *
+     * Store the case-folded title and author of a book, if the keys are
+     * built. Must be called whenever a book's title or author is set.
+     *
+     * @param bookIndex the index of the book
+     * @param title     the title of the book
+     * @param author    the author of the book
+     */
+    void foldBook(int bookIndex, String title, String author) {
+        if (!built) {
+            return;
+        }
+
+        foldKey(LibraryCatalog.TITLE_KEY, bookIndex, title);
+        foldKey(LibraryCatalog.AUTHOR_KEY, bookIndex, author);
+    }
+
+    /**
+     * foldKey
+     *
+     * Append the case-folded form of a book's title or author to the packed
+     * folded keys. The book's previous folded key is left unused until the
+     * keys are compacted.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @param string    the title or author of the book
+     */
+    private void foldKey(int key, int bookIndex, String string) {
+        // Grow book columns if full (only while adding books)
+        if (bookIndex >= starts[key].length) {
+            int columnLength = Math.max(bookIndex + 1,
+                    starts[key].length * 3 / 2);
+            starts[key] = Arrays.copyOf(starts[key], columnLength);
+            ends[key] = Arrays.copyOf(ends[key], columnLength);
+        }
+        unused[key] += ends[key][bookIndex] - starts[key][bookIndex];
+
+        // Make room for the string by compacting or growing
+        if (length[key] + string.length() > chars[key].length) {
+            compact(key, string.length());
+        }
+
+        char[] keyChars = chars[key];
+        int start = length[key];
+        for (int i = 0; i < string.length(); i++) {
+            keyChars[start + i] = foldCase(string.charAt(i));
+        }
+        starts[key][bookIndex] = start;
+        ends[key][bookIndex] = start + string.length();
+        length[key] = start + string.length();
+    }
+
+    /**
+     * compact
+     *
+     * Copy the folded keys in use to a new array, leaving out keys of
+     * replaced books. The array grows if it would still be over half full.
+     *
+     * @param key   the key (TITLE_KEY or AUTHOR_KEY)
+     * @param extra the amount of characters that need to fit afterwards
+     */
+    private void compact(int key, int extra) {
+        char[] oldChars = chars[key];
+        int used = length[key] - unused[key] + extra;
+        char[] newChars = new char[(int) Math.min(Integer.MAX_VALUE - 8,
+                Math.max((long) oldChars.length, used * 2L))];
+
+        int[] keyStarts = starts[key];
+        int[] keyEnds = ends[key];
+        int newLength = 0;
+        for (int i = 0; i < keyStarts.length; i++) {
+            int keyLength = keyEnds[i] - keyStarts[i];
+            System.arraycopy(oldChars, keyStarts[i], newChars, newLength,
+                    keyLength);
+            keyStarts[i] = newLength;
+            keyEnds[i] = newLength + keyLength;
+            newLength += keyLength;
+        }
+
+        chars[key] = newChars;
+        length[key] = newLength;
+        unused[key] = 0;
+    }
+
+    /**
+     * contains
+     *
+     * Check if a book's folded title or author contains a folded query.
+     *
+     * @param key         the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex   the index of the book
+     * @param foldedQuery the case-folded search term/query
+     * @return            a boolean: true if the book contains the query,
+     *                    else false
+     */
+    boolean contains(int key, int bookIndex, char[] foldedQuery) {
+        char[] keyChars = chars[key];
+        int last = ends[key][bookIndex] - foldedQuery.length;
+
+        if (foldedQuery.length == 0) {
+            return true;
+        }
+
+        char first = foldedQuery[0];
+        for (int i = starts[key][bookIndex]; i <= last; i++) {
+            // Only compare the rest where the first character matches
+            if (keyChars[i] == first) {
+                int j = 1;
+                while (j < foldedQuery.length
+                        && keyChars[i + j] == foldedQuery[j]) {
+                    j++;
+                }
+                if (j == foldedQuery.length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * getChars
+     *
+     * Get the packed case-folded characters of a key. The array is replaced
+     * when the keys are compacted, so it is only used until they change.
+     *
+     * @param key the key (TITLE_KEY or AUTHOR_KEY)
+     * @return    the case-folded characters
+     */
+    char[] getChars(int key) {
+        return chars[key];
+    }
+
+    /**
+     * getStart
+     *
+     * Get the position of a book's case-folded title or author in
+     * getChars.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the position of the first character
+     */
+    int getStart(int key, int bookIndex) {
+        return starts[key][bookIndex];
+    }
+
+    /**
+     * getEnd
+     *
+     * Get the position after a book's case-folded title or author in
+     * getChars.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the position after the last character
+     */
+    int getEnd(int key, int bookIndex) {
+        return ends[key][bookIndex];
+    }
+
+    /**
+     * getLength
+     *
+     * Get the length of a book's case-folded title or author.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the length in characters
+     */
+    int getLength(int key, int bookIndex) {
+        return ends[key][bookIndex] - starts[key][bookIndex];
+    }
+}
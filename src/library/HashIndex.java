@@ -0,0 +1,340 @@
+/*
+ * HashIndex.java
+ *
+ * Open-addressing hash indexes of a LibraryCatalog's books, used for exact,
+ * case-sensitive searches and to find books that already exist. There is
+ * one table of titles, one of authors, and one of titles and authors
+ * together. Slots hold a book index plus one, 0 if empty, or -1 if
+ * removed, and the books with a key are in the slots following its hash.
+ *
+ * Books are hashed and compared by their UTF-8 text in the catalog, so a
+ * book must be removed before its title or author changes. The indexes are
+ * dropped when a catalog file is opened and built on first use. Every
+ * method that changes them must be called holding the catalog's search
+ * write lock, or before other threads use the catalog.
+ */
+
+package library;
+
+import java.nio.charset.StandardCharsets;
+
+class HashIndex {
+    // Table of titles and authors together, after the tables of each key
+    static final int BOOK_KEY = 2;
+
+    // The catalog whose books are indexed
+    private final LibraryCatalog catalog;
+
+    // Whether the tables hold every book, else they are built on first use
+    private boolean built = false;
+    private final int[][] tables = new int[3][];
+    private final int[] tableBooks = new int[3];
+    private final int[] tableUsedSlots = new int[3];
+
+    HashIndex(LibraryCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * isBuilt
+     *
+     * Check if the indexes hold every book.
+     *
+     * @return true if the indexes are built, else false
+     */
+    boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * drop
+     *
+     * Drop the indexes so they are built from the stored books on first
+     * use.
+     */
+    void drop() {
+        built = false;
+    }
+
+    /**
+     * reset
+     *
+     * Empty the indexes and size them for a given amount of books.
+     *
+     * @param capacity the amount of books expected to be indexed
+     */
+    void reset(int capacity) {
+        for (int table = 0; table < tables.length; table++) {
+            tables[table] = new int[getTableLength(capacity)];
+            tableBooks[table] = 0;
+            tableUsedSlots[table] = 0;
+        }
+        built = true;
+    }
+
+    /**
+     * getTableLength
+     *
+     * Get a hash table length (a power of two) that keeps a given amount of
+     * books under half full.
+     *
+     * @param capacity the amount of books to be indexed
+     * @return         the length of the hash table
+     */
+    private static int getTableLength(int capacity) {
+        int length = 16;
+        while (length < capacity * 2L && length < (1 << 30)) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    /**
+     * getHash
+     *
+     * Get the hash of a key in an index. The title index only uses the
+     * title, and the author index only uses the author.
+     *
+     * @param table      the index
+     * @param titleHash  the hash of the title (from hashText)
+     * @param authorHash the hash of the author (from hashText)
+     * @return           the hash of the key
+     */
+    private static int getHash(int table, int titleHash, int authorHash) {
+        int hash = switch (table) {
+            case LibraryCatalog.TITLE_KEY -> titleHash;
+            case LibraryCatalog.AUTHOR_KEY -> authorHash;
+            default -> titleHash * 31 + authorHash;
+        };
+
+        // Spread bits so similar strings are far apart in the table
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * hashText
+     *
+     * Get the hash of UTF-8 text, the same as the catalog's hash of a
+     * book's title or author holding that text.
+     *
+     * @param text the text
+     * @return     the hash of the text
+     */
+    private static int hashText(byte[] text) {
+        int hash = 0;
+        for (byte b : text) {
+            hash = hash * 31 + b;
+        }
+        return hash;
+    }
+
+    /**
+     * getBookHash
+     *
+     * Get the hash of a book in an index.
+     *
+     * @param table     the index
+     * @param bookIndex the index of the book
+     * @return          the hash of the book
+     */
+    private int getBookHash(int table, int bookIndex) {
+        // Only hash the text the index uses
+        int titleHash = table == LibraryCatalog.AUTHOR_KEY ? 0
+                : catalog.hashBookText(LibraryCatalog.TITLE_KEY, bookIndex);
+        int authorHash = table == LibraryCatalog.TITLE_KEY ? 0
+                : catalog.hashBookText(LibraryCatalog.AUTHOR_KEY, bookIndex);
+        return getHash(table, titleHash, authorHash);
+    }
+
+    /**
+     * matchesKey
+     *
+     * Check if a book matches a key in an index (case-sensitive).
+     *
+     * @param table      the index
+     * @param bookIndex  the index of the book
+     * @param titleText  the title of the key as UTF-8
+     * @param authorText the author of the key as UTF-8
+     * @return           a boolean: true if the book matches, else false
+     */
+    private boolean matchesKey(int table, int bookIndex, byte[] titleText,
+            byte[] authorText) {
+        return switch (table) {
+            case LibraryCatalog.TITLE_KEY -> catalog.textEquals(
+                    LibraryCatalog.TITLE_KEY, bookIndex, titleText);
+            case LibraryCatalog.AUTHOR_KEY -> catalog.textEquals(
+                    LibraryCatalog.AUTHOR_KEY, bookIndex, authorText);
+            default -> catalog.textEquals(LibraryCatalog.TITLE_KEY,
+                    bookIndex, titleText) && catalog.textEquals(
+                    LibraryCatalog.AUTHOR_KEY, bookIndex, authorText);
+        };
+    }
+
+    /**
+     * insert
+     *
+     * Add a book to an index, growing the index if it is too full.
+     *
+     * @param table     the index
+     * @param bookIndex the index of the book
+     */
+    private void insert(int table, int bookIndex) {
+        // Rehash when more than three quarters of the slots are used
+        if ((tableUsedSlots[table] + 1) * 4L > tables[table].length * 3L) {
+            rehash(table, tableBooks[table] + 1);
+        }
+
+        int[] slots = tables[table];
+        int mask = slots.length - 1;
+        int i = getBookHash(table, bookIndex) & mask;
+
+        // Use the first empty or removed slot
+        while (slots[i] > 0) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == 0) {
+            tableUsedSlots[table]++;
+        }
+        slots[i] = bookIndex + 1;
+        tableBooks[table]++;
+    }
+
+    /**
+     * remove
+     *
+     * Remove a book from an index. Must be called before the book's title
+     * or author change.
+     *
+     * @param table     the index
+     * @param bookIndex the index of the book
+     */
+    private void remove(int table, int bookIndex) {
+        int[] slots = tables[table];
+        int mask = slots.length - 1;
+
+        for (int i = getBookHash(table, bookIndex) & mask; slots[i] != 0;
+                i = (i + 1) & mask) {
+            if (slots[i] == bookIndex + 1) {
+                // Mark slot as removed so later slots can still be found
+                slots[i] = -1;
+                tableBooks[table]--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * rehash
+     *
+     * Move the books in an index to a new table, dropping removed slots.
+     *
+     * @param table    the index
+     * @param capacity the amount of books the new table should fit
+     */
+    private void rehash(int table, int capacity) {
+        int[] oldSlots = tables[table];
+        tables[table] = new int[getTableLength(capacity)];
+        tableBooks[table] = 0;
+        tableUsedSlots[table] = 0;
+
+        for (int slot : oldSlots) {
+            if (slot > 0) {
+                insert(table, slot - 1);
+            }
+        }
+    }
+
+    /**
+     * indexBook
+     *
+     * Add a book to all indexes, if they are built.
+     *
+     * @param bookIndex the index of the book
+     */
+    void indexBook(int bookIndex) {
+        if (!built) {
+            return;
+        }
+
+        for (int table = 0; table < tables.length; table++) {
+            insert(table, bookIndex);
+        }
+    }
+
+    /**
+     * unindexBook
+     *
+     * Remove a book from all indexes, if they are built.
+     *
+     * @param bookIndex the index of the book
+     */
+    void unindexBook(int bookIndex) {
+        if (!built) {
+            return;
+        }
+
+        for (int table = 0; table < tables.length; table++) {
+            remove(table, bookIndex);
+        }
+    }
+
+    /**
+     * search
+     *
+     * Find the books with a title or author equal to a query.
+     *
+     * @param table the index of titles or authors
+     * @param query the search term/query
+     * @return      the books found, in order of ID
+     */
+    LibraryCatalog.BookList search(int table, String query) {
+        // Keep track of search results
+        LibraryCatalog.BookList results = new LibraryCatalog.BookList(
+                LibraryCatalog.INITIAL_RESULTS);
+
+        byte[] queryText = query.getBytes(StandardCharsets.UTF_8);
+        int queryHash = hashText(queryText);
+
+        // Matching books are in the slots following the query's hash
+        int[] slots = tables[table];
+        int mask = slots.length - 1;
+        for (int i = getHash(table, queryHash, queryHash) & mask;
+                slots[i] != 0; i = (i + 1) & mask) {
+            if (slots[i] > 0 && matchesKey(table, slots[i] - 1, queryText,
+                    queryText)) {
+                results.add(slots[i] - 1);
+            }
+        }
+
+        // List results in the order of their IDs
+        results.sort();
+        return results;
+    }
+
+    /**
+     * contains
+     *
+     * Check if a book with a title and author is indexed (case-sensitive).
+     *
+     * @param title  the title of the book
+     * @param author the author of the book
+     * @return       true if the book is indexed, else false
+     */
+    boolean contains(String title, String author) {
+        byte[] titleText = title.getBytes(StandardCharsets.UTF_8);
+        byte[] authorText = author.getBytes(StandardCharsets.UTF_8);
+
+        int[] slots = tables[BOOK_KEY];
+        int mask = slots.length - 1;
+        for (int i = getHash(BOOK_KEY, hashText(titleText),
+                hashText(authorText)) & mask; slots[i] != 0;
+                i = (i + 1) & mask) {
+            if (slots[i] > 0 && matchesKey(BOOK_KEY, slots[i] - 1,
+                    titleText, authorText)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
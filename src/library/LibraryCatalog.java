@@ -0,0 +1,5010 @@
+/*
+ * LibraryCatalog.java
+ *
+ * The books of one library and everything that can be done with them,
+ * without any prompts or printing. LibrarySystem's menu, server and batch
+ * mode are clients of a catalog, and several catalogs can be used in one
+ * program, such as one for each branch of a library.
+ *
+ * A catalog can:
+ *  - Set up books, or load them from a data directory or catalog file
+ *  - Search titles and authors
+ *  - Loan and return copies of books, keeping a record of each copy on
+ *    loan, and list the overdue ones
+ *  - Add, replace and delete books
+ *  - Save books and the changes made to them
+ *
+ * Books are referred to by their index, which is their ID minus one. A
+ * deleted book keeps its slot, so no other book's ID changes, and the slot
+ * is reused by the next book added.
+ * Loans and returns may be made from several threads at once. Searches run
+ * at the same time as each other, and only wait for a change while it
+ * updates the indexes in memory, not while it is logged. Titles, authors
+ * and the sorted indexes are read from an unchanging view of the catalog
+ * that each change publishes a new version of.
+ */
+
+package library;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+public class LibraryCatalog {
+    private boolean booksSorted = false;
+
+    // Amount of book slots, including deleted books. Written last when a
+    // book is added, so other threads reading it see the book's columns
+    private volatile int bookElements = 0;
+
+    // Deleted books have no copies, and their slots are kept in a stack to
+    // be reused by the next books added
+    private int deletedBooks = 0;
+    private int[] freeBooks = new int[16];
+    private int freeBookCount = 0;
+
+    // Declare book arrays, which grow as books are added. Loans are kept in
+    // a buffer so they can be written straight to a mapped catalog file
+    private int[] bookCopies;
+    private volatile ByteBuffer booksOnLoan;
+
+    // Loans are read without a lock, so they are read and written with
+    // volatile access
+    private static final VarHandle LOANS = MethodHandles
+            .byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Loans of deleted books, which can't be loaned or returned
+    private static final int DELETED_LOANS = -1;
+
+    // Totals kept up to date by every loan, return and added book, and a
+    // bitset of the books with copies out on loan. The bitset is split into
+    // segments that are never copied, so bits set by other threads are not
+    // lost when it grows
+    private LongAdder totalOnLoan = new LongAdder();
+    private LongAdder booksAvailable = new LongAdder();
+    private LongAdder booksWithLoans = new LongAdder();
+    private static final int ON_LOAN_SEGMENT_BITS = 16;
+    private static final int ON_LOAN_SEGMENT_WORDS =
+            1 << (ON_LOAN_SEGMENT_BITS - 6);
+    private volatile long[][] onLoanBits = new long[0][];
+    private static final VarHandle ON_LOAN_BITS = MethodHandles
+            .arrayElementVarHandle(long[].class);
+
+    // Every copy out on loan has a loan record. Books are split into
+    // stripes by the low bits of their index, each with its own records
+    // and lock, so loans and returns of books in different stripes run at
+    // the same time, and neighboring books are in different stripes. A
+    // book's loans and its records are only changed together holding its
+    // stripe's lock, so a book always has as many records as copies on
+    // loan. Changes to every book, such as growing the loans, hold every
+    // stripe's lock, taken in order
+    private static final int LOAN_STRIPE_BITS = 6;
+    private static final int LOAN_STRIPES = 1 << LOAN_STRIPE_BITS;
+    private final LoanRecords[] loanStripes = newLoanStripes();
+
+    // Patron of loans made without one, due time of loans that are never
+    // overdue, and how long new loans last
+    public static final int UNKNOWN_PATRON = 0;
+    public static final long NO_DUE_TIME = Long.MAX_VALUE;
+    private long loanPeriodMillis = 14L * 24 * 60 * 60 * 1000;
+
+    // Titles and authors are stored as UTF-8, packed one after another in
+    // bookText. A book's title or author is at
+    // [bookTextStarts, bookTextStarts + bookTextLengths)
+    private ByteBuffer bookText;
+    private int bookTextLength;
+    private int bookTextUnused;
+    private int[][] bookTextStarts = new int[2][];
+    private int[][] bookTextLengths = new int[2][];
+
+    // Indexes of books sorted by title and by author. Books added since
+    // they were sorted wait in small lists, sorted by title and by author,
+    // which are merged in by the views that list them, and in the
+    // background once enough are waiting. Entries of the sorted indexes are
+    // never changed in place, since views may be using the arrays
+    private int[] sortedBookTitleIndexes;
+    private int[] sortedBookAuthorIndexes;
+    private int sortedBooks = 0;
+    private int[][] unsortedBooks = new int[2][16];
+    private int unsortedCount = 0;
+
+    // Positions in the sorted indexes of books deleted or replaced since
+    // they were sorted, in order, which readers skip. Replaced books wait
+    // to be merged again with their new text. The entries are dropped by
+    // the next compaction, so a change never copies the sorted indexes
+    private int[][] removedEntries = new int[2][16];
+    private int removedCount = 0;
+
+    // Changed whenever the sorted indexes are rebuilt, so a background
+    // compaction can tell its result is outdated. Books deleted or replaced
+    // while it runs are removed from its result instead
+    private long sortedIndexChanges = 0;
+    private boolean compacting = false;
+    private int[] compactionChanges = new int[16];
+    private int compactionChangeCount = 0;
+    private static final int COMPACTION_THRESHOLD = 1024;
+
+    // Compactions of every catalog run one after another on one daemon
+    // thread, which lives as long as the program
+    private static final ExecutorService COMPACTION_EXECUTOR = Executors
+            .newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "LibraryCatalog compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Unchanging view of the titles, authors and sorted indexes, replaced
+    // after every change. The positions and lengths of the titles and
+    // authors are kept together in chunks of books, so a change only
+    // copies the chunk it is in
+    private volatile CatalogView view = new CatalogView(null, new int[0][],
+            0, 0, null, 0, new int[2][0], new int[2][0]);
+    private static final int VIEW_CHUNK_BITS = 8;
+    private static final int VIEW_CHUNK_SIZE = 1 << VIEW_CHUNK_BITS;
+
+    // Keys books can be looked up by
+    public static final int TITLE_KEY = 0;
+    public static final int AUTHOR_KEY = 1;
+
+    // Hash indexes of books for each key, built on first use after a
+    // catalog file is opened
+    private final HashIndex hashIndex = new HashIndex(this);
+
+    // Case-folded copies of titles and authors, built on first use after a
+    // catalog file is opened
+    private final FoldedKeys foldedKeys = new FoldedKeys();
+
+    // Substring searches use trigram indexes for libraries this large
+    private static final int TRIGRAM_INDEX_THRESHOLD = 4096;
+
+    // Trigram indexes of titles and authors, built on the first search
+    private final TrigramIndex[] trigramIndexes = {
+            new TrigramIndex(TITLE_KEY), new TrigramIndex(AUTHOR_KEY)};
+
+    // Buffers each thread reuses between its searches
+    private final ThreadLocal<SearchBuffers> searchBuffers =
+            ThreadLocal.withInitial(SearchBuffers::new);
+
+    // Word indexes of titles and authors, built on the first boolean
+    // search
+    private final WordIndex[] wordIndexes = {
+            new WordIndex(TITLE_KEY), new WordIndex(AUTHOR_KEY)};
+
+    // Search results start with room for this many books
+    static final int INITIAL_RESULTS = 16;
+
+    // Fuzzy searches return this many books by default
+    public static final int FUZZY_RESULTS = 10;
+
+    // Ways search can match a query: titles or authors containing it, equal
+    // to it, starting with it or close to it, or words combined with AND,
+    // OR and NOT
+    public static final int SEARCH_CONTAINS = 0;
+    public static final int SEARCH_EXACT = 1;
+    public static final int SEARCH_PREFIX = 2;
+    public static final int SEARCH_FUZZY = 3;
+    public static final int SEARCH_WORDS = 4;
+
+    // Results of recent searches by mode, key and query, least recently
+    // used first. Each result remembers the generation of the catalog it
+    // was found in, which changes whenever books are added or replaced, so
+    // older results are never used. Loans and returns do not change results
+    private static final int QUERY_CACHE_ENTRIES = 1024;
+    private int queryCacheEntries = QUERY_CACHE_ENTRIES;
+    private final LinkedHashMap<String, CachedResult> queryCache =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private volatile long generation = 0;
+
+    // Results with more books than this are not worth keeping, and the
+    // cache evicts results to stay under a memory limit
+    private static final int QUERY_CACHE_MAX_RESULTS = 16384;
+    private static final long QUERY_CACHE_MAX_BYTES = 16L * 1024 * 1024;
+
+    // Rough memory used by a cache entry besides its books and query
+    private static final int QUERY_CACHE_ENTRY_BYTES = 128;
+
+    // Operation to record each search mode as
+    private static final int[] SEARCH_OPERATIONS = {
+            CatalogMetrics.SUBSTRING_SEARCH, CatalogMetrics.HASH_SEARCH,
+            CatalogMetrics.PREFIX_SEARCH, CatalogMetrics.FUZZY_SEARCH,
+            CatalogMetrics.BOOLEAN_SEARCH};
+
+    // Latency and allocations of every operation
+    private final CatalogMetrics metrics = new CatalogMetrics();
+
+    // Query cache statistics. The cache and its statistics are guarded by
+    // the cache itself, as searches run at the same time
+    private long queryCacheHits = 0;
+    private long queryCacheMisses = 0;
+    private long queryCacheEvictions = 0;
+    private long queryCacheBytes = 0;
+
+    // Directory the catalog is saved in, or null if it is not saved
+    private Path dataDirectory;
+
+    // When the transaction log is forced to disk
+    public static final int FSYNC_ALWAYS = 0;
+    public static final int FSYNC_GROUP = 1;
+    public static final int FSYNC_NEVER = 2;
+    private int fsyncPolicy = FSYNC_GROUP;
+
+    // Catalog file mapped into memory, or null if none is used
+    private Path catalogPath;
+    private MappedByteBuffer catalogMap;
+    private boolean catalogChanged = false;
+
+    // Searches hold the read lock of this lock while they use the indexes,
+    // so they run at the same time as each other. Changing a book holds
+    // the write lock only while the indexes are updated in memory, after
+    // the change was logged, and indexes are built on first use holding
+    // the write lock
+    private final ReentrantReadWriteLock searchLock =
+            new ReentrantReadWriteLock();
+
+    // Held while a change to books is checked, logged and applied, so
+    // operations are logged in the order they were applied. Loans and
+    // returns hold their book's loan stripe instead. Taken before the loan
+    // stripes, which are taken before searchLock
+    private final Object logLock = new Object();
+
+    // Transaction log of the data directory, which is open while changes
+    // are saved to it. Operations wait for it to be forced after releasing
+    // logLock
+    private final TransactionLog log = new TransactionLog();
+
+    // Snapshots that could not be written, and who is told about them
+    private final LongAdder snapshotFailures = new LongAdder();
+    private volatile Consumer<IOException> snapshotErrorHandler = e -> { };
+
+    // Minimum amount of books the arrays grow by while books are appended
+    private static final int IMPORT_CHUNK_SIZE = 65536;
+
+    // Books appended since startBooks
+    private int appendedBooks = 0;
+
+    // Ranges larger than this are sorted in parallel
+    private static final int PARALLEL_SORT_THRESHOLD = 8192;
+
+    // Ranges up to this size are sorted with insertion sort
+    static final int INSERTION_SORT_THRESHOLD = 32;
+
+    /**
+     * LibraryCatalog
+     *
+     * Create an empty catalog. Books are added with startBooks, appendBook
+     * and finishBooks, or loaded with recover or open.
+     */
+    public LibraryCatalog() {
+    }
+
+    /**
+     * startBooks
+     *
+     * Empty the catalog so books can be added with appendBook, sizing it for
+     * an expected amount of books.
+     *
+     * @param capacity the amount of books expected to be added, or 0 if not
+     *                 known
+     */
+    public void startBooks(int capacity) {
+        if (capacity < 1) {
+            capacity = IMPORT_CHUNK_SIZE;
+        }
+        clearBooks(capacity);
+        appendedBooks = 0;
+    }
+
+    /**
+     * clearBooks
+     *
+     * Drop every book, index and loan record, leaving an empty catalog
+     * sized for an expected amount of books. Also used when a saved catalog
+     * could not be loaded, so nothing of it is left half loaded.
+     *
+     * @param capacity the amount of books expected to be added
+     */
+    private void clearBooks(int capacity) {
+        bookElements = 0;
+        deletedBooks = 0;
+        freeBookCount = 0;
+        booksSorted = false;
+        unsortedCount = 0;
+        removedCount = 0;
+        sortedIndexChanges++;
+        generation++;
+        clearQueryCache();
+        resetBookText(capacity);
+        publishView(-1, 0);
+        bookCopies = new int[capacity];
+        hashIndex.reset(capacity);
+        foldedKeys.reset(capacity);
+        resetSearchIndexes();
+        for (LoanRecords stripe : loanStripes) {
+            stripe.clear();
+        }
+        booksOnLoan = ByteBuffer.allocateDirect(capacity * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        countLoans();
+    }
+
+    /**
+     * appendBook
+     *
+     * Add a book after the ones added since startBooks, unless it already
+     * exists. The arrays grow in chunks if full.
+     *
+     * @param title  the title of the book
+     * @param author the author of the book
+     * @param copies the amount of copies of the book
+     * @return       true if the book was added, false if it already exists
+     */
+    public boolean appendBook(String title, String author, int copies) {
+        long startTime = metrics.startSampled();
+        if (findExistingBook(title, author)) {
+            return false;
+        }
+
+        // Grow arrays if full
+        if (appendedBooks == bookCopies.length) {
+            bookCopies = Arrays.copyOf(bookCopies, bookCopies.length
+                    + Math.max(IMPORT_CHUNK_SIZE, bookCopies.length >> 1));
+        }
+
+        storeBook(appendedBooks, title, author);
+        bookCopies[appendedBooks] = copies;
+        hashIndex.indexBook(appendedBooks);
+        foldedKeys.foldBook(appendedBooks, title, author);
+        appendedBooks++;
+        generation++;
+        metrics.record(CatalogMetrics.APPEND_BOOK, startTime);
+        return true;
+    }
+
+    /**
+     * finishBooks
+     *
+     * Finish adding books and save them, to a snapshot or catalog file if
+     * either is used. The arrays are trimmed to the amount of books.
+     *
+     * @throws IOException if the books could not be saved
+     */
+    public void finishBooks() throws IOException {
+        long startTime = metrics.start();
+        long startBytes = metrics.startAllocation();
+        trimBookText(appendedBooks);
+        bookCopies = Arrays.copyOf(bookCopies, appendedBooks);
+        booksOnLoan = ByteBuffer.allocateDirect(appendedBooks * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        booksSorted = false;
+        publishView(-1, appendedBooks);
+        bookElements = appendedBooks;
+        generation++;
+        countLoans();
+        save();
+        metrics.recordAllocation(CatalogMetrics.FINISH_BOOKS, startBytes);
+        metrics.record(CatalogMetrics.FINISH_BOOKS, startTime);
+    }
+
+    /**
+     * recover
+     *
+     * Load the catalog saved in a data directory, if any, by reading the
+     * latest snapshot and replaying the transaction log written after it.
+     * Opens the transaction log for writing, so every change is saved to the
+     * directory from then on.
+     *
+     * @param directory the data directory
+     * @return          the amount of operations replayed
+     * @throws IOException if the saved catalog could not be loaded, in which
+     *                     case changes are not saved
+     */
+    public int recover(Path directory) throws IOException {
+        Path snapshotPath = directory.resolve("catalog.snapshot");
+        Path logPath = directory.resolve("catalog.log");
+        long snapshotSequence = 0;
+        dataDirectory = directory;
+        long startTime = metrics.start();
+        long startBytes = metrics.startAllocation();
+
+        try {
+            Files.createDirectories(dataDirectory);
+
+            if (Files.exists(snapshotPath)) {
+                snapshotSequence = openCatalogFile(snapshotPath,
+                        FileChannel.MapMode.PRIVATE);
+            }
+
+            log.open(logPath, snapshotSequence);
+            int replayed = log.replay(snapshotSequence,
+                    this::applyLogRecord);
+            countLoans();
+            metrics.recordAllocation(CatalogMetrics.RECOVER, startBytes);
+            metrics.record(CatalogMetrics.RECOVER, startTime);
+            return replayed;
+        } catch (IOException | RuntimeException e) {
+            dataDirectory = null;
+            log.discard(e);
+            clearBooks(16);
+            throw e;
+        }
+    }
+
+    /**
+     * open
+     *
+     * Use a catalog file, mapping it into memory if it exists. Loans and
+     * returns are written straight to the file, and books set up later are
+     * saved to it.
+     *
+     * @param path the path of the catalog file
+     * @throws IOException if the file exists but could not be opened, in
+     *                     which case it is not used
+     */
+    public void open(Path path) throws IOException {
+        catalogPath = path;
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        long startTime = metrics.start();
+        long startBytes = metrics.startAllocation();
+        try {
+            openCatalogFile(catalogPath, FileChannel.MapMode.READ_WRITE);
+        } catch (IOException | RuntimeException e) {
+            catalogPath = null;
+            catalogMap = null;
+            clearBooks(16);
+            throw e;
+        }
+        metrics.recordAllocation(CatalogMetrics.OPEN, startBytes);
+        metrics.record(CatalogMetrics.OPEN, startTime);
+    }
+
+    /**
+     * save
+     *
+     * Save all books to a new snapshot in the data directory or to the
+     * catalog file, if either is used.
+     *
+     * @throws IOException if the books could not be saved
+     */
+    public void save() throws IOException {
+        long startTime = metrics.start();
+        long startBytes = metrics.startAllocation();
+        if (dataDirectory != null) {
+            writeSnapshot();
+        } else if (catalogPath != null) {
+            saveCatalog(getGrownCapacity(bookElements));
+        } else {
+            return;
+        }
+        metrics.recordAllocation(CatalogMetrics.SAVE, startBytes);
+        metrics.record(CatalogMetrics.SAVE, startTime);
+    }
+
+    /**
+     * close
+     *
+     * Save the catalog before exiting, to the data directory or catalog file
+     * if one is used.
+     *
+     * @throws IOException if the catalog could not be saved
+     */
+    public void close() throws IOException {
+        if (log.isOpen()) {
+            closeLog();
+        } else if (catalogMap != null
+                || (catalogPath != null && catalogChanged)) {
+            closeCatalog();
+        }
+    }
+
+    /**
+     * setFsyncPolicy
+     *
+     * Set when the transaction log is forced to disk. FSYNC_ALWAYS forces
+     * each record as it is written, FSYNC_GROUP has operations that finish
+     * together share a force, and FSYNC_NEVER leaves it to the system. Only
+     * FSYNC_NEVER returns from an operation before it is on disk.
+     *
+     * @param policy FSYNC_ALWAYS, FSYNC_GROUP or FSYNC_NEVER
+     */
+    public void setFsyncPolicy(int policy) {
+        fsyncPolicy = policy;
+        log.setFsyncPolicy(policy);
+    }
+
+    /**
+     * setSnapshotErrorHandler
+     *
+     * Set what is told when a snapshot taken after a logged operation can't
+     * be written. The operation itself is kept in the log, and the snapshot
+     * is tried again after the next one.
+     *
+     * @param handler given the error, holding the catalog's log lock
+     */
+    public void setSnapshotErrorHandler(Consumer<IOException> handler) {
+        snapshotErrorHandler = Objects.requireNonNull(handler);
+    }
+
+    /**
+     * getSnapshotFailures
+     *
+     * Get the amount of snapshots that could not be written.
+     *
+     * @return the amount of snapshots
+     */
+    public long getSnapshotFailures() {
+        return snapshotFailures.sum();
+    }
+
+    /**
+     * getMetrics
+     *
+     * Get the latency and allocation metrics of the catalog's operations.
+     *
+     * @return the metrics
+     */
+    public CatalogMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * getCommitCount
+     *
+     * Get the amount of operations committed to the transaction log.
+     *
+     * @return the amount of operations
+     */
+    public long getCommitCount() {
+        return log.getCommitCount();
+    }
+
+    /**
+     * getCommitNanos
+     *
+     * Get the total time spent committing operations to the transaction
+     * log.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getCommitNanos() {
+        return log.getCommitNanos();
+    }
+
+    /**
+     * getMaxCommitNanos
+     *
+     * Get the longest time spent committing one operation to the
+     * transaction log.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getMaxCommitNanos() {
+        return log.getMaxCommitNanos();
+    }
+
+    /**
+     * saveCatalog
+     *
+     * Write all books to the catalog file and open it again, so later loans
+     * and returns are written to it. Holds logLock and every loan stripe
+     * throughout.
+     *
+     * @param capacity the amount of books the file should have room for
+     * @throws IOException if the catalog file could not be written
+     */
+    private void saveCatalog(int capacity) throws IOException {
+        Path temporaryPath = catalogPath.resolveSibling(
+                catalogPath.getFileName() + ".tmp");
+
+        // No loan or return is made in the old file meanwhile
+        synchronized (logLock) {
+            lockLoanStripes();
+            try {
+                writeCatalogFile(temporaryPath, capacity);
+                Files.move(temporaryPath, catalogPath,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                openCatalogFile(catalogPath,
+                        FileChannel.MapMode.READ_WRITE);
+                catalogChanged = false;
+            } finally {
+                unlockLoanStripes();
+            }
+        }
+    }
+
+    /**
+     * closeCatalog
+     *
+     * Make sure the catalog file is up to date before exiting. Books added
+     * since it was opened require writing it again.
+     *
+     * @throws IOException if the catalog file could not be written
+     */
+    private void closeCatalog() throws IOException {
+        if (catalogChanged) {
+            saveCatalog(getGrownCapacity(bookElements));
+        } else {
+            catalogMap.force();
+        }
+    }
+
+    /**
+     * openCatalogFile
+     *
+     * Map a catalog file into memory and use it as the library. Titles,
+     * authors and loans are read from the mapping as they are needed, and
+     * the sorted indexes are used as they are, so no parsing or sorting is
+     * needed. Hash indexes and case-folded keys are built on first use.
+     * Deleted books have no copies and come after the other books in the
+     * sorted indexes.
+     *
+     * @param path the path of the catalog file
+     * @param mode READ_WRITE to write loans and returns to the file, or
+     *             PRIVATE to keep them in memory
+     * @return     the sequence number of the last operation in the file
+     * @throws IOException if the file could not be opened or is invalid
+     */
+    private long openCatalogFile(Path path, FileChannel.MapMode mode)
+            throws IOException {
+        CatalogFile file = new CatalogFile(path, mode);
+        generation++;
+        clearQueryCache();
+
+        // Copy the offset table, copies and sorted indexes
+        int books = file.getBooks();
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            bookTextStarts[key] = file.readTextStarts(key);
+            bookTextLengths[key] = file.readTextLengths(key);
+        }
+        bookCopies = file.readCopies();
+        sortedBookTitleIndexes = file.readSortedIndex(TITLE_KEY);
+        sortedBookAuthorIndexes = file.readSortedIndex(AUTHOR_KEY);
+
+        // Loans and text stay in the mapping
+        booksOnLoan = file.getLoans();
+        bookText = file.getText();
+        bookTextLength = file.getTextLength();
+        bookTextUnused = 0;
+
+        bookElements = books;
+        dropIndexes();
+
+        // Loan records are kept in the stripes
+        for (LoanRecords stripe : loanStripes) {
+            stripe.clear();
+        }
+        for (int i = 0; i < file.getLoanRecords(); i++) {
+            int book = file.getLoanBook(i);
+            if (book >= 0 && book < books) {
+                getLoanStripe(book).add(book, file.getLoanPatron(i),
+                        file.getLoanTime(i), file.getDueTime(i));
+            }
+        }
+        countLoans();
+        moveDeletedBooksLast(sortedBookTitleIndexes);
+        moveDeletedBooksLast(sortedBookAuthorIndexes);
+        booksSorted = true;
+        sortedBooks = books - deletedBooks;
+        unsortedCount = 0;
+        removedCount = 0;
+        sortedIndexChanges++;
+        publishView(-1, books);
+        catalogMap = mode == FileChannel.MapMode.READ_WRITE ? file.getMap()
+                : null;
+        return file.getSequence();
+    }
+
+    /**
+     * moveDeletedBooksLast
+     *
+     * Move deleted books to the end of a sorted index read from a catalog
+     * file, keeping the order of the others. Books deleted after the file
+     * was saved are still among the sorted books in it.
+     *
+     * @param indexes the sorted index
+     */
+    private void moveDeletedBooksLast(int[] indexes) {
+        int sorted = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (bookCopies[indexes[i]] != 0) {
+                indexes[sorted++] = indexes[i];
+            }
+        }
+        for (int i = 0; i < bookElements; i++) {
+            if (bookCopies[i] == 0) {
+                indexes[sorted++] = i;
+            }
+        }
+    }
+
+    /**
+     * writeCatalogFile
+     *
+     * Write all books to a catalog file, holding logLock so no book is
+     * changed meanwhile. Books added since the last sort are merged in by
+     * the current view, which keeps the result for readers. Books never
+     * sorted are sorted for the file only, so searches are not held up
+     * while the file is written.
+     *
+     * @param path     the path of the catalog file
+     * @param capacity the amount of books the file should have room for
+     * @throws IOException if the file could not be written
+     */
+    private void writeCatalogFile(Path path, int capacity)
+            throws IOException {
+        synchronized (logLock) {
+            CatalogView sorted = view;
+            if (sorted.sortedIndexes != null) {
+                writeCatalogFile(path, new int[][] {
+                        sorted.getMergedIndexes(TITLE_KEY),
+                        sorted.getMergedIndexes(AUTHOR_KEY)},
+                        sorted.getSortedCount(), capacity);
+            } else {
+                writeCatalogFile(path, sortBookIndexes(),
+                        bookElements - deletedBooks, capacity);
+            }
+        }
+    }
+
+    /**
+     * writeCatalogFile
+     *
+     * Write all books and their sorted indexes to a catalog file. Must be
+     * called holding logLock.
+     *
+     * @param path          the path of the catalog file
+     * @param sortedIndexes the books sorted by title and by author
+     * @param sortedCount   the amount of books in each sorted index
+     * @param capacity      the amount of books the columns have room for
+     * @throws IOException if the file could not be written
+     */
+    private void writeCatalogFile(Path path, int[][] sortedIndexes,
+            int sortedCount, int capacity) throws IOException {
+        capacity = Math.max(capacity, bookElements);
+
+        // Copy the loans and their records together, as loans may be made
+        // meanwhile
+        int[] loans = new int[bookElements];
+        ByteBuffer loanRecords;
+        lockLoanStripes();
+        try {
+            for (int i = 0; i < bookElements; i++) {
+                loans[i] = getBooksOnLoan(i);
+            }
+            loanRecords = CatalogFile.encodeLoanRecords(loanStripes);
+        } finally {
+            unlockLoanStripes();
+        }
+
+        CatalogFile.write(path, this, log.getSequence(), capacity, loans,
+                loanRecords, sortedIndexes, sortedCount);
+    }
+
+    /**
+     * dropIndexes
+     *
+     * Drop the hash indexes and case-folded keys so they are built from the
+     * stored books on first use.
+     */
+    private void dropIndexes() {
+        hashIndex.drop();
+        foldedKeys.drop();
+        resetSearchIndexes();
+    }
+
+    /**
+     * ensureHashIndexes
+     *
+     * Build the hash indexes of all books if they were dropped.
+     */
+    private void ensureHashIndexes() {
+        if (!hashIndex.isBuilt()) {
+            long startTime = metrics.start();
+            long startBytes = metrics.startAllocation();
+            hashIndex.reset(bookElements);
+            for (int i = 0; i < bookElements; i++) {
+                if (!isDeleted(i)) {
+                    hashIndex.indexBook(i);
+                }
+            }
+            metrics.recordAllocation(CatalogMetrics.BUILD_HASH_INDEXES,
+                    startBytes);
+            metrics.record(CatalogMetrics.BUILD_HASH_INDEXES, startTime);
+        }
+    }
+
+    /**
+     * ensureFoldedKeys
+     *
+     * Build the case-folded keys of all books if they were dropped.
+     */
+    private void ensureFoldedKeys() {
+        if (!foldedKeys.isBuilt()) {
+            long startTime = metrics.start();
+            long startBytes = metrics.startAllocation();
+            foldedKeys.reset(bookElements);
+            for (int i = 0; i < bookElements; i++) {
+                foldedKeys.foldBook(i, getBookText(TITLE_KEY, i),
+                        getBookText(AUTHOR_KEY, i));
+            }
+            metrics.recordAllocation(CatalogMetrics.FOLD_KEYS, startBytes);
+            metrics.record(CatalogMetrics.FOLD_KEYS, startTime);
+        }
+    }
+
+    /**
+     * applyLogRecord
+     *
+     * Apply an operation in the transaction log that came after the
+     * snapshot. Only added books can come after the last book, and only
+     * once there is a snapshot to add them to.
+     *
+     * @param type   the type of the operation
+     * @param index  the index of the book
+     * @param record the rest of the record
+     * @return       true if the operation was applied, false if it was
+     *               skipped
+     */
+    private boolean applyLogRecord(byte type, int index, ByteBuffer record) {
+        if (bookCopies == null || index < 0 || index > bookElements
+                || (index == bookElements && type != TransactionLog.ADD)) {
+            return false;
+        }
+
+        // Loans and returns logged before loan records were kept have no
+        // patron, and their records are made up by countLoans
+        switch (type) {
+            case TransactionLog.LOAN -> {
+                setBooksOnLoan(index, getBooksOnLoan(index) + 1);
+                if (record.remaining() >= 20) {
+                    getLoanStripe(index).add(index, record.getInt(),
+                            record.getLong(), record.getLong());
+                }
+            }
+            case TransactionLog.RETURN -> {
+                setBooksOnLoan(index, getBooksOnLoan(index) - 1);
+                LoanRecords stripe = getLoanStripe(index);
+                int loanRecord = stripe.find(index,
+                        record.remaining() >= 4 ? record.getInt()
+                        : UNKNOWN_PATRON);
+                if (loanRecord >= 0) {
+                    stripe.remove(loanRecord);
+                }
+            }
+            case TransactionLog.ADD -> {
+                int copies = record.getInt();
+                byte[] title = new byte[record.getInt()];
+                record.get(title);
+                byte[] author = new byte[record.getInt()];
+                record.get(author);
+                String titleText = new String(title, StandardCharsets.UTF_8);
+                String authorText = new String(author,
+                        StandardCharsets.UTF_8);
+                if (index < bookElements && !isDeleted(index)) {
+                    replaceBook(index, titleText, authorText, copies);
+                } else {
+                    insertBook(index, titleText, authorText, copies);
+                }
+            }
+            case TransactionLog.DELETE -> deleteBook(index);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * writeSnapshot
+     *
+     * Save all books to a new snapshot and empty the transaction log. The
+     * snapshot replaces the old one only once it is completely written.
+     * Holds logLock and every loan stripe throughout, so no operation is
+     * logged after the snapshot is taken and then cut off with the log.
+     *
+     * @throws IOException if the snapshot could not be written
+     */
+    private void writeSnapshot() throws IOException {
+        Path snapshotPath = dataDirectory.resolve("catalog.snapshot");
+        Path temporaryPath = dataDirectory.resolve("catalog.snapshot.tmp");
+
+        Files.createDirectories(dataDirectory);
+
+        synchronized (logLock) {
+            lockLoanStripes();
+            try {
+                // Make sure every logged operation is in the log first
+                log.force();
+
+                writeCatalogFile(temporaryPath, bookElements);
+                Files.move(temporaryPath, snapshotPath,
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+
+                // The log only needs operations after the snapshot
+                log.truncate(dataDirectory.resolve("catalog.log"));
+            } finally {
+                unlockLoanStripes();
+            }
+        }
+    }
+
+    /**
+     * saveSnapshotIfDue
+     *
+     * Take a snapshot if enough operations were logged since the last one.
+     * Called once a logged operation is applied, so the snapshot includes
+     * it, and never holding a loan stripe, as the snapshot takes logLock
+     * first. If the snapshot can't be written, the log is kept and the
+     * snapshot is tried again after the next operation.
+     */
+    private void saveSnapshotIfDue() {
+        if (dataDirectory == null || !log.isSnapshotDue()) {
+            return;
+        }
+        synchronized (logLock) {
+            // Another thread may have taken it meanwhile
+            if (!log.isSnapshotDue()) {
+                return;
+            }
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                snapshotFailures.increment();
+                snapshotErrorHandler.accept(e);
+            }
+        }
+    }
+
+    /**
+     * forceCatalogFile
+     *
+     * Force a change written straight to a mapped catalog file to disk, if
+     * the fsync policy asks for it.
+     */
+    private void forceCatalogFile() {
+        if (catalogMap != null && fsyncPolicy == FSYNC_ALWAYS) {
+            catalogMap.force();
+        }
+    }
+
+    /**
+     * closeLog
+     *
+     * Save a final snapshot and close the transaction log, holding logLock
+     * and every loan stripe so no operation is logged meanwhile.
+     *
+     * @throws IOException if the snapshot or log could not be written
+     */
+    private void closeLog() throws IOException {
+        synchronized (logLock) {
+            lockLoanStripes();
+            try {
+                if (bookElements > 0) {
+                    writeSnapshot();
+                }
+                log.force();
+            } finally {
+                try {
+                    log.close();
+                } finally {
+                    unlockLoanStripes();
+                }
+            }
+        }
+    }
+
+    /**
+     * resetBookText
+     *
+     * Empty the stored titles and authors and size them for a given amount
+     * of books.
+     *
+     * @param capacity the amount of books expected to be stored
+     */
+    private void resetBookText(int capacity) {
+        bookText = ByteBuffer.allocateDirect(Math.max(capacity, 1024) * 32);
+        bookTextLength = 0;
+        bookTextUnused = 0;
+
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            bookTextStarts[key] = new int[capacity];
+            bookTextLengths[key] = new int[capacity];
+        }
+    }
+
+    /**
+     * trimBookText
+     *
+     * Shrink the title and author columns to a given amount of books.
+     *
+     * @param books the amount of books
+     */
+    private void trimBookText(int books) {
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            bookTextStarts[key] = Arrays.copyOf(bookTextStarts[key], books);
+            bookTextLengths[key] = Arrays.copyOf(bookTextLengths[key], books);
+        }
+    }
+
+    /**
+     * storeBook
+     *
+     * Set the title and author of a book.
+     *
+     * @param bookIndex the index of the book
+     * @param title     the title of the book
+     * @param author    the author of the book
+     */
+    private void storeBook(int bookIndex, String title,
+            String author) {
+        byte[] titleText = title.getBytes(StandardCharsets.UTF_8);
+        byte[] authorText = author.getBytes(StandardCharsets.UTF_8);
+
+        int start = appendBookText(titleText, authorText);
+        setBookText(TITLE_KEY, bookIndex, start, titleText.length);
+        setBookText(AUTHOR_KEY, bookIndex, start + titleText.length,
+                authorText.length);
+    }
+
+    /**
+     * appendBookText
+     *
+     * Append a title followed by an author to bookText, compacting or
+     * growing it if full. The text is not part of any book until
+     * setBookText is called.
+     *
+     * @param titleText  the title as UTF-8
+     * @param authorText the author as UTF-8
+     * @return           the position of the title in bookText
+     */
+    private int appendBookText(byte[] titleText, byte[] authorText) {
+        int length = titleText.length + authorText.length;
+
+        // Make room for the text by compacting or growing
+        if (bookTextLength + length > bookText.capacity()) {
+            compactBookText(length);
+        }
+
+        int start = bookTextLength;
+        bookText.put(start, titleText);
+        bookText.put(start + titleText.length, authorText);
+        bookTextLength += length;
+        return start;
+    }
+
+    /**
+     * setBookText
+     *
+     * Point the title or author of a book to text in bookText. The book's
+     * previous text is left unused until bookText is compacted.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @param start     the position of the text in bookText
+     * @param length    the length of the text in bytes
+     */
+    private void setBookText(int key, int bookIndex, int start,
+            int length) {
+        // Grow columns if full (only while adding books)
+        if (bookIndex >= bookTextStarts[key].length) {
+            int columnLength = Math.max(bookIndex + 1,
+                    bookTextStarts[key].length * 3 / 2);
+            bookTextStarts[key] = Arrays.copyOf(bookTextStarts[key],
+                    columnLength);
+            bookTextLengths[key] = Arrays.copyOf(bookTextLengths[key],
+                    columnLength);
+        }
+
+        bookTextUnused += bookTextLengths[key][bookIndex];
+        bookTextStarts[key][bookIndex] = start;
+        bookTextLengths[key][bookIndex] = length;
+    }
+
+    /**
+     * compactBookText
+     *
+     * Copy the titles and authors in use to a new buffer, leaving out text
+     * of replaced books. The buffer grows if it would still be over half
+     * full. The old buffer is left as it is for views still using it.
+     *
+     * @param extra the amount of bytes that need to fit afterwards
+     */
+    private void compactBookText(int extra) {
+        ByteBuffer oldText = bookText;
+        long used = (long) bookTextLength - bookTextUnused + extra;
+        if (used > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("Book text is over 2 GB");
+        }
+        ByteBuffer text = ByteBuffer.allocateDirect((int) Math.min(
+                Integer.MAX_VALUE - 8, Math.max(oldText.capacity(),
+                used * 2)));
+
+        int length = 0;
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            int[] starts = bookTextStarts[key];
+            int[] lengths = bookTextLengths[key];
+            for (int i = 0; i < starts.length; i++) {
+                text.put(length, oldText, starts[i], lengths[i]);
+                starts[i] = length;
+                length += lengths[i];
+            }
+        }
+
+        bookText = text;
+        bookTextLength = length;
+        bookTextUnused = 0;
+    }
+
+    /**
+     * getBookText
+     *
+     * Get the title or author of a book.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the title or author of the book
+     */
+    private String getBookText(int key, int bookIndex) {
+        byte[] text = new byte[bookTextLengths[key][bookIndex]];
+        bookText.get(bookTextStarts[key][bookIndex], text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * getBookCount
+     *
+     * Get the amount of books in the catalog, not counting deleted books.
+     *
+     * @return the amount of books
+     */
+    public int getBookCount() {
+        return bookElements - deletedBooks;
+    }
+
+    /**
+     * getBookSlots
+     *
+     * Get the amount of book slots, including deleted books. Book indexes
+     * are from 0 up to this amount.
+     *
+     * @return the amount of book slots
+     */
+    public int getBookSlots() {
+        return bookElements;
+    }
+
+    /**
+     * isDeleted
+     *
+     * Check if a book was deleted. Its ID is given to the next book added.
+     *
+     * @param bookIndex the index of the book
+     * @return          true if the book was deleted, else false
+     */
+    public boolean isDeleted(int bookIndex) {
+        return bookCopies[bookIndex] == 0;
+    }
+
+    /**
+     * getBookTitle
+     *
+     * Get the title of a book.
+     *
+     * @param bookIndex the index of the book
+     * @return          the title of the book
+     */
+    public String getBookTitle(int bookIndex) {
+        return view.getBookTitle(bookIndex);
+    }
+
+    /**
+     * getBookAuthor
+     *
+     * Get the author of a book.
+     *
+     * @param bookIndex the index of the book
+     * @return          the author of the book
+     */
+    public String getBookAuthor(int bookIndex) {
+        return view.getBookAuthor(bookIndex);
+    }
+
+    /**
+     * getView
+     *
+     * Get an unchanging view of the titles and authors of the catalog as
+     * it is now. Reading several books from one view is consistent even if
+     * books are changed meanwhile, and takes no lock.
+     *
+     * @return the view
+     */
+    public CatalogView getView() {
+        return view;
+    }
+
+    /**
+     * getBookCopies
+     *
+     * Get the amount of copies of a book the library owns.
+     *
+     * @param bookIndex the index of the book
+     * @return          the amount of copies
+     */
+    public int getBookCopies(int bookIndex) {
+        return bookCopies[bookIndex];
+    }
+
+    /**
+     * getBooksOnLoan
+     *
+     * Get the amount of copies of a book out on loan.
+     *
+     * @param bookIndex the index of the book
+     * @return          the amount of copies out on loan, or -1 if the book
+     *                  was deleted
+     */
+    public int getBooksOnLoan(int bookIndex) {
+        return (int) LOANS.getVolatile(booksOnLoan, bookIndex * 4);
+    }
+
+    /**
+     * setBooksOnLoan
+     *
+     * Set the amount of copies of a book out on loan.
+     *
+     * @param bookIndex the index of the book
+     * @param loans     the amount of copies out on loan
+     */
+    private void setBooksOnLoan(int bookIndex, int loans) {
+        booksOnLoan.putInt(bookIndex * 4, loans);
+    }
+
+    /**
+     * compareText
+     *
+     * Compare two texts in a buffer byte by byte. UTF-8 text compared this
+     * way is in the order of its Unicode code points.
+     *
+     * @param text        the buffer holding both texts
+     * @param start       the position of the first text
+     * @param length      the length of the first text
+     * @param otherStart  the position of the second text
+     * @param otherLength the length of the second text
+     * @return            a negative integer, zero, or a positive integer if
+     *                    the first text is before, the same as, or after
+     *                    the second text
+     */
+    private static int compareText(ByteBuffer text, int start, int length,
+            int otherStart, int otherLength) {
+        int minLength = Math.min(length, otherLength);
+        for (int i = 0; i < minLength; i++) {
+            int comparison = (text.get(start + i) & 0xFF)
+                    - (text.get(otherStart + i) & 0xFF);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - otherLength;
+    }
+
+    /**
+     * textEquals
+     *
+     * Check if the title or author of a book is equal to given text.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @param text      the text as UTF-8
+     * @return          a boolean: true if the text is equal, else false
+     */
+    boolean textEquals(int key, int bookIndex, byte[] text) {
+        if (bookTextLengths[key][bookIndex] != text.length) {
+            return false;
+        }
+
+        int start = bookTextStarts[key][bookIndex];
+        for (int i = 0; i < text.length; i++) {
+            if (bookText.get(start + i) != text[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * hashBookText
+     *
+     * Get the hash of the title or author of a book, the same as the hash
+     * of its UTF-8 text in HashIndex.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the hash of the text
+     */
+    int hashBookText(int key, int bookIndex) {
+        int start = bookTextStarts[key][bookIndex];
+        int end = start + bookTextLengths[key][bookIndex];
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + bookText.get(i);
+        }
+        return hash;
+    }
+
+    /**
+     * getTextStart
+     *
+     * Get the position of the title or author of a book in getTextBuffer.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the position of the text
+     */
+    int getTextStart(int key, int bookIndex) {
+        return bookTextStarts[key][bookIndex];
+    }
+
+    /**
+     * getTextLength
+     *
+     * Get the length of the title or author of a book.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the length of the text in bytes
+     */
+    int getTextLength(int key, int bookIndex) {
+        return bookTextLengths[key][bookIndex];
+    }
+
+    /**
+     * getTextBuffer
+     *
+     * Get the buffer holding the titles and authors of all books as UTF-8.
+     *
+     * @return the buffer
+     */
+    ByteBuffer getTextBuffer() {
+        return bookText;
+    }
+
+    /**
+     * getTextPrefix
+     *
+     * Get the first 8 bytes of the title or author of a book as a number
+     * that compares (unsigned) in the same order as the text.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @return          the prefix, padded with zeros
+     */
+    long getTextPrefix(int key, int bookIndex) {
+        int start = bookTextStarts[key][bookIndex];
+        int length = Math.min(8, bookTextLengths[key][bookIndex]);
+
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix <<= 8;
+            if (i < length) {
+                prefix |= bookText.get(start + i) & 0xFF;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * compareBooks
+     *
+     * Compare the titles or authors of two books, using their prefixes
+     * first.
+     *
+     * @param key      the key (TITLE_KEY or AUTHOR_KEY)
+     * @param prefixes the prefixes of all books' titles or authors
+     * @param book      the index of the first book
+     * @param otherBook the index of the second book
+     * @return          a negative integer, zero, or a positive integer if
+     *                  the first book is before, the same as, or after the
+     *                  second book
+     */
+    private int compareBooks(int key, long[] prefixes, int book,
+            int otherBook) {
+        int comparison = Long.compareUnsigned(prefixes[book],
+                prefixes[otherBook]);
+        if (comparison != 0) {
+            return comparison;
+        }
+
+        // Equal prefixes mean the first 8 bytes (or fewer) are the same
+        int length = bookTextLengths[key][book];
+        int otherLength = bookTextLengths[key][otherBook];
+        int skip = Math.min(8, Math.min(length, otherLength));
+        return compareText(bookText, bookTextStarts[key][book] + skip,
+                length - skip, bookTextStarts[key][otherBook] + skip,
+                otherLength - skip);
+    }
+
+    /**
+     * insertionSort
+     *
+     * Sort a range of an index array alphabetically by the titles or
+     * authors of the books. Used for small ranges of mergeSort.
+     *
+     * @param indexes  the array of indexes to be sorted
+     * @param key      the key (TITLE_KEY or AUTHOR_KEY)
+     * @param prefixes the prefixes of all books' titles or authors
+     * @param start    the start of the range (inclusive)
+     * @param end      the end of the range (exclusive)
+     */
+    void insertionSort(int[] indexes, int key,
+            long[] prefixes, int start, int end) {
+        for (int i = start + 1; i < end; i++) {
+            int index = indexes[i];
+
+            // Shift larger elements right to make room for the element
+            int j = i;
+            while (j > start
+                    && compareBooks(key, prefixes, indexes[j - 1], index) > 0) {
+                indexes[j] = indexes[j - 1];
+                j--;
+            }
+            indexes[j] = index;
+        }
+    }
+
+    /**
+     * mergeSort
+     *
+     * Sort a range of an index array alphabetically by the titles or
+     * authors of the books. The sort is stable, so equal titles or authors
+     * stay in the order of their indexes.
+     *
+     * @param indexes  the array of indexes to be sorted
+     * @param buffer   an array at least as long as indexes used for merging
+     * @param key      the key (TITLE_KEY or AUTHOR_KEY)
+     * @param prefixes the prefixes of all books' titles or authors
+     * @param start    the start of the range (inclusive)
+     * @param end      the end of the range (exclusive)
+     */
+    private void mergeSort(int[] indexes, int[] buffer, int key,
+            long[] prefixes, int start, int end) {
+        // Insertion sort is faster for small ranges
+        if (end - start <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(indexes, key, prefixes, start, end);
+            return;
+        }
+
+        int midpoint = (start + end) >>> 1;
+        mergeSort(indexes, buffer, key, prefixes, start, midpoint);
+        mergeSort(indexes, buffer, key, prefixes, midpoint, end);
+        merge(indexes, buffer, key, prefixes, start, midpoint, end);
+    }
+
+    /**
+     * merge
+     *
+     * Merge two neighbouring sorted ranges of an index array.
+     *
+     * @param indexes  the array of indexes to be merged
+     * @param buffer   an array at least as long as indexes used for merging
+     * @param key      the key (TITLE_KEY or AUTHOR_KEY)
+     * @param prefixes the prefixes of all books' titles or authors
+     * @param start    the start of the left range (inclusive)
+     * @param midpoint the end of the left range and start of the right range
+     * @param end      the end of the right range (exclusive)
+     */
+    private void merge(int[] indexes, int[] buffer, int key,
+            long[] prefixes, int start, int midpoint, int end) {
+        // Ranges are already in order
+        if (compareBooks(key, prefixes, indexes[midpoint - 1],
+                indexes[midpoint]) <= 0) {
+            return;
+        }
+
+        // Only the left range has to be copied out of the way
+        System.arraycopy(indexes, start, buffer, start, midpoint - start);
+
+        int left = start;
+        int right = midpoint;
+        int index = start;
+        while (left < midpoint && right < end) {
+            // Take from the left range on ties to keep the sort stable
+            if (compareBooks(key, prefixes, buffer[left], indexes[right])
+                    <= 0) {
+                indexes[index++] = buffer[left++];
+            } else {
+                indexes[index++] = indexes[right++];
+            }
+        }
+
+        // Copy what remains of the left range (the right range is in place)
+        System.arraycopy(buffer, left, indexes, index, midpoint - left);
+    }
+
+    /**
+     * SortTask
+     *
+     * Sorts a range of an index array by splitting it in parallel until the
+     * ranges are small enough for mergeSort.
+     */
+    private class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] indexes;
+        private final int[] buffer;
+        private final int key;
+        private final long[] prefixes;
+        private final int start;
+        private final int end;
+
+        SortTask(int[] indexes, int[] buffer, int key, long[] prefixes,
+                int start, int end) {
+            this.indexes = indexes;
+            this.buffer = buffer;
+            this.key = key;
+            this.prefixes = prefixes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= PARALLEL_SORT_THRESHOLD) {
+                mergeSort(indexes, buffer, key, prefixes, start, end);
+                return;
+            }
+
+            int midpoint = (start + end) >>> 1;
+            invokeAll(new SortTask(indexes, buffer, key, prefixes, start,
+                    midpoint), new SortTask(indexes, buffer, key, prefixes,
+                    midpoint, end));
+            merge(indexes, buffer, key, prefixes, start, midpoint, end);
+        }
+    }
+
+    /**
+     * getSortTask
+     *
+     * Set up a task that sorts the indexes of books by title or author.
+     *
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @param indexes the array the sorted indexes are stored in
+     * @return        a task sorting the indexes array
+     */
+    private SortTask getSortTask(int key, int[] indexes) {
+        // Start with the indexes in their original order, without deleted
+        // books
+        long[] prefixes = new long[bookElements];
+        int position = 0;
+        for (int i = 0; i < bookElements; i++) {
+            prefixes[i] = getTextPrefix(key, i);
+            if (!isDeleted(i)) {
+                indexes[position++] = i;
+            }
+        }
+        return new SortTask(indexes, new int[indexes.length], key, prefixes,
+                0, indexes.length);
+    }
+
+    /**
+     * sortBooks
+     *
+     * Sort and get the indexes of books sorted by title and by author, and
+     * publish them to readers. The books themselves are left untouched.
+     * Holds logLock, so no book is changed meanwhile, while searches keep
+     * reading the current view and indexes.
+     */
+    public void sortBooks() {
+        synchronized (logLock) {
+            long startTime = metrics.start();
+            long startBytes = metrics.startAllocation();
+            int[][] sortedIndexes = sortBookIndexes();
+            sortedBookTitleIndexes = sortedIndexes[TITLE_KEY];
+            sortedBookAuthorIndexes = sortedIndexes[AUTHOR_KEY];
+            sortedBooks = sortedBookTitleIndexes.length;
+            unsortedCount = 0;
+            removedCount = 0;
+            sortedIndexChanges++;
+            booksSorted = true;
+            publishSortedIndexes();
+            metrics.recordAllocation(CatalogMetrics.SORT_BOOKS, startBytes);
+            metrics.record(CatalogMetrics.SORT_BOOKS, startTime);
+        }
+    }
+
+    /**
+     * sortBookIndexes
+     *
+     * Sort the indexes of books that are not deleted by title and by
+     * author. Must be called holding logLock, as it is held while books
+     * are changed.
+     *
+     * @return the indexes sorted by title and by author
+     */
+    private int[][] sortBookIndexes() {
+        int books = bookElements - deletedBooks;
+        int[] titleIndexes = new int[books];
+        int[] authorIndexes = new int[books];
+        SortTask titleTask = getSortTask(TITLE_KEY, titleIndexes);
+        SortTask authorTask = getSortTask(AUTHOR_KEY, authorIndexes);
+
+        // Sort titles and authors at the same time for large libraries
+        if (books > PARALLEL_SORT_THRESHOLD) {
+            ForkJoinTask.invokeAll(titleTask, authorTask);
+        } else {
+            titleTask.compute();
+            authorTask.compute();
+        }
+
+        int[][] sortedIndexes = new int[2][];
+        sortedIndexes[TITLE_KEY] = titleIndexes;
+        sortedIndexes[AUTHOR_KEY] = authorIndexes;
+        return sortedIndexes;
+    }
+
+    /**
+     * prefixSearch
+     *
+     * Find the books with titles or authors starting with a prefix, in
+     * sorted order. Takes O(log n) to find the books, which are then read
+     * from the sorted index one at a time. Like the sorted order, the
+     * search is case-sensitive. Reads the current view, so it only waits
+     * for a lock if the books have never been sorted.
+     *
+     * @param key    the key to search (TITLE_KEY or AUTHOR_KEY)
+     * @param prefix the prefix
+     * @param limit  the most books to return, or 0 for all of them
+     * @return       the books found, part of the sorted index
+     */
+    public BookList prefixSearch(int key, String prefix, int limit) {
+        long startTime = metrics.startSampled();
+        byte[] text = prefix.getBytes(StandardCharsets.UTF_8);
+        BookList books = getSortedView().findRange(key, text, text, true,
+                limit);
+        metrics.record(CatalogMetrics.PREFIX_SEARCH, startTime);
+        return books;
+    }
+
+    /**
+     * rangeSearch
+     *
+     * Find the books with titles or authors from one text up to, but not
+     * including, another, in sorted order. An empty text leaves that end of
+     * the range open. Reads the current view, like prefixSearch.
+     *
+     * @param key   the key to search (TITLE_KEY or AUTHOR_KEY)
+     * @param from  the first title or author in the range
+     * @param to    the title or author after the range
+     * @param limit the most books to return, or 0 for all of them
+     * @return      the books found, part of the sorted index
+     */
+    public BookList rangeSearch(int key, String from, String to, int limit) {
+        long startTime = metrics.startSampled();
+        BookList books = getSortedView().findRange(key,
+                from.getBytes(StandardCharsets.UTF_8), to.isEmpty() ? null
+                : to.getBytes(StandardCharsets.UTF_8), false, limit);
+        metrics.record(CatalogMetrics.RANGE_SEARCH, startTime);
+        return books;
+    }
+
+    /**
+     * getSortedRange
+     *
+     * Get part of a sorted index as a list of books, without copying it.
+     *
+     * @param indexes the sorted index
+     * @param start   the position of the first book
+     * @param end     the position after the last book
+     * @param limit   the most books to include, or 0 for all of them
+     * @return        the books from start up to end or the limit
+     */
+    private static BookList getSortedRange(int[] indexes, int start, int end,
+            int limit) {
+        if (limit > 0) {
+            end = Math.min(end, start + limit);
+        }
+        return new BookList(indexes, start, end - start);
+    }
+
+    /**
+     * getSortedBooks
+     *
+     * Get all books sorted by title or author, sorting them first if
+     * needed. Books with the same title or author are in order of ID.
+     * Reads the current view, like prefixSearch.
+     *
+     * @param key the key (TITLE_KEY or AUTHOR_KEY)
+     * @return    all books, in sorted order
+     */
+    public BookList getSortedBooks(int key) {
+        CatalogView sorted = getSortedView();
+        return new BookList(sorted.getMergedIndexes(key), 0,
+                sorted.getSortedCount());
+    }
+
+    /**
+     * listBooks
+     *
+     * Get the books from an index on, in order of ID, skipping deleted
+     * books.
+     *
+     * @param first the index of the first book
+     * @param limit the most books to return, or 0 for all of them
+     * @return      the books found
+     */
+    public BookList listBooks(int first, int limit) {
+        int end = bookElements;
+        BookList books = new BookList(limit > 0 ? Math.min(limit,
+                INITIAL_RESULTS) : getBookCount());
+        for (int i = first; i < end
+                && (limit == 0 || books.size() < limit); i++) {
+            if (!isDeleted(i)) {
+                books.add(i);
+            }
+        }
+        return books;
+    }
+
+    /**
+     * getSortedView
+     *
+     * Get the current view, sorting the books first if they have not been
+     * sorted since they were set up. Sorting holds logLock rather than
+     * searchLock, so other searches go on meanwhile.
+     *
+     * @return the view, which has sorted indexes
+     */
+    private CatalogView getSortedView() {
+        CatalogView current = view;
+        if (current.sortedIndexes == null) {
+            synchronized (logLock) {
+                if (!booksSorted) {
+                    sortBooks();
+                }
+                current = view;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * publishView
+     *
+     * Publish a new view after a book was changed. Only the chunk holding
+     * the book is copied, unless the text was compacted into a new buffer,
+     * which moves every book. The view is published before a new book is
+     * counted, so readers can always read the books counted.
+     *
+     * @param bookIndex the index of the book, or -1 to copy every chunk
+     * @param books     the amount of book slots
+     */
+    private void publishView(int bookIndex, int books) {
+        CatalogView current = view;
+        int chunks = (books + VIEW_CHUNK_SIZE - 1) >>> VIEW_CHUNK_BITS;
+        int[][] columns;
+
+        if (bookIndex < 0 || current.text != bookText) {
+            columns = new int[chunks][];
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                columns[chunk] = new int[VIEW_CHUNK_SIZE * 4];
+                int first = chunk << VIEW_CHUNK_BITS;
+                for (int i = first; i < Math.min(books,
+                        first + VIEW_CHUNK_SIZE); i++) {
+                    setViewColumns(columns[chunk], i);
+                }
+            }
+        } else {
+            int chunk = bookIndex >>> VIEW_CHUNK_BITS;
+            columns = Arrays.copyOf(current.columns, chunks);
+            columns[chunk] = chunk < current.columns.length
+                    ? current.columns[chunk].clone()
+                    : new int[VIEW_CHUNK_SIZE * 4];
+            setViewColumns(columns[chunk], bookIndex);
+        }
+
+        view = new CatalogView(bookText, columns, books,
+                books - deletedBooks, getViewIndexes(), sortedBooks,
+                getViewUnsortedBooks(), getViewRemovedEntries());
+    }
+
+    /**
+     * setViewColumns
+     *
+     * Copy the position and length of the title and author of a book to a
+     * chunk of a new view.
+     *
+     * @param chunk     the chunk holding the book
+     * @param bookIndex the index of the book
+     */
+    private void setViewColumns(int[] chunk, int bookIndex) {
+        int offset = (bookIndex & (VIEW_CHUNK_SIZE - 1)) * 4;
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            chunk[offset + key * 2] = bookTextStarts[key][bookIndex];
+            chunk[offset + key * 2 + 1] = bookTextLengths[key][bookIndex];
+        }
+    }
+
+    /**
+     * publishSortedIndexes
+     *
+     * Publish a new view after the sorted indexes changed, sharing the
+     * columns of the current one.
+     */
+    private void publishSortedIndexes() {
+        CatalogView current = view;
+        view = new CatalogView(current.text, current.columns, current.books,
+                current.bookCount, getViewIndexes(), sortedBooks,
+                getViewUnsortedBooks(), getViewRemovedEntries());
+    }
+
+    /**
+     * getViewIndexes
+     *
+     * Get the sorted indexes for a new view.
+     *
+     * @return the sorted indexes by title and by author, or null if the
+     *         books are not sorted
+     */
+    private int[][] getViewIndexes() {
+        return booksSorted ? new int[][] {sortedBookTitleIndexes,
+                sortedBookAuthorIndexes} : null;
+    }
+
+    /**
+     * getViewUnsortedBooks
+     *
+     * Copy the books waiting to be merged into the sorted indexes for a
+     * new view.
+     *
+     * @return the waiting books sorted by title and by author
+     */
+    private int[][] getViewUnsortedBooks() {
+        return new int[][] {Arrays.copyOf(unsortedBooks[TITLE_KEY],
+                unsortedCount), Arrays.copyOf(unsortedBooks[AUTHOR_KEY],
+                unsortedCount)};
+    }
+
+    /**
+     * getViewRemovedEntries
+     *
+     * Copy the positions of the removed entries of the sorted indexes for
+     * a new view.
+     *
+     * @return the removed positions by title and by author, in order
+     */
+    private int[][] getViewRemovedEntries() {
+        return new int[][] {Arrays.copyOf(removedEntries[TITLE_KEY],
+                removedCount), Arrays.copyOf(removedEntries[AUTHOR_KEY],
+                removedCount)};
+    }
+
+    /**
+     * mergeSortedIndex
+     *
+     * Merge books into a sorted index array, giving a new array. The books
+     * are sorted by binary insertion, then the position of each one in the
+     * index is found with a binary search, so the entries in between are
+     * copied in blocks. Merging k books into n entries takes O(k log n)
+     * comparisons. Only reads the arrays and view given, so it can run
+     * without holding a lock.
+     *
+     * @param indexes the sorted index array
+     * @param count   the amount of entries used in the array
+     * @param books   the books to merge, none of which are in the array
+     * @param view    the view to read titles or authors from
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @return        a new sorted index array holding every book
+     */
+    private static int[] mergeSortedIndex(int[] indexes, int count,
+            int[] books, CatalogView view, int key) {
+        int[] sortedBooks = new int[books.length];
+        for (int i = 0; i < books.length; i++) {
+            int position = findIndexPosition(sortedBooks, 0, i, books[i],
+                    view, key);
+            System.arraycopy(sortedBooks, position, sortedBooks,
+                    position + 1, i - position);
+            sortedBooks[position] = books[i];
+        }
+
+        // Copy the entries before each book, then the book
+        int[] merged = new int[count + books.length];
+        int from = 0;
+        int to = 0;
+        for (int book : sortedBooks) {
+            int position = findIndexPosition(indexes, from, count, book,
+                    view, key);
+            System.arraycopy(indexes, from, merged, to, position - from);
+            to += position - from;
+            merged[to++] = book;
+            from = position;
+        }
+        System.arraycopy(indexes, from, merged, to, count - from);
+        return merged;
+    }
+
+    /**
+     * findIndexPosition
+     *
+     * Binary search a range of a sorted index array for where a book
+     * belongs. Books with equal text are ordered by their index.
+     *
+     * @param indexes the sorted index array
+     * @param low     the start of the range (inclusive)
+     * @param high    the end of the range (exclusive)
+     * @param book    the index of the book
+     * @param view    the view to read titles or authors from
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @return        the position the book belongs at
+     */
+    private static int findIndexPosition(int[] indexes, int low, int high,
+            int book, CatalogView view, int key) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (view.compareBooks(key, indexes[middle], book) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * addUnsortedBook
+     *
+     * Add a book to the books waiting to be merged into the sorted indexes,
+     * at its place in the waiting books sorted by title and by author.
+     *
+     * @param bookIndex the index of the book
+     */
+    private void addUnsortedBook(int bookIndex) {
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            if (unsortedCount == unsortedBooks[key].length) {
+                unsortedBooks[key] = Arrays.copyOf(unsortedBooks[key],
+                        unsortedCount * 2);
+            }
+            int[] books = unsortedBooks[key];
+            int start = bookTextStarts[key][bookIndex];
+            int length = bookTextLengths[key][bookIndex];
+
+            int low = 0;
+            int high = unsortedCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compareSortedEntries(key, books[middle], start, length,
+                        bookIndex) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            System.arraycopy(books, low, books, low + 1, unsortedCount - low);
+            books[low] = bookIndex;
+        }
+        unsortedCount++;
+    }
+
+    /**
+     * removeUnsortedBook
+     *
+     * Remove a book from the books waiting to be merged into the sorted
+     * indexes.
+     *
+     * @param bookIndex the index of the book
+     * @return          true if the book was waiting, else false
+     */
+    private boolean removeUnsortedBook(int bookIndex) {
+        if (!isUnsorted(bookIndex)) {
+            return false;
+        }
+        for (int[] books : unsortedBooks) {
+            int i = 0;
+            while (books[i] != bookIndex) {
+                i++;
+            }
+            System.arraycopy(books, i + 1, books, i, unsortedCount - i - 1);
+        }
+        unsortedCount--;
+        return true;
+    }
+
+    /**
+     * removeSortedBook
+     *
+     * Remove a book that is about to be deleted or replaced from the books
+     * waiting to be merged into the sorted indexes, or else mark its
+     * entries in the sorted indexes as removed. The entries are found in
+     * the current view, which still has the book's text, and the indexes
+     * themselves are left untouched.
+     *
+     * @param bookIndex the index of the book
+     */
+    private void removeSortedBook(int bookIndex) {
+        if (!booksSorted) {
+            return;
+        }
+        if (compacting) {
+            if (compactionChangeCount == compactionChanges.length) {
+                compactionChanges = Arrays.copyOf(compactionChanges,
+                        compactionChangeCount * 2);
+            }
+            compactionChanges[compactionChangeCount++] = bookIndex;
+        }
+        if (removeUnsortedBook(bookIndex)) {
+            return;
+        }
+
+        CatalogView current = view;
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            addRemovedEntry(key, current.findSortedEntry(key, bookIndex));
+        }
+        removedCount++;
+    }
+
+    /**
+     * addRemovedEntry
+     *
+     * Add a position to the removed entries of a sorted index, in order.
+     * removedCount is increased by the caller once both keys are added.
+     *
+     * @param key      the key (TITLE_KEY or AUTHOR_KEY)
+     * @param position the position of the entry in the sorted index
+     */
+    private void addRemovedEntry(int key, int position) {
+        if (removedCount == removedEntries[key].length) {
+            removedEntries[key] = Arrays.copyOf(removedEntries[key],
+                    removedCount * 2);
+        }
+        int[] entries = removedEntries[key];
+        int low = -Arrays.binarySearch(entries, 0, removedCount, position)
+                - 1;
+        System.arraycopy(entries, low, entries, low + 1, removedCount - low);
+        entries[low] = position;
+    }
+
+    /**
+     * isUnsorted
+     *
+     * Check if a book is waiting to be merged into the sorted indexes.
+     *
+     * @param bookIndex the index of the book
+     * @return          true if the book is waiting, else false
+     */
+    private boolean isUnsorted(int bookIndex) {
+        int[] books = unsortedBooks[TITLE_KEY];
+        for (int i = 0; i < unsortedCount; i++) {
+            if (books[i] == bookIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * startCompaction
+     *
+     * Start merging the books waiting to be merged into the sorted indexes
+     * and dropping their removed entries in the background, if enough
+     * are waiting or removed and no compaction is running already.
+     */
+    private void startCompaction() {
+        if (compacting || !booksSorted
+                || unsortedCount + removedCount < COMPACTION_THRESHOLD) {
+            return;
+        }
+        compacting = true;
+        compactionChangeCount = 0;
+        COMPACTION_EXECUTOR.execute(new Compaction());
+    }
+
+    /**
+     * Compaction
+     *
+     * Merges the books waiting to be merged into the sorted indexes without
+     * holding a lock, so searches keep using the current indexes meanwhile.
+     * Created holding the write lock of searchLock, reading from the view
+     * current then, which never changes. The result is dropped if
+     * sortedIndexChanges moves meanwhile. Books added meanwhile stay waiting
+     * for the next merge, and books deleted or replaced meanwhile have
+     * their entries in the result removed.
+     */
+    private class Compaction implements Runnable {
+        private final CatalogView snapshot = view;
+        private final long changes = sortedIndexChanges;
+
+        @Override
+        public void run() {
+            long startTime = metrics.start();
+            int[] titleIndexes = snapshot.getMergedIndexes(TITLE_KEY);
+            int[] authorIndexes = snapshot.getMergedIndexes(AUTHOR_KEY);
+            int[] merged = snapshot.unsortedBooks[TITLE_KEY].clone();
+            Arrays.sort(merged);
+
+            synchronized (logLock) {
+                searchLock.writeLock().lock();
+                try {
+                    compacting = false;
+                    if (sortedIndexChanges == changes) {
+                        sortedBookTitleIndexes = titleIndexes;
+                        sortedBookAuthorIndexes = authorIndexes;
+                        sortedBooks = snapshot.getSortedCount();
+                        removedCount = 0;
+                        int[] changed = Arrays.copyOf(compactionChanges,
+                                compactionChangeCount);
+                        Arrays.sort(changed);
+                        removeMergedBooks(merged, changed);
+                        removeChangedEntries(snapshot, changed);
+                        sortedIndexChanges++;
+                        publishSortedIndexes();
+                    }
+                } finally {
+                    searchLock.writeLock().unlock();
+                }
+            }
+            metrics.record(CatalogMetrics.COMPACT, startTime);
+        }
+    }
+
+    /**
+     * removeMergedBooks
+     *
+     * Remove the books merged by a compaction from the books waiting to be
+     * merged, keeping the books added meanwhile. Books replaced meanwhile
+     * wait again with their new text, so they are kept too.
+     *
+     * @param merged  the books merged, in order of index
+     * @param changed the books deleted or replaced meanwhile, in order of
+     *                index
+     */
+    private void removeMergedBooks(int[] merged, int[] changed) {
+        int count = 0;
+        for (int[] books : unsortedBooks) {
+            count = 0;
+            for (int i = 0; i < unsortedCount; i++) {
+                if (Arrays.binarySearch(merged, books[i]) < 0
+                        || Arrays.binarySearch(changed, books[i]) >= 0) {
+                    books[count++] = books[i];
+                }
+            }
+        }
+        unsortedCount = count;
+    }
+
+    /**
+     * removeChangedEntries
+     *
+     * Mark the entries of books deleted or replaced during a compaction as
+     * removed in its result. The result was sorted by the text the books
+     * had in the compaction's view, so their entries are found there.
+     *
+     * @param snapshot the view the compaction read from
+     * @param changed  the books deleted or replaced meanwhile, in order of
+     *                 index
+     */
+    private void removeChangedEntries(CatalogView snapshot, int[] changed) {
+        int[][] indexes = {sortedBookTitleIndexes, sortedBookAuthorIndexes};
+        for (int i = 0; i < changed.length; i++) {
+            int book = changed[i];
+            if ((i > 0 && book == changed[i - 1])
+                    || book >= snapshot.getBookSlots()) {
+                continue;
+            }
+
+            int[] positions = new int[2];
+            for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+                positions[key] = findIndexPosition(indexes[key], 0,
+                        sortedBooks, book, snapshot, key);
+            }
+            if (positions[TITLE_KEY] < sortedBooks
+                    && indexes[TITLE_KEY][positions[TITLE_KEY]] == book) {
+                addRemovedEntry(TITLE_KEY, positions[TITLE_KEY]);
+                addRemovedEntry(AUTHOR_KEY, positions[AUTHOR_KEY]);
+                removedCount++;
+            }
+        }
+    }
+
+    /**
+     * compareSortedEntries
+     *
+     * Compare a book in a sorted index array to a text and index. Entries
+     * with equal text are ordered by their index, which is the order
+     * sortBooks leaves them in.
+     *
+     * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex the index of the book
+     * @param start     the position of the text in bookText
+     * @param length    the length of the text
+     * @param index     the index the text belongs to
+     * @return          a negative integer, zero, or a positive integer if
+     *                  the book is before, the same as, or after the text
+     */
+    private int compareSortedEntries(int key, int bookIndex,
+            int start, int length, int index) {
+        int comparison = compareText(bookText,
+                bookTextStarts[key][bookIndex],
+                bookTextLengths[key][bookIndex], start, length);
+        return comparison != 0 ? comparison : Integer.compare(bookIndex,
+                index);
+    }
+
+    /**
+     * search
+     *
+     * Search the titles or authors of books.
+     *
+     * @param key   the key to search (TITLE_KEY or AUTHOR_KEY), ignored by
+     *              SEARCH_WORDS, which searches both
+     * @param query the search query
+     * @param mode  how the query is matched: SEARCH_CONTAINS, SEARCH_EXACT,
+     *              SEARCH_PREFIX, SEARCH_FUZZY or SEARCH_WORDS
+     * @return      the books found, in order of ID, or in sorted order for
+     *              SEARCH_PREFIX and closest first for SEARCH_FUZZY
+     * @throws IllegalArgumentException if the mode or a SEARCH_WORDS query
+     *                                  is not valid
+     */
+    public BookList search(int key, String query, int mode) {
+        if (mode < SEARCH_CONTAINS || mode > SEARCH_WORDS) {
+            throw new IllegalArgumentException("Unknown search mode");
+        }
+        long startTime = metrics.startSampled();
+
+        try {
+            String cacheKey = getQueryCacheKey(key, query, mode);
+            BookList cached = getCachedResult(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+
+            // Prefix searches read the view, so they take no lock once the
+            // books are sorted. The generation is read first, so a book
+            // changed meanwhile makes the result stale rather than cached
+            // as current
+            if (mode == SEARCH_PREFIX) {
+                long resultGeneration = generation;
+                byte[] prefix = query.getBytes(StandardCharsets.UTF_8);
+                return cacheResult(cacheKey, getSortedView().findRange(key,
+                        prefix, prefix, true, 0), resultGeneration);
+            }
+
+            lockSearch(mode, key);
+            try {
+                BookList results = switch (mode) {
+                    case SEARCH_CONTAINS -> substringSearch(key, query);
+                    case SEARCH_EXACT -> hashIndex.search(key, query);
+                    case SEARCH_FUZZY -> findClosestBooks(key, query,
+                            FUZZY_RESULTS);
+                    default -> booleanSearch(query);
+                };
+                return cacheResult(cacheKey, results, generation);
+            } finally {
+                searchLock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(SEARCH_OPERATIONS[mode], startTime);
+        }
+    }
+
+    /**
+     * getQueryCacheKey
+     *
+     * Get the key of a search in the query cache. Searches that ignore
+     * case share a key regardless of the case of their query.
+     *
+     * @param key   the key to search (TITLE_KEY or AUTHOR_KEY)
+     * @param query the search query
+     * @param mode  how the query is matched
+     * @return      the cache key
+     */
+    private static String getQueryCacheKey(int key, String query, int mode) {
+        StringBuilder cacheKey = new StringBuilder(query.length() + 4);
+        cacheKey.append((char) ('0' + mode)).append((char) ('0'
+                + (mode == SEARCH_WORDS ? 0 : key))).append('\t');
+        if (mode == SEARCH_CONTAINS || mode == SEARCH_FUZZY) {
+            for (int i = 0; i < query.length(); i++) {
+                cacheKey.append(FoldedKeys.foldCase(query.charAt(i)));
+            }
+        } else {
+            cacheKey.append(query);
+        }
+        return cacheKey.toString();
+    }
+
+    /**
+     * getCachedResult
+     *
+     * Get the result of a search from the query cache, if it is there and
+     * was found in the current generation of the catalog. A stale result
+     * is removed.
+     *
+     * @param cacheKey the key of the search
+     * @return         the books found, or null if the search is not cached
+     */
+    private BookList getCachedResult(String cacheKey) {
+        synchronized (queryCache) {
+            if (queryCacheEntries == 0) {
+                return null;
+            }
+            CachedResult cached = queryCache.get(cacheKey);
+            if (cached != null && cached.generation == generation) {
+                queryCacheHits++;
+                return cached.books;
+            }
+            queryCacheMisses++;
+            if (cached != null) {
+                removeCachedResult(cacheKey, cached);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * cacheResult
+     *
+     * Keep a copy of a search result trimmed to its books, evicting the
+     * least recently used results if the cache is full. Results too large
+     * to keep, or found while the cache is off, are returned as they are.
+     *
+     * @param cacheKey         the key of the search
+     * @param results          the books found
+     * @param resultGeneration the generation of the catalog they were found
+     *                         in
+     * @return                 the copy, which is returned on later hits
+     */
+    private BookList cacheResult(String cacheKey, BookList results,
+            long resultGeneration) {
+        if (results.length > QUERY_CACHE_MAX_RESULTS) {
+            return results;
+        }
+        synchronized (queryCache) {
+            if (queryCacheEntries == 0) {
+                return results;
+            }
+            BookList books = new BookList(Arrays.copyOfRange(results.books,
+                    results.start, results.start + results.length), 0,
+                    results.length);
+
+            // Another thread may have cached the same search meanwhile
+            CachedResult replaced = queryCache.put(cacheKey,
+                    new CachedResult(books, resultGeneration));
+            if (replaced != null) {
+                queryCacheBytes -= getCachedResultBytes(cacheKey,
+                        replaced.books);
+            }
+            queryCacheBytes += getCachedResultBytes(cacheKey, books);
+            evictCachedResults();
+            return books;
+        }
+    }
+
+    /**
+     * evictCachedResults
+     *
+     * Remove the least recently used results from the query cache until it
+     * is within its size and memory limits. Must be called holding the
+     * cache's lock.
+     */
+    private void evictCachedResults() {
+        Iterator<Map.Entry<String, CachedResult>> entries =
+                queryCache.entrySet().iterator();
+        while (queryCache.size() > queryCacheEntries
+                || queryCacheBytes > QUERY_CACHE_MAX_BYTES) {
+            Map.Entry<String, CachedResult> eldest = entries.next();
+            queryCacheBytes -= getCachedResultBytes(eldest.getKey(),
+                    eldest.getValue().books);
+            entries.remove();
+            queryCacheEvictions++;
+        }
+    }
+
+    /**
+     * removeCachedResult
+     *
+     * Remove a stale result from the query cache. Must be called holding
+     * the cache's lock.
+     *
+     * @param cacheKey the key of the search
+     * @param cached   the stale result
+     */
+    private void removeCachedResult(String cacheKey, CachedResult cached) {
+        queryCache.remove(cacheKey);
+        queryCacheBytes -= getCachedResultBytes(cacheKey, cached.books);
+    }
+
+    /**
+     * getCachedResultBytes
+     *
+     * Estimate the memory used by a result in the query cache.
+     *
+     * @param cacheKey the key of the search
+     * @param books    the books found
+     * @return         the estimated memory in bytes
+     */
+    private static long getCachedResultBytes(String cacheKey, BookList books) {
+        return QUERY_CACHE_ENTRY_BYTES + 2L * cacheKey.length()
+                + 4L * books.books.length;
+    }
+
+    /**
+     * clearQueryCache
+     *
+     * Remove all results from the query cache.
+     */
+    private void clearQueryCache() {
+        synchronized (queryCache) {
+            queryCache.clear();
+            queryCacheBytes = 0;
+        }
+    }
+
+    /**
+     * setQueryCacheSize
+     *
+     * Set how many search results are kept in the query cache, evicting
+     * the least recently used ones if there are more.
+     *
+     * @param entries the amount of results, or 0 to turn the cache off
+     */
+    public void setQueryCacheSize(int entries) {
+        synchronized (queryCache) {
+            queryCacheEntries = Math.max(entries, 0);
+            evictCachedResults();
+        }
+    }
+
+    /**
+     * getQueryCacheHits
+     *
+     * Get the amount of searches answered from the query cache.
+     *
+     * @return the amount of searches
+     */
+    public long getQueryCacheHits() {
+        synchronized (queryCache) {
+            return queryCacheHits;
+        }
+    }
+
+    /**
+     * getQueryCacheMisses
+     *
+     * Get the amount of searches that were not in the query cache while it
+     * was turned on.
+     *
+     * @return the amount of searches
+     */
+    public long getQueryCacheMisses() {
+        synchronized (queryCache) {
+            return queryCacheMisses;
+        }
+    }
+
+    /**
+     * getQueryCacheEvictions
+     *
+     * Get the amount of results evicted from the query cache to make room
+     * for others.
+     *
+     * @return the amount of results
+     */
+    public long getQueryCacheEvictions() {
+        synchronized (queryCache) {
+            return queryCacheEvictions;
+        }
+    }
+
+    /**
+     * getQueryCacheBytes
+     *
+     * Estimate the memory used by the query cache.
+     *
+     * @return the memory in bytes
+     */
+    public long getQueryCacheBytes() {
+        synchronized (queryCache) {
+            return queryCacheBytes;
+        }
+    }
+
+    /**
+     * CachedResult
+     *
+     * A search result in the query cache and the generation of the catalog
+     * it was found in.
+     */
+    private static class CachedResult {
+        private final BookList books;
+        private final long generation;
+
+        CachedResult(BookList books, long generation) {
+            this.books = books;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * SearchBuffers
+     *
+     * Buffers a thread reuses between its searches: the candidate books of
+     * a trigram search, the query trigrams each book contains, and rows of
+     * edit distances.
+     */
+    static class SearchBuffers {
+        int[] candidates = new int[0];
+        short[] fuzzyCounts = new short[0];
+        int[] fuzzyRow = new int[0];
+        int[] fuzzyPreviousRow = new int[0];
+    }
+
+    /**
+     * lockSearch
+     *
+     * Take the read lock of searchLock for a search, first building the
+     * indexes it uses if they are not built yet. Indexes are built holding
+     * the write lock, which is then exchanged for the read lock so no book
+     * can change in between.
+     *
+     * @param mode how the query is matched: SEARCH_CONTAINS, SEARCH_EXACT,
+     *             SEARCH_FUZZY or SEARCH_WORDS
+     * @param key  the key to search (TITLE_KEY or AUTHOR_KEY)
+     */
+    private void lockSearch(int mode, int key) {
+        searchLock.readLock().lock();
+        if (searchIndexesBuilt(mode, key)) {
+            return;
+        }
+        searchLock.readLock().unlock();
+
+        searchLock.writeLock().lock();
+        try {
+            if (mode == SEARCH_EXACT) {
+                ensureHashIndexes();
+            } else if (mode == SEARCH_WORDS) {
+                ensureFoldedKeys();
+                for (int i = TITLE_KEY; i <= AUTHOR_KEY; i++) {
+                    if (!wordIndexes[i].isBuilt()) {
+                        buildWordIndex(i);
+                    }
+                }
+            } else {
+                ensureFoldedKeys();
+                if (bookElements >= TRIGRAM_INDEX_THRESHOLD
+                        && !trigramIndexes[key].isBuilt()) {
+                    buildTrigramIndex(key);
+                }
+            }
+            searchLock.readLock().lock();
+        } finally {
+            searchLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * searchIndexesBuilt
+     *
+     * Check if the indexes a search uses are built. Substring and fuzzy
+     * searches use the case-folded keys, and the trigram index of the key
+     * in large libraries, and boolean searches use the word indexes of
+     * both keys.
+     *
+     * @param mode how the query is matched
+     * @param key  the key to search (TITLE_KEY or AUTHOR_KEY)
+     * @return     true if the indexes are built, else false
+     */
+    private boolean searchIndexesBuilt(int mode, int key) {
+        return switch (mode) {
+            case SEARCH_EXACT -> hashIndex.isBuilt();
+            case SEARCH_WORDS -> foldedKeys.isBuilt()
+                    && wordIndexes[TITLE_KEY].isBuilt()
+                    && wordIndexes[AUTHOR_KEY].isBuilt();
+            default -> foldedKeys.isBuilt()
+                    && (bookElements < TRIGRAM_INDEX_THRESHOLD
+                    || trigramIndexes[key].isBuilt());
+        };
+    }
+
+    /**
+     * substringSearch
+     *
+     * Given a query, search if any title or author contains it, ignoring
+     * case. Large libraries narrow down the books to check with a trigram
+     * index first. Called holding the read lock from lockSearch.
+     *
+     * @param key   the key to be searched (TITLE_KEY or AUTHOR_KEY)
+     * @param query the search term/query
+     * @return      the books found, in order of ID
+     */
+    private BookList substringSearch(int key, String query) {
+        // Fold case once so books can be compared to the query directly
+        char[] foldedQuery = FoldedKeys.fold(query);
+
+        // Keep track of search results
+        BookList results = new BookList(INITIAL_RESULTS);
+
+        if (bookElements < TRIGRAM_INDEX_THRESHOLD || foldedQuery.length < 3) {
+            // Search if element in search array contains the query
+            for (int i = 0; i < bookElements; i++) {
+                if (!isDeleted(i) && foldedKeys.contains(key, i, foldedQuery)) {
+                    results.add(i);
+                }
+            }
+        } else {
+            // Only check books containing every trigram of the query
+            TrigramIndex index = trigramIndexes[key];
+            SearchBuffers buffers = searchBuffers.get();
+            int candidates = index.findCandidates(foldedQuery, buffers);
+            for (int i = 0; i < candidates; i++) {
+                int book = buffers.candidates[i];
+
+                // Replaced books are checked below
+                if (!index.isReplaced(book)
+                        && foldedKeys.contains(key, book, foldedQuery)) {
+                    results.add(book);
+                }
+            }
+
+            // Books replaced since the index was built may match anything
+            int[] replacedBooks = index.getReplacedBooks();
+            int replacedCount = index.getReplacedCount();
+            for (int i = 0; i < replacedCount; i++) {
+                if (foldedKeys.contains(key, replacedBooks[i], foldedQuery)) {
+                    results.add(replacedBooks[i]);
+                }
+            }
+
+            // List results in the order of their IDs
+            if (replacedCount > 0) {
+                results.sort();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * fuzzySearch
+     *
+     * Find the titles or authors closest to a query, ignoring case, allowing
+     * a few typos. Books are ranked by their edit distance to the query,
+     * then by ID.
+     *
+     * @param key   the key to search (TITLE_KEY or AUTHOR_KEY)
+     * @param query the search query
+     * @param limit the most books to return, at least 1
+     * @return      the closest books, closest first
+     * @throws IllegalArgumentException if the limit is less than 1
+     */
+    public BookList fuzzySearch(int key, String query, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be at least 1");
+        }
+        long startTime = metrics.start();
+        lockSearch(SEARCH_FUZZY, key);
+        try {
+            BookList books = findClosestBooks(key, query, limit);
+            metrics.record(CatalogMetrics.FUZZY_SEARCH, startTime);
+            return books;
+        } finally {
+            searchLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * findClosestBooks
+     *
+     * Find the titles or authors closest to a query, ignoring case, allowing
+     * a few typos. Books are ranked by their edit distance (the amount of
+     * characters inserted, removed or changed) to the query, then by ID.
+     *
+     * Large libraries use the trigram index to find candidates: each typo
+     * changes at most 3 trigrams, so a match must contain most of the
+     * query's trigrams. Candidates are counted from the shortest posting
+     * lists, and only books that can still have enough trigrams are checked
+     * with the edit distance. Queries too short to filter by trigrams only
+     * check books of a similar length. Called holding the read lock from
+     * lockSearch, with this thread's own buffers.
+     *
+     * @param key   the key to be searched (TITLE_KEY or AUTHOR_KEY)
+     * @param query the search term/query
+     * @param limit the most books to return
+     * @return      the closest books, closest first
+     */
+    private BookList findClosestBooks(int key, String query, int limit) {
+        SearchBuffers buffers = searchBuffers.get();
+        char[] foldedQuery = FoldedKeys.fold(query);
+        int maxDistance = getFuzzyDistance(foldedQuery.length);
+
+        // Closest books so far, closest first. No more can be found than
+        // there are books
+        limit = Math.min(limit, bookElements - deletedBooks);
+        int[] books = new int[limit];
+        int[] distances = new int[limit];
+        int found = 0;
+
+        if (bookElements < TRIGRAM_INDEX_THRESHOLD) {
+            for (int i = 0; i < bookElements; i++) {
+                found = checkFuzzyMatch(key, i, foldedQuery, maxDistance,
+                        books, distances, found, buffers);
+            }
+            return new BookList(books, 0, found);
+        }
+
+        // Find the slots of the query's distinct trigrams, shortest first
+        TrigramIndex index = trigramIndexes[key];
+        int trigrams = 0;
+        int[] slots = new int[Math.max(foldedQuery.length - 2, 0)];
+        for (int i = 0; i < slots.length; i++) {
+            long trigram = TrigramIndex.getTrigram(foldedQuery, i);
+            boolean repeated = false;
+            for (int j = 0; j < i; j++) {
+                repeated |= TrigramIndex.getTrigram(foldedQuery, j)
+                        == trigram;
+            }
+            if (!repeated) {
+                slots[trigrams++] = index.findSlot(trigram, false);
+            }
+        }
+        long[] sortedSlots = new long[trigrams];
+        for (int i = 0; i < trigrams; i++) {
+            long postingBooks = slots[i] < 0 ? 0
+                    : index.getPostingBooks(slots[i]);
+            sortedSlots[i] = postingBooks << 32 | (slots[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(sortedSlots);
+
+        // Trigrams a match must contain
+        int required = trigrams - 3 * maxDistance;
+
+        if (required <= 0) {
+            // Check books of a similar length
+            int[] order = index.getLengthOrder();
+            int[] starts = index.getLengthStarts();
+            int minLength = Math.max(foldedQuery.length - maxDistance, 0);
+            int maxLength = Math.min(foldedQuery.length + maxDistance,
+                    starts.length - 2);
+            for (int length = minLength; length <= maxLength; length++) {
+                for (int i = starts[length]; i < starts[length + 1]; i++) {
+                    if (!index.isReplaced(order[i])) {
+                        found = checkFuzzyMatch(key, order[i], foldedQuery,
+                                maxDistance, books, distances, found,
+                                buffers);
+                    }
+                }
+            }
+        } else {
+            if (buffers.fuzzyCounts.length < bookElements) {
+                buffers.fuzzyCounts = new short[bookElements];
+            }
+            short[] fuzzyCounts = buffers.fuzzyCounts;
+
+            // Count trigrams in books, starting from the shortest posting
+            // lists. Books not in the first lists can't have enough left
+            int candidates = 0;
+            int counted = 0;
+            while (counted < trigrams) {
+                int slot = (int) sortedSlots[counted];
+                if (slot < 0) {
+                    counted++;
+                    continue;
+                }
+
+                // Check candidates directly once the lists get much longer
+                boolean addBooks = counted <= trigrams - required;
+                if (!addBooks && index.getPostingBooks(slot)
+                        > candidates * 8L) {
+                    break;
+                }
+                candidates = index.countFuzzyTrigrams(slot, addBooks,
+                        candidates, buffers);
+                counted++;
+            }
+
+            // Check candidates that can still have enough trigrams
+            int uncounted = trigrams - counted;
+            for (int i = 0; i < candidates; i++) {
+                int book = buffers.candidates[i];
+                if (fuzzyCounts[book] + uncounted >= required
+                        && !index.isReplaced(book)) {
+                    found = checkFuzzyMatch(key, book, foldedQuery,
+                            maxDistance, books, distances, found, buffers);
+                }
+                fuzzyCounts[book] = 0;
+            }
+        }
+
+        // Books replaced since the index was built may match anything
+        int[] replacedBooks = index.getReplacedBooks();
+        for (int i = 0; i < index.getReplacedCount(); i++) {
+            found = checkFuzzyMatch(key, replacedBooks[i], foldedQuery,
+                    maxDistance, books, distances, found, buffers);
+        }
+        return new BookList(books, 0, found);
+    }
+
+    /**
+     * getFuzzyDistance
+     *
+     * Get the most typos a fuzzy search allows for a query length.
+     *
+     * @param length the length of the query
+     * @return       the largest edit distance of a match
+     */
+    private static int getFuzzyDistance(int length) {
+        if (length <= 4) {
+            return 1;
+        } else if (length <= 20) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * checkFuzzyMatch
+     *
+     * Check the edit distance between a book and a query, and add the book
+     * to the closest books found if it is close enough.
+     *
+     * @param key         the key (TITLE_KEY or AUTHOR_KEY)
+     * @param bookIndex   the index of the book
+     * @param foldedQuery the case-folded query
+     * @param maxDistance the largest edit distance of a match
+     * @param books       the closest books found, closest first
+     * @param distances   the edit distances of the closest books
+     * @param found       the amount of closest books found
+     * @param buffers     the search buffers of the thread
+     * @return            the amount of closest books found afterwards
+     */
+    private int checkFuzzyMatch(int key, int bookIndex,
+            char[] foldedQuery, int maxDistance, int[] books, int[] distances,
+            int found, SearchBuffers buffers) {
+        if (isDeleted(bookIndex)) {
+            return found;
+        }
+
+        // Once enough books are found, only closer ones are needed
+        if (found == books.length) {
+            if (found == 0) {
+                return 0;
+            }
+            maxDistance = Math.min(maxDistance, distances[found - 1]);
+        }
+
+        int distance = getEditDistance(foldedKeys.getChars(key),
+                foldedKeys.getStart(key, bookIndex),
+                foldedKeys.getEnd(key, bookIndex), foldedQuery, maxDistance,
+                buffers);
+        if (distance > maxDistance) {
+            return found;
+        }
+
+        // Insert the book in order of distance, then index
+        int position = Math.min(found, books.length - 1);
+        if (found == books.length && (distances[position] < distance
+                || (distances[position] == distance
+                && books[position] < bookIndex))) {
+            return found;
+        }
+        while (position > 0 && (distances[position - 1] > distance
+                || (distances[position - 1] == distance
+                && books[position - 1] > bookIndex))) {
+            books[position] = books[position - 1];
+            distances[position] = distances[position - 1];
+            position--;
+        }
+        books[position] = bookIndex;
+        distances[position] = distance;
+        return Math.min(found + 1, books.length);
+    }
+
+    /**
+     * getEditDistance
+     *
+     * Get the edit distance between case-folded characters and a query,
+     * giving up once it is over a limit. Only the diagonal band of the
+     * distance table within the limit is filled in.
+     *
+     * @param chars       the case-folded characters
+     * @param start       the position of the first character
+     * @param end         the position after the last character
+     * @param foldedQuery the case-folded query
+     * @param maxDistance the limit
+     * @param buffers     the search buffers of the thread
+     * @return            the edit distance, or maxDistance + 1 if it is
+     *                    over the limit
+     */
+    private static int getEditDistance(char[] chars, int start, int end,
+            char[] foldedQuery, int maxDistance, SearchBuffers buffers) {
+        int length = end - start;
+        int queryLength = foldedQuery.length;
+        if (Math.abs(length - queryLength) > maxDistance) {
+            return maxDistance + 1;
+        }
+
+        if (buffers.fuzzyRow.length <= queryLength + 1) {
+            buffers.fuzzyRow = new int[queryLength + 2];
+            buffers.fuzzyPreviousRow = new int[queryLength + 2];
+        }
+        int[] previous = buffers.fuzzyPreviousRow;
+        int[] current = buffers.fuzzyRow;
+        for (int j = 0; j <= queryLength; j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= length; i++) {
+            int from = Math.max(1, i - maxDistance);
+            int to = Math.min(queryLength, i + maxDistance);
+
+            // Cells left of the band are over the limit
+            current[from - 1] = from == 1 ? i : maxDistance + 1;
+            int rowMinimum = current[from - 1];
+
+            char c = chars[start + i - 1];
+            for (int j = from; j <= to; j++) {
+                int cost = c == foldedQuery[j - 1] ? 0 : 1;
+                int distance = Math.min(previous[j - 1] + cost,
+                        Math.min(previous[j], current[j - 1]) + 1);
+                current[j] = distance;
+                rowMinimum = Math.min(rowMinimum, distance);
+            }
+
+            // Cells right of the band are over the limit
+            if (to < queryLength) {
+                current[to + 1] = maxDistance + 1;
+            }
+            if (rowMinimum > maxDistance) {
+                return maxDistance + 1;
+            }
+
+            int[] row = previous;
+            previous = current;
+            current = row;
+        }
+        return Math.min(previous[queryLength], maxDistance + 1);
+    }
+
+    /**
+     * resetSearchIndexes
+     *
+     * Drop the trigram and word indexes so they are built again on the
+     * next search.
+     */
+    private void resetSearchIndexes() {
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            trigramIndexes[key].reset();
+            wordIndexes[key].reset();
+        }
+    }
+
+    /**
+     * buildTrigramIndex
+     *
+     * Build the trigram index of all titles or authors.
+     *
+     * @param key the key to be indexed (TITLE_KEY or AUTHOR_KEY)
+     */
+    private void buildTrigramIndex(int key) {
+        long startTime = metrics.start();
+        long startBytes = metrics.startAllocation();
+        trigramIndexes[key].build(foldedKeys, bookElements);
+        metrics.recordAllocation(CatalogMetrics.BUILD_TRIGRAM_INDEX,
+                startBytes);
+        metrics.record(CatalogMetrics.BUILD_TRIGRAM_INDEX, startTime);
+    }
+
+    /**
+     * buildWordIndex
+     *
+     * Build the word index of all titles or authors.
+     *
+     * @param key the key to be indexed (TITLE_KEY or AUTHOR_KEY)
+     */
+    private void buildWordIndex(int key) {
+        long startTime = metrics.start();
+        long startBytes = metrics.startAllocation();
+        wordIndexes[key].build(foldedKeys, bookElements);
+        metrics.recordAllocation(CatalogMetrics.BUILD_WORD_INDEX, startBytes);
+        metrics.record(CatalogMetrics.BUILD_WORD_INDEX, startTime);
+    }
+
+    /**
+     * indexWords
+     *
+     * Add a book to or remove it from the built word indexes, using its
+     * current case-folded title and author.
+     *
+     * @param bookIndex the index of the book
+     * @param add       true to add the book, false to remove it
+     */
+    private void indexWords(int bookIndex, boolean add) {
+        for (int key = TITLE_KEY; key <= AUTHOR_KEY; key++) {
+            if (wordIndexes[key].isBuilt() && foldedKeys.isBuilt()) {
+                wordIndexes[key].indexBook(foldedKeys, bookIndex, add);
+            }
+        }
+    }
+
+    /**
+     * booleanSearch
+     *
+     * Search titles and authors with a query of words combined with AND,
+     * OR, NOT and parentheses, such as "title:war AND author:tolstoy".
+     * Words next to each other must all match. A word prefixed with title:
+     * or author: only matches that field, otherwise it matches either.
+     * Words are matched whole, ignoring case.
+     *
+     * Each word's sorted list of books comes from the word index. AND
+     * intersects lists starting from the shortest, skipping ahead through
+     * longer lists with galloping search, and NOT removes books the same
+     * way. Called holding the read lock from lockSearch.
+     *
+     * @param query the query
+     * @return      the books found, in order of ID
+     * @throws IllegalArgumentException if the query is not valid
+     */
+    private BookList booleanSearch(String query) {
+        QueryParser parser = new QueryParser(query);
+        BookList results = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected \""
+                    + parser.tokens.get(parser.position) + "\"");
+        }
+        return results;
+    }
+
+    /**
+     * isBooleanQuery
+     *
+     * Check if a search query uses AND, OR, NOT or a field prefix.
+     *
+     * @param query the search query
+     * @return      a boolean: true if it is a boolean query, else false
+     */
+    public static boolean isBooleanQuery(String query) {
+        for (String token : query.split("[\\s()]+")) {
+            String field = token.toLowerCase();
+            if (token.equals("AND") || token.equals("OR")
+                    || token.equals("NOT") || field.startsWith("title:")
+                    || field.startsWith("author:")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * getWordPostings
+     *
+     * Get the books whose title or author contains every word of a term.
+     *
+     * @param key  the key to search (TITLE_KEY or AUTHOR_KEY)
+     * @param term the term
+     * @return     the books found
+     */
+    private BookList getWordPostings(int key, String term) {
+        char[] chars = FoldedKeys.fold(term);
+
+        // Look up each word of the term
+        BookList[] words = new BookList[chars.length];
+        int wordAmount = 0;
+        int i = 0;
+        while (i < chars.length) {
+            while (i < chars.length && !Character.isLetterOrDigit(chars[i])) {
+                i++;
+            }
+            int wordStart = i;
+            while (i < chars.length && Character.isLetterOrDigit(chars[i])) {
+                i++;
+            }
+            if (wordStart < i) {
+                int word = wordIndexes[key].findWord(chars, wordStart, i,
+                        false);
+                if (word < 0) {
+                    return new BookList(0);
+                }
+                words[wordAmount++] = wordIndexes[key].getPostings(word);
+            }
+        }
+        return intersectAll(Arrays.copyOf(words, wordAmount));
+    }
+
+    /**
+     * intersectAll
+     *
+     * Get the books in every one of a set of lists, starting from the
+     * shortest list. The books found are always a new list, even when
+     * there is only one list, since lists may be part of a word index.
+     *
+     * @param lists the lists of books
+     * @return      the books in every list
+     */
+    private static BookList intersectAll(BookList[] lists) {
+        if (lists.length == 0) {
+            return new BookList(0);
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.length, b.length));
+
+        BookList results = lists[0];
+        for (int i = 1; i < lists.length && results.length > 0; i++) {
+            results = intersectPostings(results, lists[i], true);
+        }
+        if (results == lists[0]) {
+            results = new BookList(Arrays.copyOfRange(results.books,
+                    results.start, results.start + results.length), 0,
+                    results.length);
+        }
+        return results;
+    }
+
+    /**
+     * intersectPostings
+     *
+     * Get the books of a list that are, or are not, in another list. Each
+     * book of the first list is found in the second with galloping search:
+     * steps double from the last position until they pass the book, then a
+     * binary search finds it. This is fast when the first list is shorter.
+     *
+     * @param list  the list of books to keep books from
+     * @param other the other list of books
+     * @param keep  true to keep books in the other list, false to keep
+     *              books not in it
+     * @return      the books kept
+     */
+    private static BookList intersectPostings(BookList list, BookList other,
+            boolean keep) {
+        int[] books = new int[list.length];
+        int kept = 0;
+
+        // Positions are in the other list's array
+        int low = other.start;
+        int otherEnd = other.start + other.length;
+
+        for (int i = list.start; i < list.start + list.length; i++) {
+            int book = list.books[i];
+
+            // Gallop until the step passes the book
+            int step = 1;
+            int high = low;
+            while (high < otherEnd && other.books[high] < book) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, otherEnd - 1);
+
+            // Binary search the range the book is in
+            boolean found = false;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (other.books[middle] < book) {
+                    low = middle + 1;
+                } else if (other.books[middle] > book) {
+                    high = middle - 1;
+                } else {
+                    low = middle + 1;
+                    found = true;
+                    break;
+                }
+            }
+
+            if (found == keep) {
+                books[kept++] = book;
+            }
+        }
+        return new BookList(books, 0, kept);
+    }
+
+    /**
+     * unionPostings
+     *
+     * Get the books in either of two lists, by merging them.
+     *
+     * @param a the first list of books
+     * @param b the second list of books
+     * @return  the books in either list
+     */
+    private static BookList unionPostings(BookList a, BookList b) {
+        int[] books = new int[a.length + b.length];
+        int length = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a.get(i) < b.get(j))) {
+                books[length++] = a.get(i++);
+            } else if (i == a.length || b.get(j) < a.get(i)) {
+                books[length++] = b.get(j++);
+            } else {
+                books[length++] = a.get(i++);
+                j++;
+            }
+        }
+        return new BookList(books, 0, length);
+    }
+
+    /**
+     * BookList
+     *
+     * A list of book indexes: length books of an array, from start. Lists
+     * built by a search grow as books are added, so searches only use memory
+     * for the books they find. Sorted indexes are never changed once made,
+     * so lists that are part of one stay valid.
+     */
+    public static class BookList {
+        private int[] books;
+        private final int start;
+        private int length;
+
+        BookList(int capacity) {
+            this.books = new int[capacity];
+            this.start = 0;
+        }
+
+        BookList(int[] books, int start, int length) {
+            this.books = books;
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * size
+         *
+         * Get the amount of books in the list.
+         *
+         * @return the amount of books
+         */
+        public int size() {
+            return length;
+        }
+
+        /**
+         * get
+         *
+         * Get a book in the list.
+         *
+         * @param position the position of the book in the list
+         * @return         the index of the book
+         * @throws IndexOutOfBoundsException if there is no such position
+         */
+        public int get(int position) {
+            return books[start + Objects.checkIndex(position, length)];
+        }
+
+        /**
+         * add
+         *
+         * Add a book to the end of the list.
+         *
+         * @param bookIndex the index of the book
+         */
+        void add(int bookIndex) {
+            if (length == books.length) {
+                books = Arrays.copyOf(books, Math.max(length * 2,
+                        INITIAL_RESULTS));
+            }
+            books[length++] = bookIndex;
+        }
+
+        /**
+         * sort
+         *
+         * Sort the list in the order of book IDs.
+         */
+        void sort() {
+            Arrays.sort(books, 0, length);
+        }
+    }
+
+    /**
+     * LoanList
+     *
+     * A list of copies on loan: the book, the patron, when it was loaned
+     * and when it is due, as milliseconds since the epoch. Copied out of
+     * the loan records, so it stays valid after later loans and returns.
+     */
+    public static class LoanList {
+        private int[] books;
+        private int[] patrons;
+        private long[] loanTimes;
+        private long[] dueTimes;
+        private int length;
+
+        LoanList(int capacity) {
+            books = new int[capacity];
+            patrons = new int[capacity];
+            loanTimes = new long[capacity];
+            dueTimes = new long[capacity];
+        }
+
+        /**
+         * size
+         *
+         * Get the amount of loans in the list.
+         *
+         * @return the amount of loans
+         */
+        public int size() {
+            return length;
+        }
+
+        /**
+         * getBook
+         *
+         * Get the book loaned.
+         *
+         * @param position the position of the loan in the list
+         * @return         the index of the book
+         * @throws IndexOutOfBoundsException if there is no such position
+         */
+        public int getBook(int position) {
+            return books[Objects.checkIndex(position, length)];
+        }
+
+        /**
+         * getPatron
+         *
+         * Get the patron a copy is loaned to.
+         *
+         * @param position the position of the loan in the list
+         * @return         the ID of the patron, or UNKNOWN_PATRON
+         * @throws IndexOutOfBoundsException if there is no such position
+         */
+        public int getPatron(int position) {
+            return patrons[Objects.checkIndex(position, length)];
+        }
+
+        /**
+         * getLoanTime
+         *
+         * Get when a copy was loaned.
+         *
+         * @param position the position of the loan in the list
+         * @return         the time in milliseconds since the epoch, or 0 if
+         *                 it is not known
+         * @throws IndexOutOfBoundsException if there is no such position
+         */
+        public long getLoanTime(int position) {
+            return loanTimes[Objects.checkIndex(position, length)];
+        }
+
+        /**
+         * getDueTime
+         *
+         * Get when a copy is due.
+         *
+         * @param position the position of the loan in the list
+         * @return         the time in milliseconds since the epoch, or
+         *                 NO_DUE_TIME if it is never overdue
+         * @throws IndexOutOfBoundsException if there is no such position
+         */
+        public long getDueTime(int position) {
+            return dueTimes[Objects.checkIndex(position, length)];
+        }
+
+        /**
+         * add
+         *
+         * Add a loan to the end of the list.
+         *
+         * @param book     the index of the book
+         * @param patron   the ID of the patron
+         * @param loanTime when the copy was loaned
+         * @param dueTime  when the copy is due
+         */
+        void add(int book, int patron, long loanTime, long dueTime) {
+            if (length == books.length) {
+                int capacity = Math.max(length * 2, INITIAL_RESULTS);
+                books = Arrays.copyOf(books, capacity);
+                patrons = Arrays.copyOf(patrons, capacity);
+                loanTimes = Arrays.copyOf(loanTimes, capacity);
+                dueTimes = Arrays.copyOf(dueTimes, capacity);
+            }
+            books[length] = book;
+            patrons[length] = patron;
+            loanTimes[length] = loanTime;
+            dueTimes[length++] = dueTime;
+        }
+    }
+
+    /**
+     * CatalogView
+     *
+     * The titles, authors and sorted indexes of a catalog as they were at
+     * one point. A view never changes, so it can be read from any thread
+     * without a lock. Titles and authors are read from the text buffer of
+     * the catalog, which is only appended to until it is compacted into a
+     * new buffer, so the text a view points to stays the same. The
+     * positions and lengths of the titles and authors are split into
+     * chunks of books, which views share until a book in them changes.
+     * The sorted indexes are shared too, with the positions of entries
+     * removed since they were sorted listed beside them.
+     */
+    public static class CatalogView {
+        private final ByteBuffer text;
+        private final int[][] columns;
+        private final int books;
+        private final int bookCount;
+        private final int[][] sortedIndexes;
+        private final int sortedBooks;
+        private final int[][] unsortedBooks;
+        private final int[][] removedEntries;
+
+        // Removed entries of the lists of waiting books, which have none
+        private static final int[] NO_REMOVED_ENTRIES = new int[0];
+
+        // Sorted indexes with the unsorted books merged in and the removed
+        // entries left out, made on first use
+        private final int[][] mergedIndexes = new int[2][];
+
+        CatalogView(ByteBuffer text, int[][] columns, int books,
+                int bookCount, int[][] sortedIndexes, int sortedBooks,
+                int[][] unsortedBooks, int[][] removedEntries) {
+            this.text = text;
+            this.columns = columns;
+            this.books = books;
+            this.bookCount = bookCount;
+            this.sortedIndexes = sortedIndexes;
+            this.sortedBooks = sortedBooks;
+            this.unsortedBooks = unsortedBooks;
+            this.removedEntries = removedEntries;
+        }
+
+        /**
+         * getBookCount
+         *
+         * Get the amount of books in the view, not counting deleted books.
+         *
+         * @return the amount of books
+         */
+        public int getBookCount() {
+            return bookCount;
+        }
+
+        /**
+         * getBookSlots
+         *
+         * Get the amount of book slots in the view, including deleted
+         * books.
+         *
+         * @return the amount of book slots
+         */
+        public int getBookSlots() {
+            return books;
+        }
+
+        /**
+         * getBookTitle
+         *
+         * Get the title of a book.
+         *
+         * @param bookIndex the index of the book
+         * @return          the title of the book, empty if it was deleted
+         */
+        public String getBookTitle(int bookIndex) {
+            return getBookText(TITLE_KEY, bookIndex);
+        }
+
+        /**
+         * getBookAuthor
+         *
+         * Get the author of a book.
+         *
+         * @param bookIndex the index of the book
+         * @return          the author of the book, empty if it was deleted
+         */
+        public String getBookAuthor(int bookIndex) {
+            return getBookText(AUTHOR_KEY, bookIndex);
+        }
+
+        /**
+         * getBookTextLength
+         *
+         * Get the length of the title or author of a book in UTF-8 bytes.
+         *
+         * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+         * @param bookIndex the index of the book
+         * @return          the length in bytes
+         */
+        public int getBookTextLength(int key, int bookIndex) {
+            Objects.checkIndex(bookIndex, books);
+            return getLength(key, bookIndex);
+        }
+
+        /**
+         * putBookText
+         *
+         * Copy the title or author of a book to a buffer as UTF-8, straight
+         * from the text buffer without decoding it.
+         *
+         * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+         * @param bookIndex the index of the book
+         * @param buffer    the buffer, which must have room for the text
+         */
+        public void putBookText(int key, int bookIndex, ByteBuffer buffer) {
+            Objects.checkIndex(bookIndex, books);
+            int length = getLength(key, bookIndex);
+            buffer.put(buffer.position(), text, getStart(key, bookIndex),
+                    length);
+            buffer.position(buffer.position() + length);
+        }
+
+        /**
+         * getBookText
+         *
+         * Get the title or author of a book.
+         *
+         * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+         * @param bookIndex the index of the book
+         * @return          the title or author of the book
+         */
+        private String getBookText(int key, int bookIndex) {
+            Objects.checkIndex(bookIndex, books);
+            byte[] bytes = new byte[getLength(key, bookIndex)];
+            text.get(getStart(key, bookIndex), bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * getStart
+         *
+         * Get the position of the title or author of a book in the text.
+         *
+         * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+         * @param bookIndex the index of the book
+         * @return          the position of the text
+         */
+        private int getStart(int key, int bookIndex) {
+            return columns[bookIndex >>> VIEW_CHUNK_BITS]
+                    [(bookIndex & (VIEW_CHUNK_SIZE - 1)) * 4 + key * 2];
+        }
+
+        /**
+         * getLength
+         *
+         * Get the length of the title or author of a book in the text.
+         *
+         * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+         * @param bookIndex the index of the book
+         * @return          the length of the text in bytes
+         */
+        private int getLength(int key, int bookIndex) {
+            return columns[bookIndex >>> VIEW_CHUNK_BITS]
+                    [(bookIndex & (VIEW_CHUNK_SIZE - 1)) * 4 + key * 2 + 1];
+        }
+
+        /**
+         * getSortedCount
+         *
+         * Get the amount of books in the sorted indexes, including the
+         * books waiting to be merged into them and not the removed
+         * entries.
+         *
+         * @return the amount of books
+         */
+        int getSortedCount() {
+            return sortedBooks - removedEntries[TITLE_KEY].length
+                    + unsortedBooks[TITLE_KEY].length;
+        }
+
+        /**
+         * getMergedIndexes
+         *
+         * Get the indexes of books sorted by title or author, merging in
+         * the books waiting to be merged and leaving out the removed
+         * entries on first use. Only the view is locked while merging, so
+         * other views are not held up.
+         *
+         * @param key the key (TITLE_KEY or AUTHOR_KEY)
+         * @return    the sorted indexes, of which the first getSortedCount
+         *            are used
+         */
+        synchronized int[] getMergedIndexes(int key) {
+            if (unsortedBooks[key].length == 0
+                    && removedEntries[key].length == 0) {
+                return sortedIndexes[key];
+            }
+            if (mergedIndexes[key] == null) {
+                int[] entries = getLiveEntries(key, 0, sortedBooks, 0);
+                mergedIndexes[key] = mergeSortedIndex(entries,
+                        entries.length, unsortedBooks[key], this, key);
+            }
+            return mergedIndexes[key];
+        }
+
+        /**
+         * getLiveEntries
+         *
+         * Copy part of a sorted index, leaving out the removed entries.
+         *
+         * @param key   the key (TITLE_KEY or AUTHOR_KEY)
+         * @param start the position of the first entry
+         * @param end   the position after the last entry
+         * @param limit the most entries to copy, or 0 for all of them
+         * @return      the entries that are not removed
+         */
+        private int[] getLiveEntries(int key, int start, int end,
+                int limit) {
+            int[] indexes = sortedIndexes[key];
+            int[] removed = removedEntries[key];
+            int next = findRemovedEntry(removed, start);
+            int count = end - start - (findRemovedEntry(removed, end) - next);
+            int[] entries = new int[limit > 0 ? Math.min(limit, count)
+                    : count];
+
+            int copied = 0;
+            for (int i = start; i < end && copied < entries.length; i++) {
+                if (next < removed.length && removed[next] == i) {
+                    next++;
+                } else {
+                    entries[copied++] = indexes[i];
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * findRemovedEntry
+         *
+         * Find the first removed entry at or after a position.
+         *
+         * @param removed  the positions of the removed entries, in order
+         * @param position the position in the sorted index
+         * @return         where the entry is, or would be, in removed
+         */
+        private static int findRemovedEntry(int[] removed, int position) {
+            int found = Arrays.binarySearch(removed, position);
+            return found >= 0 ? found : -found - 1;
+        }
+
+        /**
+         * skipRemovedEntries
+         *
+         * Get the first position of a sorted index at or after a position
+         * whose entry is not removed.
+         *
+         * @param removed  the positions of the removed entries, in order
+         * @param position the position in the sorted index
+         * @return         the first position not removed
+         */
+        private static int skipRemovedEntries(int[] removed, int position) {
+            for (int i = findRemovedEntry(removed, position);
+                    i < removed.length && removed[i] == position; i++) {
+                position++;
+            }
+            return position;
+        }
+
+        /**
+         * findSortedEntry
+         *
+         * Find the position of a book in the sorted index, skipping the
+         * removed entries. Books with equal text are ordered by their
+         * index, so the book's own text finds its entry.
+         *
+         * @param key       the key (TITLE_KEY or AUTHOR_KEY)
+         * @param bookIndex the index of the book
+         * @return          the position of the book, or -1 if it is not in
+         *                  the sorted index
+         */
+        int findSortedEntry(int key, int bookIndex) {
+            int[] indexes = sortedIndexes[key];
+            int[] removed = removedEntries[key];
+            int low = 0;
+            int high = sortedBooks;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int entry = skipRemovedEntries(removed, middle);
+                if (entry < high
+                        && compareBooks(key, indexes[entry], bookIndex) < 0) {
+                    low = entry + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            int position = skipRemovedEntries(removed, low);
+            return position < sortedBooks && indexes[position] == bookIndex
+                    ? position : -1;
+        }
+
+        /**
+         * findRange
+         *
+         * Find the books with titles or authors from one text on, in sorted
+         * order, either up to another text or while they start with the
+         * first. The sorted indexes and the books waiting to be merged
+         * into them are both binary searched, and the waiting books found,
+         * if any, are merged into a copy of the books found in the sorted
+         * indexes.
+         *
+         * @param key    the key (TITLE_KEY or AUTHOR_KEY)
+         * @param from   the first text in the range as UTF-8
+         * @param to     the text after the range as UTF-8, or null to leave
+         *               the range open
+         * @param prefix whether to find the books starting with from
+         *               instead
+         * @param limit  the most books to return, or 0 for all of them
+         * @return       the books found
+         */
+        BookList findRange(int key, byte[] from, byte[] to, boolean prefix,
+                int limit) {
+            int[] indexes = sortedIndexes[key];
+            int[] removed = removedEntries[key];
+            int start = findSortedPosition(indexes, sortedBooks, removed, key,
+                    from, false);
+            int end = prefix ? findSortedPosition(indexes, sortedBooks,
+                    removed, key, from, true) : to == null ? sortedBooks
+                    : findSortedPosition(indexes, sortedBooks, removed, key,
+                    to, false);
+            end = Math.max(start, end);
+
+            // Removed entries in the range are left out of a copy of it
+            if (findRemovedEntry(removed, start)
+                    < findRemovedEntry(removed, end)) {
+                indexes = getLiveEntries(key, start, end, limit);
+                start = 0;
+                end = indexes.length;
+            }
+
+            // Waiting books in the range
+            int[] waiting = unsortedBooks[key];
+            int waitingStart = findSortedPosition(waiting, waiting.length,
+                    NO_REMOVED_ENTRIES, key, from, false);
+            int waitingEnd = prefix ? findSortedPosition(waiting,
+                    waiting.length, NO_REMOVED_ENTRIES, key, from, true)
+                    : to == null ? waiting.length : findSortedPosition(
+                    waiting, waiting.length, NO_REMOVED_ENTRIES, key, to,
+                    false);
+            if (waitingEnd <= waitingStart) {
+                return getSortedRange(indexes, start, end, limit);
+            }
+
+            // Only the first limit sorted books can be in the result
+            if (limit > 0) {
+                end = Math.min(end, start + limit);
+            }
+            int[] merged = mergeSortedIndex(Arrays.copyOfRange(indexes,
+                    start, end), end - start, Arrays.copyOfRange(waiting,
+                    waitingStart, waitingEnd), this, key);
+            return getSortedRange(merged, 0, merged.length, limit);
+        }
+
+        /**
+         * findSortedPosition
+         *
+         * Binary search an array of books sorted by title or author for the
+         * first book that comes after a text. Books equal to the text count
+         * as after it, unless searching past a prefix, where only the first
+         * bytes of each book, up to the length of the text, are compared.
+         * Removed entries are skipped, as their books may have new text.
+         *
+         * @param indexes    the sorted books
+         * @param count      the amount of books used in the array
+         * @param removed    the positions of the removed entries, in order
+         * @param key        the key (TITLE_KEY or AUTHOR_KEY)
+         * @param text       the text as UTF-8
+         * @param pastPrefix whether to find the first book not starting
+         *                   with the text
+         * @return           the position of the book, or count if there is
+         *                   none
+         */
+        private int findSortedPosition(int[] indexes, int count,
+                int[] removed, int key, byte[] text, boolean pastPrefix) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int entry = skipRemovedEntries(removed, middle);
+                if (entry >= high) {
+                    high = middle;
+                    continue;
+                }
+                int comparison = compareToText(key, indexes[entry], text,
+                        pastPrefix);
+                if (comparison < 0 || (pastPrefix && comparison == 0)) {
+                    low = entry + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * compareToText
+         *
+         * Compare the title or author of a book to a text, byte by byte.
+         *
+         * @param key        the key (TITLE_KEY or AUTHOR_KEY)
+         * @param bookIndex  the index of the book
+         * @param other      the text as UTF-8
+         * @param prefixOnly whether to compare only as many bytes of the
+         *                   book as the text has
+         * @return           a negative number, zero or a positive number if
+         *                   the book comes before, is equal to or comes
+         *                   after the text
+         */
+        private int compareToText(int key, int bookIndex, byte[] other,
+                boolean prefixOnly) {
+            int start = getStart(key, bookIndex);
+            int length = getLength(key, bookIndex);
+            if (prefixOnly) {
+                length = Math.min(length, other.length);
+            }
+
+            int minLength = Math.min(length, other.length);
+            for (int i = 0; i < minLength; i++) {
+                int comparison = (text.get(start + i) & 0xFF)
+                        - (other[i] & 0xFF);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return length - other.length;
+        }
+
+        /**
+         * compareBooks
+         *
+         * Compare the titles or authors of two books, in the order of the
+         * sorted indexes. Books with equal text are ordered by their index.
+         *
+         * @param key   the key (TITLE_KEY or AUTHOR_KEY)
+         * @param book  the index of the first book
+         * @param other the index of the second book
+         * @return      a negative integer, zero, or a positive integer if
+         *              the first book is before, the same as, or after the
+         *              second book
+         */
+        private int compareBooks(int key, int book, int other) {
+            int comparison = compareText(text, getStart(key, book),
+                    getLength(key, book), getStart(key, other),
+                    getLength(key, other));
+            return comparison != 0 ? comparison
+                    : Integer.compare(book, other);
+        }
+    }
+
+    /**
+     * QueryParser
+     *
+     * Parses and runs a boolean query, one token at a time.
+     */
+    private class QueryParser {
+        private final List<String> tokens = new ArrayList<>();
+        private int position = 0;
+
+        QueryParser(String query) {
+            // Split into words and parentheses
+            int i = 0;
+            while (i < query.length()) {
+                char c = query.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    int start = i;
+                    while (i < query.length()
+                            && !Character.isWhitespace(query.charAt(i))
+                            && query.charAt(i) != '('
+                            && query.charAt(i) != ')') {
+                        i++;
+                    }
+                    tokens.add(query.substring(start, i));
+                }
+            }
+        }
+
+        /**
+         * parseOr
+         *
+         * Run terms joined by OR.
+         *
+         * @return the books found
+         */
+        BookList parseOr() {
+            BookList results = parseAnd();
+            while (position < tokens.size()
+                    && tokens.get(position).equals("OR")) {
+                position++;
+                results = unionPostings(results, parseAnd());
+            }
+            return results;
+        }
+
+        /**
+         * parseAnd
+         *
+         * Run terms joined by AND, or next to each other. Terms after NOT
+         * are removed from the books found by the others, or from all books
+         * if every term has NOT.
+         *
+         * @return the books found
+         */
+        BookList parseAnd() {
+            List<BookList> included = new ArrayList<>();
+            List<BookList> excluded = new ArrayList<>();
+
+            do {
+                if (position < tokens.size()
+                        && tokens.get(position).equals("AND")) {
+                    position++;
+                }
+                boolean negated = false;
+                while (position < tokens.size()
+                        && tokens.get(position).equals("NOT")) {
+                    negated = !negated;
+                    position++;
+                }
+                (negated ? excluded : included).add(parseTerm());
+            } while (position < tokens.size()
+                    && !tokens.get(position).equals("OR")
+                    && !tokens.get(position).equals(")"));
+
+            BookList results;
+            if (included.isEmpty()) {
+                results = new BookList(getBookCount());
+                for (int i = 0; i < bookElements; i++) {
+                    if (!isDeleted(i)) {
+                        results.add(i);
+                    }
+                }
+            } else {
+                results = intersectAll(included.toArray(new BookList[0]));
+            }
+            for (BookList list : excluded) {
+                results = intersectPostings(results, list, false);
+            }
+            return results;
+        }
+
+        /**
+         * parseTerm
+         *
+         * Run a word, a word with a field prefix, or a query in
+         * parentheses.
+         *
+         * @return the books found
+         */
+        BookList parseTerm() {
+            if (position == tokens.size()) {
+                throw new IllegalArgumentException("Query ends too early");
+            }
+
+            String token = tokens.get(position++);
+            if (token.equals("(")) {
+                BookList results = parseOr();
+                if (position == tokens.size()
+                        || !tokens.get(position).equals(")")) {
+                    throw new IllegalArgumentException("Missing \")\"");
+                }
+                position++;
+                return results;
+            } else if (token.equals(")") || token.equals("AND")
+                    || token.equals("OR")) {
+                throw new IllegalArgumentException("Unexpected \"" + token
+                        + "\"");
+            }
+
+            String field = token.toLowerCase();
+            if (field.startsWith("title:")) {
+                return getWordPostings(TITLE_KEY, token.substring(6));
+            } else if (field.startsWith("author:")) {
+                return getWordPostings(AUTHOR_KEY, token.substring(7));
+            }
+            return unionPostings(getWordPostings(TITLE_KEY, token),
+                    getWordPostings(AUTHOR_KEY, token));
+        }
+    }
+
+    /**
+     * searchExistingBooks
+     *
+     * Check if a book already exists in library arrays (case-sensitive).
+     *
+     * @param title  the title of the book
+     * @param author the author of the book
+     * @return       a boolean: true if the book exists, else false
+     */
+    public boolean searchExistingBooks(String title, String author) {
+        long startTime = metrics.startSampled();
+        try {
+            return findExistingBook(title, author);
+        } finally {
+            metrics.record(CatalogMetrics.SEARCH_EXISTING_BOOKS, startTime);
+        }
+    }
+
+    /**
+     * findExistingBook
+     *
+     * Check if a book already exists with the hash index of titles and
+     * authors, holding the read lock of searchLock.
+     *
+     * @param title  the title of the book
+     * @param author the author of the book
+     * @return       true if the book exists, else false
+     */
+    private boolean findExistingBook(String title, String author) {
+        lockSearch(SEARCH_EXACT, TITLE_KEY);
+        try {
+            return hashIndex.contains(title, author);
+        } finally {
+            searchLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * add
+     *
+     * Add a new book, unless it already exists, and save it to the
+     * transaction log. The book takes the slot of a deleted book if there is
+     * one, or goes after the last book, growing the arrays if full.
+     *
+     * @param title  the title of the book
+     * @param author the author of the book
+     * @param copies the amount of copies of the book
+     * @return       the index of the book
+     * @throws IllegalArgumentException if the book already exists or has no
+     *                                  copies
+     */
+    public int add(String title, String author, int copies) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("Book has no copies");
+        }
+        long startTime = metrics.start();
+
+        int index;
+        long sequence;
+        synchronized (logLock) {
+            if (findExistingBook(title, author)) {
+                throw new IllegalArgumentException("Book already exists");
+            }
+            index = freeBookCount > 0 ? freeBooks[freeBookCount - 1]
+                    : bookElements;
+
+            // Grow first, as a full catalog file is written again, which
+            // searches need not wait for
+            if (index == bookElements) {
+                growBooks(index + 1);
+            }
+            sequence = log.logAdd(index, title, author, copies);
+
+            // Searches only wait while the indexes are updated
+            searchLock.writeLock().lock();
+            try {
+                insertBook(index, title, author, copies);
+                startCompaction();
+            } finally {
+                searchLock.writeLock().unlock();
+            }
+            saveSnapshotIfDue();
+        }
+        log.awaitForced(sequence);
+        metrics.record(CatalogMetrics.ADD, startTime);
+        return index;
+    }
+
+    /**
+     * delete
+     *
+     * Delete a book with no copies on loan and save it to the transaction
+     * log. Its slot is kept, so the IDs of other books stay the same.
+     *
+     * @param index the index of the book
+     * @throws IllegalArgumentException if the book is already deleted or has
+     *                                  copies on loan
+     */
+    public void delete(int index) {
+        Objects.checkIndex(index, bookElements);
+        long startTime = metrics.start();
+
+        long sequence;
+        synchronized (logLock) {
+            if (isDeleted(index)) {
+                throw new IllegalArgumentException("Book is already deleted");
+            }
+
+            // Loans and returns of the book hold its stripe, so a book with
+            // no loans here still has none once it is deleted
+            LoanRecords stripe = getLoanStripe(index);
+            stripe.lock.lock();
+            try {
+                if (getBooksOnLoan(index) > 0) {
+                    throw new IllegalArgumentException(
+                            "Book has copies on loan");
+                }
+                sequence = log.logCirculation(TransactionLog.DELETE, index,
+                        UNKNOWN_PATRON, 0, 0);
+
+                searchLock.writeLock().lock();
+                try {
+                    deleteBook(index);
+                    startCompaction();
+                } finally {
+                    searchLock.writeLock().unlock();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            forceCatalogFile();
+            saveSnapshotIfDue();
+        }
+        log.awaitForced(sequence);
+        metrics.record(CatalogMetrics.DELETE, startTime);
+    }
+
+    /**
+     * replace
+     *
+     * Replace a book with a new one, unless the new book already exists,
+     * and save it to the transaction log. The new book has no copies out on
+     * loan.
+     *
+     * @param index  the index of the book to be replaced
+     * @param title  the title of the new book
+     * @param author the author of the new book
+     * @param copies the amount of copies of the new book
+     * @throws IllegalArgumentException if the book was deleted, the new book
+     *                                  already exists or it has no copies
+     */
+    public void replace(int index, String title, String author, int copies) {
+        Objects.checkIndex(index, bookElements);
+        if (copies < 1) {
+            throw new IllegalArgumentException("Book has no copies");
+        }
+        long startTime = metrics.start();
+
+        long sequence;
+        synchronized (logLock) {
+            if (isDeleted(index)) {
+                throw new IllegalArgumentException("Book is deleted");
+            }
+            if (findExistingBook(title, author)) {
+                throw new IllegalArgumentException("Book already exists");
+            }
+
+            // Loans and returns of the old book are logged and applied
+            // before it is replaced, or after and see the new book
+            LoanRecords stripe = getLoanStripe(index);
+            stripe.lock.lock();
+            try {
+                sequence = log.logAdd(index, title, author, copies);
+
+                searchLock.writeLock().lock();
+                try {
+                    replaceBook(index, title, author, copies);
+                    startCompaction();
+                } finally {
+                    searchLock.writeLock().unlock();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            saveSnapshotIfDue();
+        }
+        log.awaitForced(sequence);
+        metrics.record(CatalogMetrics.REPLACE, startTime);
+    }
+
+    /**
+     * replaceBook
+     *
+     * Replace a book with a new one, keeping all indexes up to date. The
+     * new book has no copies out on loan. Must be called holding the book's
+     * loan stripe, or before other threads use the catalog.
+     *
+     * @param index  the index of the book to be replaced
+     * @param title  the title of the new book
+     * @param author the author of the new book
+     * @param copies the amount of copies of the new book
+     */
+    private void replaceBook(int index, String title, String author,
+            int copies) {
+        // Store the new title and author next to the old ones
+        byte[] titleText = title.getBytes(StandardCharsets.UTF_8);
+        byte[] authorText = author.getBytes(StandardCharsets.UTF_8);
+        int start = appendBookText(titleText, authorText);
+
+        // Keep books sorted by removing the old entries and letting the
+        // book wait to be merged again with its new text
+        removeSortedBook(index);
+
+        // Replace book with new book
+        hashIndex.unindexBook(index);
+        setBookText(TITLE_KEY, index, start, titleText.length);
+        setBookText(AUTHOR_KEY, index, start + titleText.length,
+                authorText.length);
+        if (booksSorted) {
+            addUnsortedBook(index);
+        }
+        publishView(index, bookElements);
+        hashIndex.indexBook(index);
+        indexWords(index, false);
+        foldedKeys.foldBook(index, title, author);
+        indexWords(index, true);
+        trigramIndexes[TITLE_KEY].replaceBook(index);
+        trigramIndexes[AUTHOR_KEY].replaceBook(index);
+
+        uncountBook(index);
+        getLoanStripe(index).removeBook(index);
+        setBooksOnLoan(index, 0);
+        bookCopies[index] = copies;
+        booksAvailable.increment();
+        updateOnLoanBit(index);
+        catalogChanged = true;
+        generation++;
+    }
+
+    /**
+     * insertBook
+     *
+     * Put a book in the slot of a deleted book, or after the last book,
+     * keeping all indexes up to date. The book has no copies out on loan.
+     * The amount of books is set last, so loans and returns made from other
+     * threads only see the book once it is complete.
+     *
+     * @param index  the index of the book, a deleted book or the amount of
+     *               books
+     * @param title  the title of the book
+     * @param author the author of the book
+     * @param copies the amount of copies of the book
+     */
+    private void insertBook(int index, String title, String author,
+            int copies) {
+        if (index == bookElements) {
+            growBooks(index + 1);
+        } else {
+            removeFreeBook(index);
+            deletedBooks--;
+        }
+
+        storeBook(index, title, author);
+        hashIndex.indexBook(index);
+        foldedKeys.foldBook(index, title, author);
+        indexWords(index, true);
+        trigramIndexes[TITLE_KEY].replaceBook(index);
+        trigramIndexes[AUTHOR_KEY].replaceBook(index);
+        bookCopies[index] = copies;
+        LOANS.setVolatile(booksOnLoan, index * 4, 0);
+        booksAvailable.increment();
+        if (booksSorted) {
+            addUnsortedBook(index);
+        }
+        publishView(index, Math.max(index + 1, bookElements));
+
+        if (index == bookElements) {
+            bookElements = index + 1;
+        }
+        catalogChanged = true;
+        generation++;
+    }
+
+    /**
+     * deleteBook
+     *
+     * Delete a book with no copies on loan, keeping all indexes up to date.
+     * Its loans are set to DELETED_LOANS first, so it can't be loaned once
+     * its stripe is released, and its slot is kept for the next book added.
+     * Must be called holding the book's loan stripe, or before other
+     * threads use the catalog.
+     *
+     * @param index the index of the book
+     */
+    private void deleteBook(int index) {
+        LOANS.setVolatile(booksOnLoan, index * 4, DELETED_LOANS);
+
+        removeSortedBook(index);
+        hashIndex.unindexBook(index);
+        indexWords(index, false);
+        setBookText(TITLE_KEY, index, 0, 0);
+        setBookText(AUTHOR_KEY, index, 0, 0);
+        deletedBooks++;
+        publishView(index, bookElements);
+        foldedKeys.foldBook(index, "", "");
+        trigramIndexes[TITLE_KEY].replaceBook(index);
+        trigramIndexes[AUTHOR_KEY].replaceBook(index);
+        booksAvailable.decrement();
+        bookCopies[index] = 0;
+
+        // Keep the slot to be reused
+        if (freeBookCount == freeBooks.length) {
+            freeBooks = Arrays.copyOf(freeBooks, freeBookCount * 2);
+        }
+        freeBooks[freeBookCount++] = index;
+        catalogChanged = true;
+        generation++;
+    }
+
+    /**
+     * removeFreeBook
+     *
+     * Remove a deleted book's slot from the slots to be reused.
+     *
+     * @param index the index of the deleted book
+     */
+    private void removeFreeBook(int index) {
+        for (int i = freeBookCount - 1; i >= 0; i--) {
+            if (freeBooks[i] == index) {
+                System.arraycopy(freeBooks, i + 1, freeBooks, i,
+                        freeBookCount - i - 1);
+                freeBookCount--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * growBooks
+     *
+     * Make room for a given amount of books, growing the arrays by half if
+     * full so adding books one at a time takes amortized constant time. The
+     * title and author columns grow as they are set.
+     *
+     * @param books the amount of books that need to fit
+     */
+    private void growBooks(int books) {
+        if (books > bookCopies.length) {
+            int capacity = Math.max(books, getGrownCapacity(
+                    bookCopies.length));
+            if (catalogMap != null) {
+                growCatalogFile(capacity);
+            } else {
+                bookCopies = Arrays.copyOf(bookCopies, capacity);
+                growLoans(capacity);
+            }
+        }
+        growOnLoanBits(books);
+    }
+
+    /**
+     * getGrownCapacity
+     *
+     * Get the amount of books arrays and catalog files that are full grow
+     * to, half again as many.
+     *
+     * @param capacity the amount of books that fit now
+     * @return         the amount of books that should fit
+     */
+    private static int getGrownCapacity(int capacity) {
+        return Math.max(16, capacity + (capacity >> 1));
+    }
+
+    /**
+     * growLoans
+     *
+     * Move the loans to a larger buffer, holding every loan stripe so no
+     * loan or return is made in the old buffer meanwhile.
+     *
+     * @param capacity the amount of books the new buffer should fit
+     */
+    private void growLoans(int capacity) {
+        lockLoanStripes();
+        try {
+            ByteBuffer loans = ByteBuffer.allocateDirect(capacity * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            loans.put(0, booksOnLoan, 0, booksOnLoan.capacity());
+            booksOnLoan = loans;
+        } finally {
+            unlockLoanStripes();
+        }
+    }
+
+    /**
+     * growCatalogFile
+     *
+     * Write the mapped catalog file again with room for more books and map
+     * it, so loans of the books added are still written straight to the
+     * file. Saving holds every loan stripe, so no loan or return is made in
+     * the old file meanwhile.
+     *
+     * @param capacity the amount of books the file should have room for
+     * @throws UncheckedIOException if the file could not be written, in
+     *                              which case the old file is still used
+     */
+    private void growCatalogFile(int capacity) {
+        try {
+            saveCatalog(capacity);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * growOnLoanBits
+     *
+     * Add segments to onLoanBits until it fits a given amount of books.
+     *
+     * @param books the amount of books
+     */
+    private void growOnLoanBits(int books) {
+        int segments = (books + (1 << ON_LOAN_SEGMENT_BITS) - 1)
+                >>> ON_LOAN_SEGMENT_BITS;
+        if (segments > onLoanBits.length) {
+            long[][] bits = Arrays.copyOf(onLoanBits, segments);
+            for (int i = onLoanBits.length; i < segments; i++) {
+                bits[i] = new long[ON_LOAN_SEGMENT_WORDS];
+            }
+            onLoanBits = bits;
+        }
+    }
+
+    /**
+     * loan
+     *
+     * Loan a copy of a book to an unknown patron if one is available. Can
+     * be called from several threads at once.
+     *
+     * @param bookIndex the index of the book
+     * @return          true if a copy was loaned, false if all copies are
+     *                  already on loan
+     */
+    public boolean loan(int bookIndex) {
+        return loan(bookIndex, UNKNOWN_PATRON);
+    }
+
+    /**
+     * loan
+     *
+     * Loan a copy of a book to a patron if one is available, due after the
+     * loan period. Can be called from several threads at once.
+     *
+     * @param bookIndex the index of the book
+     * @param patron    the ID of the patron, or UNKNOWN_PATRON
+     * @return          true if a copy was loaned, false if all copies are
+     *                  already on loan
+     */
+    public boolean loan(int bookIndex, int patron) {
+        long startTime = metrics.startSampled();
+        long loanTime = System.currentTimeMillis();
+        boolean loaned = circulate(TransactionLog.LOAN, bookIndex, patron,
+                loanTime, loanTime + loanPeriodMillis);
+        metrics.record(CatalogMetrics.LOAN, startTime);
+        return loaned;
+    }
+
+    /**
+     * returnCopy
+     *
+     * Return the copy of a book loaned most recently, if one is on loan.
+     * Can be called from several threads at once.
+     *
+     * @param bookIndex the index of the book
+     * @return          true if a copy was returned, false if no copies are
+     *                  on loan
+     */
+    public boolean returnCopy(int bookIndex) {
+        return returnCopy(bookIndex, UNKNOWN_PATRON);
+    }
+
+    /**
+     * returnCopy
+     *
+     * Return the copy of a book loaned to a patron most recently. Can be
+     * called from several threads at once.
+     *
+     * @param bookIndex the index of the book
+     * @param patron    the ID of the patron, or UNKNOWN_PATRON to return
+     *                  any copy
+     * @return          true if a copy was returned, false if no copies are
+     *                  on loan to the patron
+     */
+    public boolean returnCopy(int bookIndex, int patron) {
+        long startTime = metrics.startSampled();
+        boolean returned = circulate(TransactionLog.RETURN, bookIndex,
+                patron, 0, 0);
+        metrics.record(CatalogMetrics.RETURN_COPY, startTime);
+        return returned;
+    }
+
+    /**
+     * setLoanPeriod
+     *
+     * Set how long copies loaned from now on are loaned for.
+     *
+     * @param millis the loan period in milliseconds
+     */
+    public void setLoanPeriod(long millis) {
+        loanPeriodMillis = millis;
+    }
+
+    /**
+     * getLoanPeriod
+     *
+     * Get how long copies are loaned for.
+     *
+     * @return the loan period in milliseconds
+     */
+    public long getLoanPeriod() {
+        return loanPeriodMillis;
+    }
+
+    /**
+     * circulate
+     *
+     * Apply a loan or return and save it. The operation is checked, logged
+     * and then applied holding the book's loan stripe, so the book's
+     * operations are logged in the order they were applied and nothing is
+     * applied that the log doesn't hold. Books of other stripes are loaned
+     * and returned meanwhile. It returns once the log or mapped catalog
+     * file is forced to disk, as the fsync policy asks.
+     *
+     * @param type      the type of the operation (LOAN or RETURN)
+     * @param bookIndex the index of the book
+     * @param patron    the ID of the patron, or UNKNOWN_PATRON
+     * @param loanTime  when the copy is loaned (ignored by returns)
+     * @param dueTime   when the copy is due (ignored by returns)
+     * @return          true if the operation was applied
+     * @throws UncheckedIOException if the log could not be written
+     */
+    private boolean circulate(byte type, int bookIndex, int patron,
+            long loanTime, long dueTime) {
+        Objects.checkIndex(bookIndex, bookElements);
+        LoanRecords stripe = getLoanStripe(bookIndex);
+        long sequence;
+        stripe.lock.lock();
+        try {
+            if (!canCirculate(type, bookIndex, patron, stripe)) {
+                return false;
+            }
+            sequence = log.logCirculation(type, bookIndex, patron,
+                    loanTime, dueTime);
+            changeCirculation(type, bookIndex, patron, loanTime, dueTime,
+                    stripe);
+        } finally {
+            stripe.lock.unlock();
+        }
+        saveSnapshotIfDue();
+        forceCatalogFile();
+        log.awaitForced(sequence);
+        return true;
+    }
+
+    /**
+     * canCirculate
+     *
+     * Check if a loan or return can be applied. Must be called holding the
+     * book's loan stripe, and only stays true while it is held.
+     *
+     * @param type      the type of the operation (LOAN or RETURN)
+     * @param bookIndex the index of the book
+     * @param patron    the ID of the patron, or UNKNOWN_PATRON
+     * @param stripe    the loan stripe of the book
+     * @return          true if the operation can be applied
+     */
+    private boolean canCirculate(byte type, int bookIndex, int patron,
+            LoanRecords stripe) {
+        if (type == TransactionLog.LOAN) {
+            int loans = getBooksOnLoan(bookIndex);
+            return loans >= 0 && loans < bookCopies[bookIndex];
+        }
+        return stripe.find(bookIndex, patron) >= 0;
+    }
+
+    /**
+     * changeCirculation
+     *
+     * Add a loan and its loan record, or remove a loan record and its loan,
+     * once canCirculate found it can be applied. Both are changed together
+     * holding the book's loan stripe, so a replaced book never keeps a
+     * record or loan of the book it replaced, and the loan needs no
+     * compare-and-set.
+     *
+     * @param type      the type of the operation (LOAN or RETURN)
+     * @param bookIndex the index of the book
+     * @param patron    the ID of the patron, or UNKNOWN_PATRON
+     * @param loanTime  when the copy is loaned (ignored by returns)
+     * @param dueTime   when the copy is due (ignored by returns)
+     * @param stripe    the loan stripe of the book
+     */
+    private void changeCirculation(byte type, int bookIndex, int patron,
+            long loanTime, long dueTime, LoanRecords stripe) {
+        int current = getBooksOnLoan(bookIndex);
+        int updated;
+        if (type == TransactionLog.LOAN) {
+            stripe.add(bookIndex, patron, loanTime, dueTime);
+            updated = current + 1;
+        } else {
+            stripe.remove(stripe.find(bookIndex, patron));
+            updated = current - 1;
+        }
+        LOANS.setVolatile(booksOnLoan, bookIndex * 4, updated);
+
+        // Update totals for the change
+        int copies = bookCopies[bookIndex];
+        totalOnLoan.add(updated - current);
+        if ((current < copies) != (updated < copies)) {
+            booksAvailable.add(updated < copies ? 1 : -1);
+        }
+        if ((current > 0) != (updated > 0)) {
+            booksWithLoans.add(updated > 0 ? 1 : -1);
+            updateOnLoanBit(bookIndex);
+        }
+        if (catalogMap != null) {
+            catalogChanged = true;
+        }
+    }
+
+    /**
+     * countLoans
+     *
+     * Count the totals of loans and available books, mark the books with
+     * copies on loan, and find the deleted books, from scratch. Used after
+     * books are set up or loaded.
+     */
+    private void countLoans() {
+        totalOnLoan.reset();
+        booksAvailable.reset();
+        booksWithLoans.reset();
+        onLoanBits = new long[0][];
+        growOnLoanBits(bookElements);
+        deletedBooks = 0;
+        freeBookCount = 0;
+
+        // Deleted books are found last to first, so the first is reused first
+        for (int i = bookElements - 1; i >= 0; i--) {
+            int loans = booksOnLoan.getInt(i * 4);
+            if (bookCopies[i] == 0) {
+                loans = DELETED_LOANS;
+            } else if (loans == DELETED_LOANS) {
+                // Deleted from a mapped catalog file after it was saved,
+                // which only marks its loans
+                bookCopies[i] = 0;
+                bookTextLengths[TITLE_KEY][i] = 0;
+                bookTextLengths[AUTHOR_KEY][i] = 0;
+            }
+            if (loans != booksOnLoan.getInt(i * 4)) {
+                booksOnLoan.putInt(i * 4, loans);
+            }
+
+            // Loans whose records were not saved, such as loans written
+            // straight to a mapped catalog file before a crash, get records
+            // with no patron that are never overdue
+            LoanRecords stripe = getLoanStripe(i);
+            int records = stripe.count(i);
+            for (; records < loans; records++) {
+                stripe.add(i, UNKNOWN_PATRON, 0, NO_DUE_TIME);
+            }
+            for (; records > Math.max(loans, 0); records--) {
+                stripe.remove(stripe.getFirst(i));
+            }
+
+            if (loans == DELETED_LOANS) {
+                deletedBooks++;
+                if (freeBookCount == freeBooks.length) {
+                    freeBooks = Arrays.copyOf(freeBooks, freeBookCount * 2);
+                }
+                freeBooks[freeBookCount++] = i;
+                continue;
+            }
+            totalOnLoan.add(loans);
+            if (bookCopies[i] > loans) {
+                booksAvailable.increment();
+            }
+            if (loans > 0) {
+                booksWithLoans.increment();
+                onLoanBits[i >>> ON_LOAN_SEGMENT_BITS][(i >>> 6)
+                        & (ON_LOAN_SEGMENT_WORDS - 1)] |= 1L << i;
+            }
+        }
+    }
+
+    /**
+     * getTotalOnLoan
+     *
+     * Get the amount of copies of all books out on loan.
+     *
+     * @return the amount of copies out on loan
+     */
+    public long getTotalOnLoan() {
+        return totalOnLoan.sum();
+    }
+
+    /**
+     * getBooksAvailable
+     *
+     * Get the amount of books with at least one copy not on loan.
+     *
+     * @return the amount of books available
+     */
+    public long getBooksAvailable() {
+        return booksAvailable.sum();
+    }
+
+    /**
+     * getLoanedBooks
+     *
+     * Get the books with copies out on loan, in order of ID. Only books with
+     * loans are visited, skipping 64 books at a time without any.
+     *
+     * @return the books with copies out on loan
+     */
+    public BookList getLoanedBooks() {
+        BookList books = new BookList(INITIAL_RESULTS);
+        long[][] segments = onLoanBits;
+        for (int segment = 0; segment < segments.length; segment++) {
+            long[] bits = segments[segment];
+            int first = segment << ON_LOAN_SEGMENT_BITS;
+            for (int word = 0; word < bits.length; word++) {
+                long wordBits = bits[word];
+                while (wordBits != 0) {
+                    books.add(first + (word << 6)
+                            + Long.numberOfTrailingZeros(wordBits));
+                    wordBits &= wordBits - 1;
+                }
+            }
+        }
+        return books;
+    }
+
+    /**
+     * uncountBook
+     *
+     * Remove a book from the totals of loans and available books, before it
+     * is replaced.
+     *
+     * @param bookIndex the index of the book
+     */
+    private void uncountBook(int bookIndex) {
+        int loans = getBooksOnLoan(bookIndex);
+        totalOnLoan.add(-loans);
+        if (bookCopies[bookIndex] > loans) {
+            booksAvailable.decrement();
+        }
+        if (loans > 0) {
+            booksWithLoans.decrement();
+        }
+    }
+
+    /**
+     * updateOnLoanBit
+     *
+     * Set or clear a book's bit in onLoanBits to match whether it has
+     * copies on loan. The loans are checked again after the bit is written,
+     * since another thread may have changed them in the meantime.
+     *
+     * @param bookIndex the index of the book
+     */
+    private void updateOnLoanBit(int bookIndex) {
+        long[] bits = onLoanBits[bookIndex >>> ON_LOAN_SEGMENT_BITS];
+        int word = (bookIndex >>> 6) & (ON_LOAN_SEGMENT_WORDS - 1);
+        long bit = 1L << bookIndex;
+        boolean onLoan;
+        do {
+            onLoan = getBooksOnLoan(bookIndex) > 0;
+            if (onLoan) {
+                ON_LOAN_BITS.getAndBitwiseOr(bits, word, bit);
+            } else {
+                ON_LOAN_BITS.getAndBitwiseAnd(bits, word, ~bit);
+            }
+        } while ((getBooksOnLoan(bookIndex) > 0) != onLoan);
+    }
+
+    /**
+     * getOverdueLoans
+     *
+     * Get the copies on loan that were due before a time, most overdue
+     * first. Each stripe's heap of due times is walked from its root,
+     * always visiting the earliest due record found so far in any stripe,
+     * and records due later are never visited, so finding k overdue loans
+     * takes O(k log k) time however many copies are on loan.
+     *
+     * @param now the time in milliseconds since the epoch
+     * @return    the overdue loans
+     */
+    public LoanList getOverdueLoans(long now) {
+        long startTime = metrics.start();
+        LoanList loans = new LoanList(INITIAL_RESULTS);
+
+        lockLoanStripes();
+        try {
+            // Stripes and heap positions still to visit, as a heap of their
+            // own
+            long[] visits = new long[Math.max(INITIAL_RESULTS, LOAN_STRIPES)];
+            int count = 0;
+            for (int i = 0; i < LOAN_STRIPES; i++) {
+                LoanRecords stripe = loanStripes[i];
+                if (stripe.size() > 0 && stripe.getDueTime(
+                        stripe.getHeapRecord(0)) < now) {
+                    visits[count] = (long) i << 32;
+                    siftVisitUp(visits, count++);
+                }
+            }
+
+            while (count > 0) {
+                long visit = visits[0];
+                visits[0] = visits[--count];
+                siftVisitDown(visits, count, 0);
+
+                LoanRecords stripe = loanStripes[(int) (visit >>> 32)];
+                int position = (int) visit;
+                int record = stripe.getHeapRecord(position);
+                loans.add(stripe.getBook(record), stripe.getPatron(record),
+                        stripe.getLoanTime(record), stripe.getDueTime(record));
+
+                // Children are due no earlier than their parent
+                for (int child = 2 * position + 1;
+                        child <= 2 * position + 2; child++) {
+                    if (child < stripe.size() && stripe.getDueTime(
+                            stripe.getHeapRecord(child)) < now) {
+                        if (count == visits.length) {
+                            visits = Arrays.copyOf(visits, count * 2);
+                        }
+                        visits[count] = visit - position + child;
+                        siftVisitUp(visits, count++);
+                    }
+                }
+            }
+        } finally {
+            unlockLoanStripes();
+        }
+        metrics.record(CatalogMetrics.OVERDUE_LOANS, startTime);
+        return loans;
+    }
+
+    /**
+     * getLoans
+     *
+     * Get the copies of a book on loan, loaned most recently first.
+     *
+     * @param bookIndex the index of the book
+     * @return          the loans of the book
+     */
+    public LoanList getLoans(int bookIndex) {
+        LoanList loans = new LoanList(INITIAL_RESULTS);
+        LoanRecords stripe = getLoanStripe(bookIndex);
+        stripe.lock.lock();
+        try {
+            for (int record = stripe.getFirst(bookIndex); record >= 0;
+                    record = stripe.getNext(record)) {
+                loans.add(bookIndex, stripe.getPatron(record),
+                        stripe.getLoanTime(record), stripe.getDueTime(record));
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        return loans;
+    }
+
+    /**
+     * getVisitDueTime
+     *
+     * Get when the record at a stripe's heap position to visit is due.
+     *
+     * @param visit the stripe, shifted left by 32, and the heap position
+     * @return      the due time in milliseconds since the epoch
+     */
+    private long getVisitDueTime(long visit) {
+        LoanRecords stripe = loanStripes[(int) (visit >>> 32)];
+        return stripe.getDueTime(stripe.getHeapRecord((int) visit));
+    }
+
+    /**
+     * siftVisitUp
+     *
+     * Move a heap position up the heap of positions to visit, ordered by
+     * the due times of their records.
+     *
+     * @param visits the heap of stripes and positions
+     * @param i      where the position is in the heap
+     */
+    private void siftVisitUp(long[] visits, int i) {
+        long visit = visits[i];
+        long due = getVisitDueTime(visit);
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (getVisitDueTime(visits[parent]) <= due) {
+                break;
+            }
+            visits[i] = visits[parent];
+            i = parent;
+        }
+        visits[i] = visit;
+    }
+
+    /**
+     * siftVisitDown
+     *
+     * Move a heap position down the heap of positions to visit, ordered by
+     * the due times of their records.
+     *
+     * @param visits the heap of stripes and positions
+     * @param count  the amount of positions in the heap
+     * @param i      where the position is in the heap
+     */
+    private void siftVisitDown(long[] visits, int count, int i) {
+        if (count == 0) {
+            return;
+        }
+        long visit = visits[i];
+        long due = getVisitDueTime(visit);
+        while (2 * i + 1 < count) {
+            int child = 2 * i + 1;
+            if (child + 1 < count && getVisitDueTime(visits[child + 1])
+                    < getVisitDueTime(visits[child])) {
+                child++;
+            }
+            if (due <= getVisitDueTime(visits[child])) {
+                break;
+            }
+            visits[i] = visits[child];
+            i = child;
+        }
+        visits[i] = visit;
+    }
+
+    /**
+     * newLoanStripes
+     *
+     * Make the loan stripes, with no records.
+     *
+     * @return the loan stripes
+     */
+    private static LoanRecords[] newLoanStripes() {
+        LoanRecords[] stripes = new LoanRecords[LOAN_STRIPES];
+        for (int i = 0; i < LOAN_STRIPES; i++) {
+            stripes[i] = new LoanRecords(LOAN_STRIPE_BITS);
+        }
+        return stripes;
+    }
+
+    /**
+     * getLoanStripe
+     *
+     * Get the loan stripe of a book, which holds its loan records and the
+     * lock its loans are changed with.
+     *
+     * @param bookIndex the index of the book
+     * @return          the loan stripe
+     */
+    private LoanRecords getLoanStripe(int bookIndex) {
+        return loanStripes[bookIndex & (LOAN_STRIPES - 1)];
+    }
+
+    /**
+     * lockLoanStripes
+     *
+     * Lock every loan stripe, in order so two threads locking them all
+     * can't deadlock. Must not be called holding a single stripe.
+     */
+    private void lockLoanStripes() {
+        for (LoanRecords stripe : loanStripes) {
+            stripe.lock.lock();
+        }
+    }
+
+    /**
+     * unlockLoanStripes
+     *
+     * Unlock every loan stripe locked by lockLoanStripes.
+     */
+    private void unlockLoanStripes() {
+        for (int i = LOAN_STRIPES - 1; i >= 0; i--) {
+            loanStripes[i].lock.unlock();
+        }
+    }
+}
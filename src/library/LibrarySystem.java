@@ -0,0 +1,2704 @@
+/*
+ * LibrarySystem.java
+ *
+ * Culminating Performance Task
+ * 2023-08-10
+ *
+ * This program simulates a library system in which a user can set up their
+ * own library and utilize several functionalities similar to a real library.
+ *
+ * The user would be able to:
+ *  - Add their own books
+ *  - Loan books
+ *  - Return books
+ *  - Search for books
+ *  - Display all books or books on loan
+ *  - Display overdue books
+ */
+
+package library;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+
+public class LibrarySystem {
+    // Allow for user input
+    private static Scanner input = new Scanner(System.in);
+
+    // The library used by the menu, the server and batches
+    static final LibraryCatalog catalog = new LibraryCatalog();
+
+    // Connections waiting to be accepted by the server
+    private static final int SERVER_BACKLOG = 4096;
+
+    // Requests longer than this close the connection
+    private static final int MAX_REQUEST_LENGTH = 64 * 1024;
+
+    // Most books a FUZZY request can ask for
+    private static final int MAX_FUZZY_RESULTS = 1000;
+
+    // Requests that change the catalog, which wait for the log to be
+    // forced, are run by writer threads so the server thread never waits.
+    // Writes that finish together share a force, so several run at once
+    private static final int SERVER_WRITERS = 32;
+
+    // Connections whose write has finished, for the server thread to send
+    private static final ConcurrentLinkedQueue<SelectionKey> finishedWrites =
+            new ConcurrentLinkedQueue<>();
+
+    // How long the server stops accepting connections after failing to
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    // Cleared to stop the server, which then saves the catalog and counts
+    // down serverStopped
+    private static volatile boolean serverRunning = false;
+    private static final CountDownLatch serverStopped = new CountDownLatch(1);
+
+    // Rejected batch events printed, by line number
+    private static final int MAX_PRINTED_REJECTIONS = 20;
+
+    // Books shown per page in a terminal, or 0 to show all at once
+    private static int pageSize = 20;
+
+    // File the statistics are written to on exit, if any
+    private static Path statisticsPath = null;
+
+    // Due times and loan times are printed in this format
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    // Lists of books are rendered here and printed in chunks of this size
+    private static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
+    private static final StringBuilder output =
+            new StringBuilder(OUTPUT_CHUNK_SIZE + 1024);
+
+    public static void main(String[] args) {
+        String importPath = null;
+        String batchPath = null;
+        int servePort = 0;
+        String loadTestAddress = null;
+        Path dataDirectory = null;
+        Path catalogPath = null;
+        int loadTestClients = 100;
+        int loadTestSeconds = 10;
+
+        // Snapshots are taken while serving, so their errors are printed
+        catalog.setSnapshotErrorHandler(e -> System.err.printf(
+                "Could not save a snapshot of the catalog: %s\n",
+                e.getMessage()));
+
+        // Read command line options, each followed by its value, and stop
+        // at the first that is unknown or invalid
+        for (int i = 0; i < args.length; i += 2) {
+            String option = args[i];
+            try {
+                switch (option) {
+                    case "--import" -> importPath = optionValue(args, i);
+                    case "--data" -> dataDirectory =
+                            Path.of(optionValue(args, i));
+                    case "--catalog" -> catalogPath =
+                            Path.of(optionValue(args, i));
+                    case "--batch" -> batchPath = optionValue(args, i);
+                    case "--page-size" -> pageSize =
+                            numberOption(optionValue(args, i));
+                    case "--query-cache" -> catalog.setQueryCacheSize(
+                            numberOption(optionValue(args, i)));
+                    case "--metrics" -> catalog.getMetrics().setEnabled(
+                            !optionValue(args, i).equalsIgnoreCase("off"));
+                    case "--stats" -> statisticsPath =
+                            Path.of(optionValue(args, i));
+                    case "--loan-days" -> catalog.setLoanPeriod((long)
+                            (daysOption(optionValue(args, i))
+                            * MILLIS_PER_DAY));
+                    case "--serve" -> servePort =
+                            numberOption(optionValue(args, i));
+                    case "--load-test" -> loadTestAddress =
+                            optionValue(args, i);
+                    case "--clients" -> loadTestClients =
+                            numberOption(optionValue(args, i));
+                    case "--seconds" -> loadTestSeconds =
+                            numberOption(optionValue(args, i));
+                    case "--fsync" -> {
+                        String policy = optionValue(args, i);
+                        switch (policy.toLowerCase()) {
+                            case "always" -> catalog.setFsyncPolicy(
+                                    LibraryCatalog.FSYNC_ALWAYS);
+                            case "group" -> catalog.setFsyncPolicy(
+                                    LibraryCatalog.FSYNC_GROUP);
+                            case "never" -> catalog.setFsyncPolicy(
+                                    LibraryCatalog.FSYNC_NEVER);
+                            default -> throw new IllegalArgumentException(
+                                    "'" + policy + "' is not always, "
+                                    + "group or never");
+                        }
+                    }
+                    default -> {
+                        System.out.printf("Unknown option '%s'.\n", option);
+                        return;
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.printf("Invalid option %s: %s.\n", option,
+                        e.getMessage());
+                return;
+            }
+        }
+
+        // Load test a running server instead of using a library
+        if (loadTestAddress != null) {
+            runLoadTest(loadTestAddress, loadTestClients, loadTestSeconds);
+            return;
+        }
+
+        // Let JMX tools such as JConsole read the metrics
+        try {
+            catalog.getMetrics().register("library");
+        } catch (JMException e) {
+            System.out.printf("Could not register the metrics: %s\n",
+                    e.getMessage());
+        }
+
+        // Load the saved catalog and import a catalog file, if any
+        if (dataDirectory != null) {
+            if (catalogPath != null) {
+                System.out.println("--catalog is ignored when --data is "
+                        + "given.");
+            }
+            recoverBooks(dataDirectory);
+        } else if (catalogPath != null) {
+            openCatalog(catalogPath);
+        }
+        if (importPath != null) {
+            importBooks(importPath);
+        }
+
+        // Run a batch of events or serve the library over the network
+        // instead of the menu
+        if ((batchPath != null || servePort > 0)
+                && catalog.getBookCount() < 1) {
+            System.out.println("Set up or import books first.");
+            return;
+        }
+        if (batchPath != null) {
+            runBatch(batchPath);
+            closeBooks();
+            return;
+        }
+        if (servePort > 0) {
+            serveBooks(servePort);
+            closeBooks();
+            serverStopped.countDown();
+            return;
+        }
+
+        displayMenu();
+        String userInput = getInput(">").toUpperCase();
+        String errorMessage = "";
+
+        // Allow user to pick menu options
+        while (!userInput.equals("X")) {
+            // Check if setup process has been done
+            if (catalog.getBookCount() < 1) {
+                if (userInput.equals("S")) {
+                    setUpBooks();
+                    waitToExit();
+                } else if (userInput.equals("I")) {
+                    importBooks(getInput(
+                            "\nEnter the path of the catalog file: "));
+                    waitToExit();
+                } else if (userInput.equals("H")) {
+                    displayHelp();
+                    waitToExitHelp();
+                } else if ("FDOVMAPELR".contains(userInput)
+                        && !userInput.isEmpty()) {
+                    // Check if inputs that require book setup were entered
+                    errorMessage = ">Set up books first! [S]\n";
+                } else {
+                    errorMessage = ">Please enter a valid letter.\n";
+                }
+            } else {
+                switch (userInput) {
+                    case "F" -> {
+                        searchBooks();
+                        waitToExit();
+                    }
+                    case "D" -> {
+                        displayBooks();
+                        waitToExit();
+                    }
+                    case "O" -> {
+                        displayOnLoan();
+                        waitToExit();
+                    }
+                    case "V" -> {
+                        displayOverdue();
+                        waitToExit();
+                    }
+                    case "M" -> {
+                        displayStatistics();
+                        waitToExit();
+                    }
+                    case "A" -> {
+                        addBook();
+                        waitToExit();
+                    }
+                    case "P" -> {
+                        replaceBook();
+                        waitToExit();
+                    }
+                    case "E" -> {
+                        deleteBook();
+                        waitToExit();
+                    }
+                    case "L" -> {
+                        loanBook();
+                        waitToExit();
+                    }
+                    case "R" -> {
+                        returnBook();
+                        waitToExit();
+                    }
+                    case "H" -> {
+                        displayHelp();
+                        waitToExitHelp();
+                    }
+                    default -> errorMessage =
+                            ">Please enter a valid letter.\n";
+                }
+            }
+            displayMenu();
+
+            // Print and reset error message, if any
+            System.out.print(errorMessage);
+            errorMessage = "";
+
+            userInput = getInput(">").toUpperCase();
+        }
+        closeBooks();
+        System.out.println(">Thank you for visiting!");
+    }
+
+    /**
+     * recoverBooks
+     *
+     * Load the catalog saved in the data directory given on the command
+     * line. Every change is saved to the directory from then on.
+     *
+     * @param directory the data directory
+     */
+    private static void recoverBooks(Path directory) {
+        long startTime = System.nanoTime();
+        int replayed;
+
+        try {
+            replayed = catalog.recover(directory);
+        } catch (IOException e) {
+            System.out.printf("Could not load the saved catalog: %s\n",
+                    e.getMessage());
+            System.out.println("Changes will not be saved.");
+            return;
+        }
+
+        if (catalog.getBookCount() > 0) {
+            double milliseconds = (System.nanoTime() - startTime) / 1e6;
+            System.out.printf("Recovered %d books and replayed %d operations "
+                    + "in %.2f ms.\n", catalog.getBookCount(), replayed,
+                    milliseconds);
+        }
+    }
+
+    /**
+     * openCatalog
+     *
+     * Open the catalog file given on the command line. Loans and returns
+     * are written straight to the file.
+     *
+     * @param path the path of the catalog file
+     */
+    private static void openCatalog(Path path) {
+        long startTime = System.nanoTime();
+        boolean exists = Files.exists(path);
+
+        try {
+            catalog.open(path);
+        } catch (IOException e) {
+            System.out.printf("Could not open \"%s\": %s\n", path,
+                    e.getMessage());
+            return;
+        }
+
+        if (exists) {
+            double milliseconds = (System.nanoTime() - startTime) / 1e6;
+            System.out.printf("Opened %d books in %.2f ms.\n",
+                    catalog.getBookCount(), milliseconds);
+        }
+    }
+
+    /**
+     * closeBooks
+     *
+     * Save the library before exiting, to the data directory or catalog
+     * file if one is used.
+     */
+    private static void closeBooks() {
+        try {
+            catalog.close();
+        } catch (IOException e) {
+            System.out.printf("Could not save the catalog: %s\n",
+                    e.getMessage());
+        }
+
+        long commitCount = catalog.getCommitCount();
+        if (commitCount > 0) {
+            System.out.printf(">Committed %d operations (average %.3f ms, "
+                    + "max %.3f ms).\n", commitCount,
+                    catalog.getCommitNanos() / 1e6 / commitCount,
+                    catalog.getMaxCommitNanos() / 1e6);
+        }
+
+        long searches = catalog.getQueryCacheHits()
+                + catalog.getQueryCacheMisses();
+        if (searches > 0) {
+            System.out.printf(">Query cache: %d hits, %d misses (%.1f%% hit "
+                    + "rate), %d evictions, %d KB used.\n",
+                    catalog.getQueryCacheHits(), catalog.getQueryCacheMisses(),
+                    100.0 * catalog.getQueryCacheHits() / searches,
+                    catalog.getQueryCacheEvictions(),
+                    catalog.getQueryCacheBytes() / 1024);
+        }
+
+        // Write the statistics for later comparison
+        if (statisticsPath != null) {
+            StringBuilder report = new StringBuilder();
+            appendStatistics(report);
+            try {
+                Files.writeString(statisticsPath, report);
+            } catch (IOException e) {
+                System.out.printf("Could not write \"%s\": %s\n",
+                        statisticsPath, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * getInput
+     *
+     * Given a message, prompt the user.
+     *
+     * @param message message to be outputted
+     * @return        string the user inputted
+     */
+    private static String getInput(String message) {
+        System.out.print(message);
+        return input.nextLine().strip();
+    }
+
+    /**
+     * getChoice
+     *
+     * Given a message, prompt the user for a "yes" or "no" answer.
+     *
+     * @param message message to be outputted
+     * @return        a boolean indicating yes (true) or no (false)
+     */
+    private static boolean getChoice(String message) {
+        String userInput = getInput(message).toUpperCase();
+
+        // Continue prompting for a yes or no answer
+        while (!userInput.equals("Y") && !userInput.equals("N")) {
+            System.out.println("Please enter 'Y' or 'N'.");
+            userInput = getInput(message).toUpperCase();
+        }
+        return userInput.equals("Y");
+    }
+
+    /**
+     * waitToExit
+     *
+     * Continually prompt user until they exit. Useful for when exiting
+     * is the only option.
+     */
+    private static void waitToExit() {
+        System.out.println("\n\n[X] EXIT\n");
+        String userInput = getInput(">").toUpperCase();
+
+        // Print input prompt until user exits
+        while (!userInput.equals("X")) {
+            System.out.println(">Enter 'X' to exit.");
+            userInput = getInput(">").toUpperCase();
+        }
+    }
+
+    /**
+     * waitToExitHelp
+     *
+     * Continually prompt user until they exit the Help Menu.
+     */
+    private static void waitToExitHelp() {
+        String userInput = getInput(">").toUpperCase();
+
+        while (!userInput.equals("X")) {
+            if (userInput.equals("E")) {
+                System.out.println(">Good job!");
+            } else {
+                System.out.println(">Not quite!");
+            }
+            userInput = getInput(">").toUpperCase();
+        }
+    }
+
+    /**
+     * getBookIndex
+     *
+     * Prompt user to input the location (ID) of a book that was not
+     * deleted.
+     *
+     * @return an integer indicating the index of the book array.
+     */
+    private static int getBookIndex() {
+        int bookElements = catalog.getBookSlots();
+        int index = -1;
+
+        // Get the index of the book to be replaced
+        while (index < 0 || index >= bookElements
+                || catalog.isDeleted(index)) {
+            // Validate input
+            try {
+                index = Integer.parseInt(getInput(String.format(
+                        "\nEnter the book ID (max: %d, starting from 1): ",
+                        bookElements))) - 1;
+            } catch (NumberFormatException e) {
+                System.out.printf(
+                        "Please enter an integer value from 1 to %d.\n",
+                        bookElements);
+                continue;
+            }
+
+            // Validate number input
+            if (index < 0 || index >= bookElements) {
+                System.out.printf(
+                        "Please enter an integer value from 1 to %d.\n",
+                        bookElements);
+            } else if (catalog.isDeleted(index)) {
+                System.out.println("This book was deleted! Please choose "
+                        + "another book.");
+            }
+        }
+        return index;
+    }
+
+    /**
+     * getPatronId
+     *
+     * Prompt user to input the ID of a patron.
+     *
+     * @param message      the prompt
+     * @param allowUnknown whether 0 may be entered for an unknown patron
+     * @return             the ID of the patron
+     */
+    private static int getPatronId(String message, boolean allowUnknown) {
+        int minimum = allowUnknown ? LibraryCatalog.UNKNOWN_PATRON : 1;
+        while (true) {
+            try {
+                int patron = Integer.parseInt(getInput(message));
+                if (patron >= minimum) {
+                    return patron;
+                }
+            } catch (NumberFormatException e) {
+                // Asked again below
+            }
+            System.out.printf("Please enter an integer value of %d or "
+                    + "more.\n", minimum);
+        }
+    }
+
+    /**
+     * displayMenu
+     *
+     * Display a menu depending on the state of the program.
+     */
+    private static void displayMenu() {
+        // Title ASCII art (displays "std.Library")
+        String title = """
+                     _      _   _     _ _
+                 ___| |_ __| | | |   (_) |__  _ __ __ _ _ __ _   _
+                / __| __/ _` | | |   | | '_ \\| '__/ _` | '__| | | |
+                \\__ \\ || (_| |_| |___| | |_) | | | (_| | |  | |_| |
+                |___/\\__\\__,_(_)_____|_|_.__/|_|  \\__,_|_|   \\__, |
+                                                             |___/""";
+
+        // Information text block for when books have not been set up
+        String startInformation = """
+                
+                ENTER LETTER TO START
+                
+                [S] SET UP BOOKS
+                [I] IMPORT BOOKS
+                
+                [H] HELP
+                [X] EXIT
+                
+                """;
+
+        // Information text block for when books have been set up
+        String information = """
+                
+                ENTER LETTER TO START
+                
+                [F] SEARCH BOOKS
+                [D] DISPLAY ALL BOOKS
+                [O] DISPLAY BOOKS ON LOAN
+                [V] DISPLAY OVERDUE BOOKS
+                [M] DISPLAY STATISTICS
+                
+                [A] ADD BOOK
+                [P] REPLACE BOOK
+                [E] DELETE BOOK
+                [L] LOAN BOOK
+                [R] RETURN BOOK
+                
+                [H] HELP
+                [X] EXIT
+                
+                """;
+
+        // Print menu based on if books have been set up
+        System.out.print(title
+                + (catalog.getBookCount() > 0 ? information
+                : startInformation));
+    }
+
+    /**
+     * displayHelp
+     *
+     * Display help message.
+     */
+    private static void displayHelp() {
+        System.out.print("""
+                HELP!
+
+                WHAT DOES THIS PROGRAM DO?
+                This program keeps track of books in a virtual library.
+
+                HOW DO I NAVIGATE THE MENU?
+                To interact with the library, type the key specified
+                in the brackets, [] in the menu and click enter:
+
+                    Type this! -> [E] EXAMPLE
+                    (In this example, 'E' or 'e' should be typed)
+
+                    Try it out!
+
+
+                [X] EXIT
+
+                """);
+    }
+
+    /**
+     * setUpBooks
+     *
+     * Given a user-specified amount of elements, set book array lengths.
+     */
+    private static void setUpBooks() {
+        // Print header
+        System.out.println("\nSET UP\n\n");
+
+        int bookElements;
+
+        // Get the amount of elements and set up length of book arrays
+        while (true) {
+            // Validate if input is an integer
+            try {
+                bookElements = Integer.parseInt(getInput(
+                        "Enter the amount of unique titles in the library: "));
+            } catch (NumberFormatException e) {
+                System.out.println("Please enter an integer value over 0.\n");
+                continue;
+            }
+
+            // Validate if array length is possible
+            if (bookElements < 1) {
+                System.out.println("Please enter a positive value.\n");
+            } else {
+                // Check if array length can be assigned the given value
+                try {
+                    catalog.startBooks(bookElements);
+                } catch (OutOfMemoryError e) {
+                    System.out.println("Too many books!\n");
+                    continue;
+                }
+                break;
+            }
+        }
+
+        // Assign names to books
+        for (int i = 0; i < bookElements; i++) {
+            // Print header
+            System.out.printf("\nBOOK %d\n\n", i + 1);
+
+            // Only add unique books
+            String bookTitle = getInput("Enter the book's title: ");
+            String bookAuthor = getInput("Enter the book's author: ");
+
+            while (catalog.searchExistingBooks(bookTitle, bookAuthor)) {
+                System.out.println("This book already exists!\n");
+                bookTitle = getInput("Enter the book's title: ");
+                bookAuthor = getInput("Enter the book's author: ");
+            }
+
+            // Validate if input is an integer
+            int copyAmount;
+            while (true) {
+                try {
+                    copyAmount = Integer.parseInt(getInput(
+                            "Enter the amount of copies the library owns: "));
+                } catch (NumberFormatException e) {
+                    System.out.println(
+                            "Please enter an integer value over 0.\n");
+                    continue;
+                }
+
+                // Validate if number of books are possible
+                if (copyAmount < 1) {
+                    System.out.println("Please enter a positive value.\n");
+                } else {
+                    break;
+                }
+            }
+            catalog.appendBook(bookTitle, bookAuthor, copyAmount);
+        }
+        System.out.println("\nBooks set up successfully!");
+        finishBooks();
+    }
+
+    /**
+     * importBooks
+     *
+     * Given the path of a comma or tab separated file, set up the book arrays
+     * from its rows. Each row holds a title, an author and the amount of
+     * copies. Duplicate books and invalid rows are skipped. Books already
+     * loaded, such as a recovered catalog, are never replaced, since a
+     * file that fails halfway would leave nothing of them.
+     *
+     * @param path the path of the catalog file
+     */
+    private static void importBooks(String path) {
+        // Print header
+        System.out.println("\nIMPORT\n\n");
+
+        if (catalog.getBookCount() > 0) {
+            System.out.printf("The catalog already has %d books, so \"%s\" "
+                    + "was not imported.\n", catalog.getBookCount(), path);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+
+        // Rows are added straight to the catalog, which grows in chunks
+        catalog.startBooks(0);
+        int rows = 0;
+
+        // Keep track of rows that were not imported
+        int duplicateRows = 0;
+        int invalidRows = 0;
+        String[] fields = new String[3];
+
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(path),
+                StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+
+            // Tab separated files are detected from the first row
+            char delimiter = line != null && line.indexOf('\t') >= 0
+                    ? '\t' : ',';
+            boolean firstRow = true;
+
+            for (; line != null; line = reader.readLine()) {
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                // Validate row
+                int copyAmount = -1;
+                if (splitRow(line, delimiter, fields) == 3
+                        && !fields[0].isEmpty() && !fields[1].isEmpty()) {
+                    try {
+                        copyAmount = Integer.parseInt(fields[2]);
+                    } catch (NumberFormatException e) {
+                        copyAmount = -1;
+                    }
+                }
+
+                if (copyAmount < 1) {
+                    // An invalid first row is a header
+                    if (!firstRow) {
+                        invalidRows++;
+                    }
+                    firstRow = false;
+                    continue;
+                }
+                firstRow = false;
+
+                // Only add unique books
+                if (catalog.appendBook(fields[0], fields[1], copyAmount)) {
+                    rows++;
+                } else {
+                    duplicateRows++;
+                }
+            }
+        } catch (IOException e) {
+            System.out.printf("Could not read \"%s\": %s\n", path,
+                    e.getMessage());
+            return;
+        } catch (OutOfMemoryError e) {
+            System.out.println("Too many books!");
+            return;
+        }
+
+        if (rows < 1) {
+            System.out.println("No books found in the catalog file!");
+            return;
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("""
+                Imported %d books in %.2f seconds (%.0f rows/sec).
+                Skipped %d duplicate and %d invalid rows.
+                """, rows, seconds, rows / seconds, duplicateRows,
+                invalidRows);
+        System.out.println("\nBooks set up successfully!");
+        finishBooks();
+    }
+
+    /**
+     * finishBooks
+     *
+     * Finish setting up or importing books and save them, to a snapshot or
+     * catalog file depending on the command line options.
+     */
+    private static void finishBooks() {
+        try {
+            catalog.finishBooks();
+        } catch (IOException e) {
+            System.out.printf("Could not save the catalog: %s\n",
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * splitRow
+     *
+     * Split a row of a catalog file into fields. Fields may be surrounded in
+     * double quotes, where two double quotes represent one.
+     *
+     * @param line      the row to be split
+     * @param delimiter the character separating fields
+     * @param fields    the array the fields are stored in
+     * @return          the amount of fields in the row
+     */
+    static int splitRow(String line, char delimiter, String[] fields) {
+        int fieldCount = 0;
+        int i = 0;
+        int length = line.length();
+
+        while (i <= length) {
+            String field;
+
+            if (i < length && line.charAt(i) == '"') {
+                // Quoted field
+                StringBuilder builder = new StringBuilder();
+                i++;
+                while (i < length) {
+                    char c = line.charAt(i++);
+                    if (c != '"') {
+                        builder.append(c);
+                    } else if (i < length && line.charAt(i) == '"') {
+                        builder.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+
+                // Skip to the next delimiter
+                int end = line.indexOf(delimiter, i);
+                i = end < 0 ? length : end;
+                field = builder.toString();
+            } else {
+                int end = line.indexOf(delimiter, i);
+                if (end < 0) {
+                    end = length;
+                }
+                field = line.substring(i, end);
+                i = end;
+            }
+
+            if (fieldCount < fields.length) {
+                fields[fieldCount] = field.strip();
+            }
+            fieldCount++;
+
+            // Move past delimiter
+            i++;
+        }
+        return fieldCount;
+    }
+
+    /**
+     * findBooks
+     *
+     * Search the titles or authors of books. A query surrounded in double
+     * quotes is a full title or author, otherwise any title or author
+     * containing it is found.
+     *
+     * @param key   the key to search (TITLE_KEY or AUTHOR_KEY)
+     * @param query the search query
+     * @return      the books found, in order of ID
+     */
+    private static LibraryCatalog.BookList findBooks(int key, String query) {
+        // Query is a full name of a title or author if surrounded in quotes
+        if (query.length() > 1 && query.charAt(0) == '"'
+                && query.charAt(query.length() - 1) == '"') {
+            return catalog.search(key, query.substring(1, query.length() - 1),
+                    LibraryCatalog.SEARCH_EXACT);
+        }
+        return catalog.search(key, query, LibraryCatalog.SEARCH_CONTAINS);
+    }
+
+    /**
+     * searchBooks
+     *
+     * Given a query, search for a title or author and display the results.
+     */
+    private static void searchBooks() {
+        String query = getInput("""
+                
+                Enter a search query. Use double quotes to search an exact \
+                title or author, end with * to search titles or authors \
+                starting with it, use from..to to search a range, start \
+                with ~ to allow typos, or combine words with AND, OR, NOT, \
+                title: and author:\s""");
+
+        // Boolean queries search titles and authors at once
+        if (LibraryCatalog.isBooleanQuery(query)) {
+            LibraryCatalog.BookList results;
+            try {
+                results = catalog.search(LibraryCatalog.TITLE_KEY, query,
+                        LibraryCatalog.SEARCH_WORDS);
+            } catch (IllegalArgumentException e) {
+                System.out.printf("\nInvalid query: %s\n", e.getMessage());
+                return;
+            }
+
+            System.out.printf("\nSEARCH RESULTS (%d)\n", results.size());
+            if (results.size() > 0) {
+                displayPages(results, true);
+            } else {
+                System.out.println("\nNo books found!");
+            }
+            return;
+        }
+
+        // Prompt user to search titles or authors
+        String userInput = getInput(
+                "\nDo you want to search book titles [T] or authors [A]: ")
+                .toUpperCase();
+        while (!"TA".contains(userInput) || userInput.isEmpty()) {
+            System.out.println("Please enter 'T' or 'A'.");
+            userInput = getInput(
+                    "\nDo you want to search book titles [T] or authors [A]: ")
+                    .toUpperCase();
+        }
+
+        int key = userInput.equals("T") ? LibraryCatalog.TITLE_KEY
+                : LibraryCatalog.AUTHOR_KEY;
+
+        // Fuzzy searches list the closest books, closest first
+        if (query.length() > 1 && query.startsWith("~")) {
+            LibraryCatalog.BookList closest = catalog.fuzzySearch(key,
+                    query.substring(1), LibraryCatalog.FUZZY_RESULTS);
+            System.out.printf("\nCLOSEST MATCHES (%d)\n", closest.size());
+            if (closest.size() > 0) {
+                displayPages(closest, true);
+            } else {
+                System.out.println("\nNo books found!");
+            }
+            return;
+        }
+
+        // Prefix and range searches list part of the sorted indexes, and
+        // other searches list books in order of ID
+        LibraryCatalog.BookList results;
+        int rangeSeparator = query.indexOf("..");
+        if (query.length() > 1 && query.endsWith("*")) {
+            results = catalog.prefixSearch(key, query.substring(0,
+                    query.length() - 1), 0);
+        } else if (rangeSeparator > 0) {
+            results = catalog.rangeSearch(key, query.substring(0,
+                    rangeSeparator), query.substring(rangeSeparator + 2), 0);
+        } else {
+            results = findBooks(key, query);
+        }
+
+        // Print search results
+        System.out.printf("\nSEARCH RESULTS (%d)\n", results.size());
+        if (results.size() > 0) {
+            displayPages(results, true);
+        } else {
+            System.out.println("\nNo books found!");
+        }
+    }
+
+    /**
+     * displayBooks
+     *
+     * Print all books.
+     */
+    private static void displayBooks() {
+        // Prompt user to choose the order of books
+        String userInput = getInput("\nDo you want to list books by ID [I], "
+                + "title [T] or author [A]: ").toUpperCase();
+        while (!"ITA".contains(userInput) || userInput.isEmpty()) {
+            System.out.println("Please enter 'I', 'T' or 'A'.");
+            userInput = getInput("\nDo you want to list books by ID [I], "
+                    + "title [T] or author [A]: ").toUpperCase();
+        }
+
+        // Use the sorted indexes for title and author order
+        LibraryCatalog.BookList order = null;
+        if (!userInput.equals("I")) {
+            order = catalog.getSortedBooks(userInput.equals("T")
+                    ? LibraryCatalog.TITLE_KEY : LibraryCatalog.AUTHOR_KEY);
+        }
+
+        // Print header and list of all books
+        System.out.printf("\nBOOK LIST (%d)\n", catalog.getBookCount());
+        displayPages(order, false);
+    }
+
+    /**
+     * displayPages
+     *
+     * Print a list of books a page at a time, letting the user move between
+     * pages. All books are printed at once if paging is turned off or the
+     * program is not run in a terminal, such as when output is redirected
+     * to a file.
+     *
+     * @param books      the books in the order to print them, or null to
+     *                   print all books in order of ID
+     * @param showCopies whether to print the copies owned and out on loan
+     */
+    private static void displayPages(LibraryCatalog.BookList books,
+            boolean showCopies) {
+        if (books == null) {
+            books = catalog.listBooks(0, 0);
+        }
+        LibraryCatalog.CatalogView view = catalog.getView();
+        int count = books.size();
+        int booksPerPage = count;
+        if (pageSize > 0 && System.console() != null) {
+            booksPerPage = pageSize;
+        }
+        int pages = Math.max(1, (count + booksPerPage - 1) / booksPerPage);
+        int page = 0;
+
+        while (true) {
+            // Render the page, printing it in chunks
+            int pageEnd = Math.min(count, (page + 1) * booksPerPage);
+            for (int i = page * booksPerPage; i < pageEnd; i++) {
+                appendBook(view, books.get(i), showCopies);
+                if (output.length() >= OUTPUT_CHUNK_SIZE) {
+                    flushOutput();
+                }
+            }
+            flushOutput();
+
+            if (pages == 1) {
+                return;
+            }
+
+            // Prompt user for the next page to show
+            String userInput = getInput(String.format("""
+                    
+                    Page %d of %d. Enter [N] for the next page, [P] for the \
+                    previous page, a page number, or [X] to stop:\s""",
+                    page + 1, pages)).toUpperCase();
+            switch (userInput) {
+                case "N" -> page = Math.min(page + 1, pages - 1);
+                case "P" -> page = Math.max(page - 1, 0);
+                case "X" -> {
+                    return;
+                }
+                default -> {
+                    try {
+                        page = Math.max(0, Math.min(pages - 1,
+                                Integer.parseInt(userInput) - 1));
+                    } catch (NumberFormatException e) {
+                        System.out.println("Please enter 'N', 'P', 'X' or a "
+                                + "page number.");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * appendBook
+     *
+     * Render a book in a list of books to the output buffer.
+     *
+     * @param view       the view of the catalog the list is read from
+     * @param bookIndex  the index of the book
+     * @param showCopies whether to show the copies owned and out on loan
+     */
+    private static void appendBook(LibraryCatalog.CatalogView view,
+            int bookIndex, boolean showCopies) {
+        output.append("\n- \"").append(view.getBookTitle(bookIndex))
+                .append("\" by ").append(view.getBookAuthor(bookIndex))
+                .append("\n\tID: ").append(bookIndex + 1).append('\n');
+        if (showCopies) {
+            output.append("\tCopies owned by library: ")
+                    .append(catalog.getBookCopies(bookIndex))
+                    .append("\n\tCopies out: ")
+                    .append(catalog.getBooksOnLoan(bookIndex)).append('\n');
+        }
+    }
+
+    /**
+     * flushOutput
+     *
+     * Print and clear the output buffer in one write.
+     */
+    private static void flushOutput() {
+        System.out.print(output);
+        System.out.flush();
+        output.setLength(0);
+    }
+
+    /**
+     * displayStatistics
+     *
+     * Print how long each operation on the library has taken, and how well
+     * the query cache works.
+     */
+    private static void displayStatistics() {
+        System.out.println("\nSTATISTICS\n");
+        appendStatistics(output);
+        flushOutput();
+    }
+
+    /**
+     * appendStatistics
+     *
+     * Add the statistics of the library to a text report: the amount of
+     * books, the latency of every operation, and the query cache and
+     * transaction log statistics.
+     *
+     * @param report the report
+     */
+    private static void appendStatistics(StringBuilder report) {
+        report.append(String.format("Books: %d (%d copies on loan)\n\n",
+                catalog.getBookCount(), catalog.getTotalOnLoan()));
+        catalog.getMetrics().appendReport(report);
+
+        long searches = catalog.getQueryCacheHits()
+                + catalog.getQueryCacheMisses();
+        report.append(String.format("\nQuery cache: %d hits, %d misses "
+                + "(%.1f%% hit rate), %d evictions, %d KB used.\n",
+                catalog.getQueryCacheHits(), catalog.getQueryCacheMisses(),
+                searches > 0 ? 100.0 * catalog.getQueryCacheHits() / searches
+                : 0, catalog.getQueryCacheEvictions(),
+                catalog.getQueryCacheBytes() / 1024));
+
+        long commitCount = catalog.getCommitCount();
+        if (commitCount > 0) {
+            report.append(String.format("Committed %d operations (average "
+                    + "%.3f ms, max %.3f ms).\n", commitCount,
+                    catalog.getCommitNanos() / 1e6 / commitCount,
+                    catalog.getMaxCommitNanos() / 1e6));
+        }
+        if (catalog.getSnapshotFailures() > 0) {
+            report.append(String.format("Could not save %d snapshots.\n",
+                    catalog.getSnapshotFailures()));
+        }
+    }
+
+    /**
+     * displayOnLoan
+     *
+     * Print all books out on loan.
+     */
+    private static void displayOnLoan() {
+        long loaned = catalog.getTotalOnLoan();
+
+        // Print header
+        System.out.printf("\nBOOKS ON LOAN (%d)\n", loaned);
+
+        if (loaned > 0) {
+            // Print list of all books on loan
+            LibraryCatalog.BookList books = catalog.getLoanedBooks();
+            LibraryCatalog.CatalogView view = catalog.getView();
+            for (int position = 0; position < books.size(); position++) {
+                int i = books.get(position);
+                output.append("\n- \"").append(view.getBookTitle(i))
+                        .append("\" by ").append(view.getBookAuthor(i))
+                        .append("\n\tID: ").append(i + 1)
+                        .append("\n\tCopies out: ")
+                        .append(catalog.getBooksOnLoan(i)).append('\n');
+                if (output.length() >= OUTPUT_CHUNK_SIZE) {
+                    flushOutput();
+                }
+            }
+            flushOutput();
+        } else {
+            System.out.println("\nThere are no books out on loan.");
+        }
+    }
+
+    /**
+     * displayOverdue
+     *
+     * Print all copies on loan past their due time, most overdue first.
+     */
+    private static void displayOverdue() {
+        long now = System.currentTimeMillis();
+        LibraryCatalog.LoanList loans = catalog.getOverdueLoans(now);
+
+        // Print header
+        System.out.printf("\nOVERDUE BOOKS (%d)\n", loans.size());
+
+        if (loans.size() > 0) {
+            // Print list of all overdue copies
+            LibraryCatalog.CatalogView view = catalog.getView();
+            for (int position = 0; position < loans.size(); position++) {
+                int i = loans.getBook(position);
+                int patron = loans.getPatron(position);
+                long due = loans.getDueTime(position);
+                output.append("\n- \"").append(view.getBookTitle(i))
+                        .append("\" by ").append(view.getBookAuthor(i))
+                        .append("\n\tID: ").append(i + 1)
+                        .append("\n\tPatron: ").append(patron
+                        == LibraryCatalog.UNKNOWN_PATRON ? "unknown"
+                        : String.valueOf(patron))
+                        .append("\n\tDue: ")
+                        .append(TIME_FORMAT.format(Instant.ofEpochMilli(due)))
+                        .append(" (").append((now - due) / MILLIS_PER_DAY)
+                        .append(" days overdue)\n");
+                if (output.length() >= OUTPUT_CHUNK_SIZE) {
+                    flushOutput();
+                }
+            }
+            flushOutput();
+        } else {
+            System.out.println("\nThere are no overdue books.");
+        }
+    }
+
+    /**
+     * addBook
+     *
+     * Add a new book to the catalog, in the slot of a deleted book or after
+     * the last book.
+     */
+    private static void addBook() {
+        // Only add unique books
+        String title = getInput("\nEnter the title of the book: ");
+        String author = getInput("Enter the author of the book: ");
+
+        while (catalog.searchExistingBooks(title, author)) {
+            System.out.println("This book already exists!\n");
+            title = getInput("Enter the title of the book: ");
+            author = getInput("Enter the author of the book: ");
+        }
+
+        // Print header and opening information
+        System.out.println("\nADD A BOOK\n\n");
+        System.out.printf("You are adding the book: \"%s\" by %s.\n", title,
+                author);
+        int copies = getCopyAmount();
+
+        // Another desk may have added the same book in the meantime
+        int index;
+        try {
+            index = catalog.add(title, author, copies);
+        } catch (IllegalArgumentException e) {
+            System.out.println("\nThis book already exists!");
+            return;
+        } catch (UncheckedIOException e) {
+            printSaveError(e);
+            return;
+        }
+        System.out.printf("\nBook added successfully with ID %d!\n",
+                index + 1);
+    }
+
+    /**
+     * replaceBook
+     *
+     * Replace an existing book in the catalog with a new one.
+     */
+    private static void replaceBook() {
+        // Only add unique books
+        String title = getInput("\nEnter the title of the book: ");
+        String author = getInput("Enter the author of the book: ");
+
+        while (catalog.searchExistingBooks(title, author)) {
+            System.out.println("This book already exists!\n");
+            title = getInput("Enter the title of the book: ");
+            author = getInput("Enter the author of the book: ");
+        }
+
+        // Print header and opening information
+        System.out.println("\nREPLACE A BOOK\n\n");
+        System.out.printf("You are adding the book: \"%s\" by %s.\n", title,
+                author);
+
+        int index;
+        do {
+            // Prompt user on if they want to search for a book
+            if (getChoice("\nDo you want to search for a book to replace? "
+                    + "[Y/N]: ")) {
+                searchBooks();
+            }
+
+            // Get book array index
+            index = getBookIndex();
+        } while (!getChoice(String.format("""
+                
+                You are replacing "%s" by %s with "%s" by %s.
+                Are you sure this is the book you want to replace? [Y/N]:\s""",
+                catalog.getBookTitle(index), catalog.getBookAuthor(index),
+                title, author)));
+        int copies = getCopyAmount();
+
+        // Another desk may have added the same book, or deleted the
+        // replaced one, in the meantime
+        try {
+            catalog.replace(index, title, author, copies);
+        } catch (IllegalArgumentException e) {
+            System.out.printf("\nCould not replace the book: %s.\n",
+                    e.getMessage());
+            return;
+        } catch (UncheckedIOException e) {
+            printSaveError(e);
+            return;
+        }
+        System.out.println("\nBook replaced successfully!");
+    }
+
+    /**
+     * getCopyAmount
+     *
+     * Prompt user to input the amount of copies the library owns of a book.
+     *
+     * @return the amount of copies, at least 1
+     */
+    private static int getCopyAmount() {
+        // Validate if input is an integer
+        int copies;
+        while (true) {
+            try {
+                copies = Integer.parseInt(getInput(
+                        "\nEnter the amount of copies the library owns of this"
+                        + " book: "));
+            } catch (NumberFormatException e) {
+                System.out.println("Please enter an integer value over 0.");
+                continue;
+            }
+
+            // Validate if number of books are possible
+            if (copies < 1) {
+                System.out.println("Please enter a positive value.");
+            } else {
+                return copies;
+            }
+        }
+    }
+
+    /**
+     * deleteBook
+     *
+     * Delete a book with no copies on loan from the catalog. The IDs of
+     * other books stay the same.
+     */
+    private static void deleteBook() {
+        // Print header
+        System.out.println("\nDELETE A BOOK\n");
+
+        int index;
+        do {
+            // Prompt user on if they want to search for a book
+            if (getChoice("\nDo you want to search for a book to delete? "
+                    + "[Y/N]: ")) {
+                searchBooks();
+            }
+
+            // Get book array index
+            index = getBookIndex();
+        } while (!getChoice(String.format("""
+                
+                You are deleting "%s" by %s.
+                Are you sure this is the book you want to delete? [Y/N]:\s""",
+                catalog.getBookTitle(index), catalog.getBookAuthor(index))));
+
+        // Another desk may have loaned or deleted the book in the meantime
+        try {
+            catalog.delete(index);
+        } catch (IllegalArgumentException e) {
+            System.out.printf("\nCould not delete the book: %s.\n",
+                    e.getMessage());
+            return;
+        } catch (UncheckedIOException e) {
+            printSaveError(e);
+            return;
+        }
+        System.out.println("\nBook deleted successfully!");
+    }
+
+    /**
+     * printSaveError
+     *
+     * Tell the user a change was not made because it could not be saved.
+     *
+     * @param e the error saving the change
+     */
+    private static void printSaveError(UncheckedIOException e) {
+        System.out.printf("\nThe change could not be saved, so it was not "
+                + "made: %s.\n", e.getCause().getMessage());
+    }
+
+    /**
+     * loanBook
+     *
+     * Allow a user to loan a book. Add a book to the booksOnLoan column by
+     * prompting the user to loan a book.
+     */
+    private static void loanBook() {
+        // Prompt to loan if books are available
+        if (catalog.getBooksAvailable() > 0) {
+            int index;
+            do {
+                // Prompt user on if they want to search for a book
+                if (getChoice("\nDo you want to search for a book to "
+                        + "loan? [Y/N]: ")) {
+                    searchBooks();
+                }
+
+                // Get book array index
+                index = getBookIndex();
+
+                // Check if book can be loaned
+                while (catalog.getBookCopies(index)
+                        - catalog.getBooksOnLoan(index) < 1) {
+                    System.out.println(
+                            "No books available to loan! Please choose "
+                            + "another book.");
+                    index = getBookIndex();
+                }
+            } while (!getChoice(String.format("""
+                    
+                    You are loaning "%s" by %s.
+                    Are you sure this is the book you want to loan? [Y/N]:\s""",
+                    catalog.getBookTitle(index),
+                    catalog.getBookAuthor(index))));
+
+            int patron = getPatronId("\nEnter the patron ID of the borrower: ",
+                    false);
+
+            // Another desk may have loaned the last copy in the meantime
+            try {
+                if (catalog.loan(index, patron)) {
+                    System.out.printf("\nBook loaned successfully! It is "
+                            + "due %s.\n", TIME_FORMAT.format(Instant.now()
+                            .plusMillis(catalog.getLoanPeriod())));
+                } else {
+                    System.out.println("\nNo books available to loan!");
+                }
+            } catch (UncheckedIOException e) {
+                printSaveError(e);
+            }
+        } else {
+            System.out.println("\nNo books available to loan!");
+        }
+    }
+
+    /**
+     * returnBook
+     *
+     * Allow the user to return a book. Remove a book from the booksOnLoan
+     * column by prompting the user to return a book.
+     */
+    private static void returnBook() {
+        // Prompt to return if books are on loan
+        if (catalog.getTotalOnLoan() > 0) {
+            int index;
+            do {
+                // Prompt user on if they want to display books on loan
+                if (getChoice("\nDo you want to display the books on "
+                        + "loan? [Y/N]: ")) {
+                    displayOnLoan();
+                }
+
+                // Get book array index
+                index = getBookIndex();
+
+                // Check if book can be replaced
+                while (catalog.getBooksOnLoan(index) < 1) {
+                    System.out.println(
+                            "No books available to return! Please choose "
+                            + "another book.");
+                    index = getBookIndex();
+                }
+
+                System.out.printf("\nYou are returning \"%s\" by %s.",
+                        catalog.getBookTitle(index),
+                        catalog.getBookAuthor(index));
+            } while (!getChoice("\nAre you sure this is the book you want "
+                    + "to return? [Y/N]: "));
+
+            int patron = getPatronId("\nEnter the patron ID of the borrower "
+                    + "(0 if not known): ", true);
+
+            // Another desk may have returned the last copy in the meantime
+            try {
+                if (catalog.returnCopy(index, patron)) {
+                    System.out.println("\nBook returned successfully!");
+                } else {
+                    System.out.println(
+                            "\nNo copies on loan to this patron!");
+                }
+            } catch (UncheckedIOException e) {
+                printSaveError(e);
+            }
+        } else {
+            System.out.println("\nNo books available to return!");
+        }
+    }
+
+    /**
+     * serveBooks
+     *
+     * Serve the library to clients over TCP on the loopback interface until
+     * the program is stopped. Each request is one line of tab-separated
+     * fields:
+     *
+     *  - FIND, T or A, query: search titles or authors (double quotes
+     *    search an exact title or author, like the Search Books menu)
+     *  - PREFIX, T or A, prefix, optional limit: get books with titles or
+     *    authors starting with a prefix, in sorted order
+     *  - RANGE, T or A, from, to, optional limit: get books with titles or
+     *    authors from one text up to another, in sorted order
+     *  - FUZZY, T or A, query, optional limit: get the titles or authors
+     *    closest to a query, allowing typos, closest first. The limit is at
+     *    most MAX_FUZZY_RESULTS
+     *  - QUERY, query: get books matching a boolean query of words, such
+     *    as "title:war AND author:tolstoy"
+     *  - BOOK, id: get one book
+     *  - LIST, first id, amount: get a range of books, skipping deleted
+     *    ones
+     *  - ONLOAN: get all books with copies out on loan
+     *  - LOAN, id, optional patron / RETURN, id, optional patron: loan or
+     *    return a copy of a book
+     *  - OVERDUE: get the copies past their due time, most overdue first,
+     *    one line each (id, patron, due time in milliseconds since the
+     *    epoch)
+     *  - ADD, id, title, author, copies: replace a book with a new one
+     *  - APPEND, title, author, copies: add a new book, getting it back
+     *    with its ID
+     *  - DELETE, id: delete a book with no copies on loan
+     *  - COUNT: get the amount of books
+     *  - STATS: get the statistics of the library, one line at a time
+     *  - QUIT: close the connection
+     *
+     * Responses start with "OK <lines>" followed by that many lines, one
+     * for each book (id, title, author, copies, copies out), or with
+     * "ERR <message>". All connections are handled by one thread with a
+     * selector, so thousands of clients can be connected at once. LOAN,
+     * RETURN, ADD, APPEND and DELETE are run by writer threads, as they
+     * wait for the change to be saved, and a connection's later requests
+     * wait until its write is done, so responses stay in order.
+     *
+     * @param port the port to listen on
+     */
+    private static void serveBooks(int port) {
+        ExecutorService writers = Executors.newFixedThreadPool(
+                SERVER_WRITERS);
+        try (Selector selector = Selector.open();
+                ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    port), SERVER_BACKLOG);
+            server.configureBlocking(false);
+            SelectionKey serverKey = server.register(selector,
+                    SelectionKey.OP_ACCEPT);
+            long acceptRetryTime = 0;
+
+            // Stop serving on Ctrl+C, and wait for the catalog to be saved
+            serverRunning = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                serverRunning = false;
+                selector.wakeup();
+                try {
+                    serverStopped.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            System.out.printf("Serving %d books on port %d.\n",
+                    catalog.getBookCount(), port);
+
+            while (serverRunning) {
+                selector.select(acceptRetryTime > 0 ? ACCEPT_RETRY_MILLIS
+                        : 0);
+                finishWrites(writers);
+
+                // Accept connections again once the pause is over
+                if (acceptRetryTime > 0
+                        && System.nanoTime() - acceptRetryTime >= 0) {
+                    serverKey.interestOps(SelectionKey.OP_ACCEPT);
+                    acceptRetryTime = 0;
+                }
+
+                Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key == serverKey) {
+                        try {
+                            acceptConnection(selector, server);
+                        } catch (IOException | RuntimeException e) {
+                            // Keep listening, but pause accepting, as the
+                            // error (such as too many open files) is
+                            // unlikely to clear at once
+                            System.out.printf("Could not accept a "
+                                    + "connection: %s\n", e.getMessage());
+                            serverKey.interestOps(0);
+                            acceptRetryTime = System.nanoTime()
+                                    + TimeUnit.MILLISECONDS.toNanos(
+                                    ACCEPT_RETRY_MILLIS);
+                        }
+                        continue;
+                    }
+
+                    try {
+                        if (key.isReadable()) {
+                            readRequests(key, writers);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writeResponses(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // Only this client is dropped
+                        closeConnection(key);
+                    }
+                }
+            }
+
+            // Close all connections
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        } catch (IOException e) {
+            System.out.printf("Could not serve on port %d: %s\n", port,
+                    e.getMessage());
+        } finally {
+            // Let writes already started finish before the catalog is saved
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE,
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println("Server stopped.");
+    }
+
+    /**
+     * acceptConnection
+     *
+     * Accept all waiting connections and register them for reading.
+     *
+     * @param selector the selector of the server
+     * @param server   the server channel
+     * @throws IOException if a connection could not be accepted
+     */
+    private static void acceptConnection(Selector selector,
+            ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector, SelectionKey.OP_READ,
+                    new Connection());
+        }
+    }
+
+    /**
+     * closeConnection
+     *
+     * Close a client connection, ignoring any errors.
+     *
+     * @param key the key of the connection
+     */
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * readRequests
+     *
+     * Read from a connection and handle its complete request lines.
+     *
+     * @param key     the key of the connection
+     * @param writers the threads that run write requests
+     * @throws IOException if the connection could not be read
+     */
+    private static void readRequests(SelectionKey key,
+            ExecutorService writers) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        if (channel.read(connection.requests) < 0) {
+            closeConnection(key);
+            return;
+        }
+        handleRequests(key, writers);
+    }
+
+    /**
+     * handleRequests
+     *
+     * Handle every complete request line of a connection, adding the
+     * responses to the connection's response buffer, then send them. A
+     * write request is given to a writer thread, and the lines after it are
+     * left in the request buffer until it is done.
+     *
+     * @param key     the key of the connection
+     * @param writers the threads that run write requests
+     * @throws IOException if the connection could not be written
+     */
+    private static void handleRequests(SelectionKey key,
+            ExecutorService writers) throws IOException {
+        Connection connection = (Connection) key.attachment();
+
+        // Handle each complete line
+        ByteBuffer requests = connection.requests.flip();
+        int lineStart = requests.position();
+        for (int i = lineStart; i < requests.limit()
+                && !connection.writing; i++) {
+            if (requests.get(i) == '\n') {
+                int lineEnd = i > lineStart && requests.get(i - 1) == '\r'
+                        ? i - 1 : i;
+                byte[] line = new byte[lineEnd - lineStart];
+                requests.get(lineStart, line);
+                String request = new String(line, StandardCharsets.UTF_8);
+                if (isWriteRequest(request)) {
+                    startWrite(key, request, writers);
+                } else {
+                    handleRequest(connection, request);
+                }
+                lineStart = i + 1;
+            }
+        }
+        requests.position(lineStart).compact();
+
+        // Grow the buffer for long requests, up to a limit
+        if (!requests.hasRemaining() && !connection.writing) {
+            if (requests.capacity() >= MAX_REQUEST_LENGTH) {
+                putResponse(connection, "ERR Request too long\n");
+                connection.closing = true;
+            } else {
+                connection.requests = ByteBuffer.allocate(
+                        requests.capacity() * 2).put(requests.flip());
+            }
+        }
+        writeResponses(key);
+    }
+
+    /**
+     * isWriteRequest
+     *
+     * Check if a request changes the catalog, and so may wait for the
+     * change to be saved.
+     *
+     * @param request the request line
+     * @return        a boolean: true if it is a write request, else false
+     */
+    private static boolean isWriteRequest(String request) {
+        int end = request.indexOf('\t');
+        String type = (end < 0 ? request : request.substring(0, end))
+                .toUpperCase();
+        return type.equals("LOAN") || type.equals("RETURN")
+                || type.equals("ADD") || type.equals("APPEND")
+                || type.equals("DELETE");
+    }
+
+    /**
+     * startWrite
+     *
+     * Give a write request to a writer thread. Its response is put in the
+     * connection's write buffers, and the server thread is woken to send
+     * it. The connection reads no more until then.
+     *
+     * @param key     the key of the connection
+     * @param request the request line
+     * @param writers the threads that run write requests
+     */
+    private static void startWrite(SelectionKey key, String request,
+            ExecutorService writers) {
+        Connection connection = (Connection) key.attachment();
+        if (connection.write == null) {
+            connection.write = new Connection();
+        }
+        connection.writing = true;
+        writers.execute(() -> {
+            handleRequest(connection.write, request);
+            finishedWrites.add(key);
+            key.selector().wakeup();
+        });
+    }
+
+    /**
+     * finishWrites
+     *
+     * Add the responses of finished writes to their connections, then
+     * handle the requests that were waiting for them.
+     *
+     * @param writers the threads that run write requests
+     */
+    private static void finishWrites(ExecutorService writers) {
+        SelectionKey key;
+        while ((key = finishedWrites.poll()) != null) {
+            Connection connection = (Connection) key.attachment();
+            Connection write = connection.write;
+            connection.writing = false;
+            if (!key.isValid()) {
+                continue;
+            }
+
+            ByteBuffer responses = write.responses.flip();
+            ensureResponseSpace(connection, responses.remaining());
+            connection.responses.put(responses);
+            responses.clear();
+            connection.closing |= write.closing;
+            write.closing = false;
+
+            try {
+                handleRequests(key, writers);
+            } catch (IOException | RuntimeException e) {
+                closeConnection(key);
+            }
+        }
+    }
+
+    /**
+     * writeResponses
+     *
+     * Write as much of a connection's responses as possible, and wait for
+     * the connection to be writable if some are left. A connection waiting
+     * for a write is not read meanwhile.
+     *
+     * @param key the key of the connection
+     * @throws IOException if the connection could not be written
+     */
+    private static void writeResponses(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer responses = connection.responses.flip();
+        ((SocketChannel) key.channel()).write(responses);
+        responses.compact();
+
+        int reading = connection.writing ? 0 : SelectionKey.OP_READ;
+        if (responses.position() > 0) {
+            key.interestOps(reading | SelectionKey.OP_WRITE);
+        } else if (connection.closing) {
+            closeConnection(key);
+        } else {
+            key.interestOps(reading);
+        }
+    }
+
+    /**
+     * handleRequest
+     *
+     * Handle one request line and add the response to a connection. If the
+     * catalog fails unexpectedly, any part of the response already added is
+     * dropped, an error is sent and the connection is closed, so other
+     * clients are still served.
+     *
+     * @param connection the connection
+     * @param request    the request line
+     */
+    private static void handleRequest(Connection connection, String request) {
+        String[] fields = request.split("\t", -1);
+        int responseStart = connection.responses.position();
+
+        try {
+            switch (fields[0].toUpperCase()) {
+                case "FIND" -> putBookList(connection, findBooks(
+                        getRequestKey(fields[1]), fields[2]));
+                case "FUZZY" -> {
+                    int limit = fields.length > 3
+                            ? Integer.parseInt(fields[3].strip())
+                            : LibraryCatalog.FUZZY_RESULTS;
+                    if (limit < 1 || limit > MAX_FUZZY_RESULTS) {
+                        throw new IllegalArgumentException("Invalid limit");
+                    }
+                    putBookList(connection, catalog.fuzzySearch(
+                            getRequestKey(fields[1]), fields[2], limit));
+                }
+                case "QUERY" -> putBookList(connection, catalog.search(
+                        LibraryCatalog.TITLE_KEY, fields[1],
+                        LibraryCatalog.SEARCH_WORDS));
+                case "PREFIX", "RANGE" -> {
+                    boolean prefix = fields[0].equalsIgnoreCase("PREFIX");
+                    int limitField = prefix ? 3 : 4;
+                    int limit = fields.length > limitField
+                            ? Integer.parseInt(fields[limitField].strip()) : 0;
+                    putBookList(connection, prefix
+                            ? catalog.prefixSearch(getRequestKey(fields[1]),
+                            fields[2], limit)
+                            : catalog.rangeSearch(getRequestKey(fields[1]),
+                            fields[2], fields[3], limit));
+                }
+                case "BOOK" -> {
+                    int index = getRequestIndex(fields[1]);
+                    putResponse(connection, "OK 1\n");
+                    putBookLine(connection, catalog.getView(), index);
+                }
+                case "LIST" -> {
+                    // The first ID may be of a deleted book, as a range
+                    // skips them anyway
+                    int first = Integer.parseInt(fields[1].strip()) - 1;
+                    if (first < 0) {
+                        throw new IllegalArgumentException("No book with ID "
+                                + fields[1].strip());
+                    }
+                    int amount = Integer.parseInt(fields[2]);
+                    if (amount > 0) {
+                        putBookList(connection,
+                                catalog.listBooks(first, amount));
+                    } else {
+                        putResponse(connection, "OK 0\n");
+                    }
+                }
+                case "ONLOAN" -> putBookList(connection,
+                        catalog.getLoanedBooks());
+                case "LOAN" -> putResponse(connection,
+                        catalog.loan(getRequestIndex(fields[1]),
+                        getRequestPatron(fields)) ? "OK 0\n"
+                        : "ERR No copies available\n");
+                case "RETURN" -> putResponse(connection,
+                        catalog.returnCopy(getRequestIndex(fields[1]),
+                        getRequestPatron(fields)) ? "OK 0\n"
+                        : "ERR No copies on loan\n");
+                case "OVERDUE" -> {
+                    LibraryCatalog.LoanList loans = catalog.getOverdueLoans(
+                            System.currentTimeMillis());
+                    StringBuilder lines = new StringBuilder();
+                    for (int i = 0; i < loans.size(); i++) {
+                        lines.append(loans.getBook(i) + 1).append('\t')
+                                .append(loans.getPatron(i)).append('\t')
+                                .append(loans.getDueTime(i)).append('\n');
+                    }
+                    putResponse(connection, "OK " + loans.size() + "\n"
+                            + lines);
+                }
+                case "ADD" -> {
+                    addRequestBook(fields);
+                    putResponse(connection, "OK 0\n");
+                }
+                case "APPEND" -> {
+                    int index = appendRequestBook(fields);
+                    putResponse(connection, "OK 1\n");
+                    putBookLine(connection, catalog.getView(), index);
+                }
+                case "DELETE" -> {
+                    catalog.delete(getRequestIndex(fields[1]));
+                    putResponse(connection, "OK 0\n");
+                }
+                case "COUNT" -> putResponse(connection, "OK 1\n"
+                        + catalog.getBookCount() + "\n");
+                case "STATS" -> {
+                    StringBuilder report = new StringBuilder();
+                    appendStatistics(report);
+                    putResponse(connection, "OK " + report.chars()
+                            .filter(c -> c == '\n').count() + "\n" + report);
+                }
+                case "QUIT" -> {
+                    putResponse(connection, "OK 0\n");
+                    connection.closing = true;
+                }
+                default -> putResponse(connection, "ERR Unknown request\n");
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            putResponse(connection, "ERR Missing fields\n");
+        } catch (NumberFormatException e) {
+            putResponse(connection, "ERR Invalid number\n");
+        } catch (IllegalArgumentException e) {
+            putResponse(connection, "ERR " + e.getMessage() + "\n");
+        } catch (UncheckedIOException e) {
+            putResponse(connection, "ERR Not saved: "
+                    + e.getCause().getMessage() + "\n");
+        } catch (RuntimeException e) {
+            connection.responses.position(responseStart);
+            putResponse(connection, "ERR Internal error: " + e + "\n");
+            connection.closing = true;
+        }
+    }
+
+    /**
+     * handleRequest
+     *
+     * Handle one request line on a connection of its own and get the
+     * response, as a client would read it.
+     *
+     * @param request the request line
+     * @return        the response, "OK" or "ERR" and the lines after it
+     */
+    static String handleRequest(String request) {
+        Connection connection = new Connection();
+        handleRequest(connection, request);
+        return StandardCharsets.UTF_8.decode(connection.responses.flip())
+                .toString();
+    }
+
+    /**
+     * getRequestKey
+     *
+     * Convert the key in a request, T or A, to TITLE_KEY or AUTHOR_KEY.
+     *
+     * @param field the key
+     * @return      the key to search
+     * @throws IllegalArgumentException if the key is not T or A
+     */
+    private static int getRequestKey(String field) {
+        return switch (field.strip().toUpperCase()) {
+            case "T" -> LibraryCatalog.TITLE_KEY;
+            case "A" -> LibraryCatalog.AUTHOR_KEY;
+            default -> throw new IllegalArgumentException("Search T or A");
+        };
+    }
+
+    /**
+     * addRequestBook
+     *
+     * Add the book in an ADD request (id, title, author, copies) if it is
+     * valid and does not already exist.
+     *
+     * @param fields the fields of the request
+     * @throws IllegalArgumentException if the book could not be added
+     */
+    private static void addRequestBook(String[] fields) {
+        int index = getRequestIndex(fields[1]);
+        String title = fields[2].strip();
+        String author = fields[3].strip();
+        int copies = Integer.parseInt(fields[4].strip());
+        if (title.isEmpty() || author.isEmpty() || copies < 1) {
+            throw new IllegalArgumentException("Invalid book");
+        }
+
+        catalog.replace(index, title, author, copies);
+    }
+
+    /**
+     * appendRequestBook
+     *
+     * Add the new book in an APPEND request (title, author, copies) if it is
+     * valid and does not already exist.
+     *
+     * @param fields the fields of the request
+     * @return       the index of the book
+     * @throws IllegalArgumentException if the book could not be added
+     */
+    private static int appendRequestBook(String[] fields) {
+        String title = fields[1].strip();
+        String author = fields[2].strip();
+        int copies = Integer.parseInt(fields[3].strip());
+        if (title.isEmpty() || author.isEmpty() || copies < 1) {
+            throw new IllegalArgumentException("Invalid book");
+        }
+
+        return catalog.add(title, author, copies);
+    }
+
+    /**
+     * getRequestPatron
+     *
+     * Get the optional patron ID after the book ID of a LOAN or RETURN
+     * request or event.
+     *
+     * @param fields the fields of the request
+     * @return       the ID of the patron, or UNKNOWN_PATRON if none is given
+     * @throws IllegalArgumentException if the patron ID is not valid
+     */
+    private static int getRequestPatron(String[] fields) {
+        if (fields.length < 3 || fields[2].isBlank()) {
+            return LibraryCatalog.UNKNOWN_PATRON;
+        }
+        int patron = Integer.parseInt(fields[2].strip());
+        if (patron < 0) {
+            throw new IllegalArgumentException("Invalid patron");
+        }
+        return patron;
+    }
+
+    /**
+     * getRequestIndex
+     *
+     * Convert a book ID in a request to a book index.
+     *
+     * @param field the ID
+     * @return      the index of the book
+     * @throws IllegalArgumentException if there is no book with the ID, or
+     *                                  it was deleted
+     */
+    private static int getRequestIndex(String field) {
+        int id = Integer.parseInt(field.strip());
+        if (id < 1 || id > catalog.getBookSlots()
+                || catalog.isDeleted(id - 1)) {
+            throw new IllegalArgumentException("No book with ID " + id);
+        }
+        return id - 1;
+    }
+
+    /**
+     * putResponse
+     *
+     * Add text to a connection's response buffer.
+     *
+     * @param connection the connection
+     * @param text       the text
+     */
+    private static void putResponse(Connection connection, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ensureResponseSpace(connection, bytes.length);
+        connection.responses.put(bytes);
+    }
+
+    /**
+     * putBookList
+     *
+     * Add an OK response listing books to a connection's response buffer.
+     * Every book is read from one view of the catalog, taken after the
+     * books were found, so the list is consistent even if books are
+     * changed meanwhile.
+     *
+     * @param connection the connection
+     * @param books      the books, in the order to list them
+     */
+    private static void putBookList(Connection connection,
+            LibraryCatalog.BookList books) {
+        LibraryCatalog.CatalogView view = catalog.getView();
+        putResponse(connection, "OK " + books.size() + "\n");
+        for (int i = 0; i < books.size(); i++) {
+            putBookLine(connection, view, books.get(i));
+        }
+    }
+
+    /**
+     * putBookLine
+     *
+     * Add a line describing a book to a connection's response buffer. The
+     * title and author are copied straight from the catalog, which keeps
+     * them as UTF-8.
+     *
+     * @param connection the connection
+     * @param view       the view of the catalog to read the book from
+     * @param bookIndex  the index of the book
+     */
+    private static void putBookLine(Connection connection,
+            LibraryCatalog.CatalogView view, int bookIndex) {
+        int textLength = view.getBookTextLength(LibraryCatalog.TITLE_KEY,
+                bookIndex) + view.getBookTextLength(LibraryCatalog.AUTHOR_KEY,
+                bookIndex);
+        ensureResponseSpace(connection, textLength + 40);
+
+        ByteBuffer responses = connection.responses;
+        responses.put(Integer.toString(bookIndex + 1)
+                .getBytes(StandardCharsets.US_ASCII)).put((byte) '\t');
+        view.putBookText(LibraryCatalog.TITLE_KEY, bookIndex, responses);
+        responses.put((byte) '\t');
+        view.putBookText(LibraryCatalog.AUTHOR_KEY, bookIndex, responses);
+        responses.put(("\t" + catalog.getBookCopies(bookIndex) + "\t"
+                + catalog.getBooksOnLoan(bookIndex) + "\n")
+                .getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * ensureResponseSpace
+     *
+     * Grow a connection's response buffer if it cannot fit more bytes.
+     *
+     * @param connection the connection
+     * @param length     the amount of bytes that need to fit
+     */
+    private static void ensureResponseSpace(Connection connection,
+            int length) {
+        ByteBuffer responses = connection.responses;
+        if (responses.remaining() < length) {
+            int capacity = Math.max(responses.capacity() * 2,
+                    responses.position() + length);
+            connection.responses = ByteBuffer.allocate(capacity)
+                    .put(responses.flip());
+        }
+    }
+
+    /**
+     * Connection
+     *
+     * The buffers of a client connected to the server.
+     */
+    private static class Connection {
+        // Request bytes not yet handled, ready for reading into
+        private ByteBuffer requests = ByteBuffer.allocate(1024);
+
+        // Response bytes not yet sent, ready for adding to
+        private ByteBuffer responses = ByteBuffer.allocate(4096);
+
+        // Close the connection once all responses are sent
+        private boolean closing = false;
+
+        // A write request is being run by a writer thread, which puts its
+        // response in write, so later requests wait until it is done
+        private boolean writing = false;
+        private Connection write;
+    }
+
+    /**
+     * optionValue
+     *
+     * Get the value following a command line option.
+     *
+     * @param args   the command line arguments
+     * @param option the index of the option in args
+     * @return the value of the option
+     * @throws IllegalArgumentException if the option is the last argument
+     */
+    private static String optionValue(String[] args, int option) {
+        if (option + 1 >= args.length) {
+            throw new IllegalArgumentException("no value given");
+        }
+        return args[option + 1];
+    }
+
+    /**
+     * numberOption
+     *
+     * Read the value of a command line option that is a whole number.
+     *
+     * @param value the value of the option
+     * @return the number
+     * @throws IllegalArgumentException if the value is not a number of
+     *                                  zero or more
+     */
+    private static int numberOption(String value) {
+        int number;
+        try {
+            number = Integer.parseInt(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "'" + value + "' is not a whole number");
+        }
+        if (number < 0) {
+            throw new IllegalArgumentException(
+                    "'" + value + "' is less than 0");
+        }
+        return number;
+    }
+
+    /**
+     * daysOption
+     *
+     * Read the value of a command line option that is an amount of days.
+     *
+     * @param value the value of the option
+     * @return the amount of days
+     * @throws IllegalArgumentException if the value is not a number of
+     *                                  more than zero
+     */
+    private static double daysOption(String value) {
+        double days;
+        try {
+            days = Double.parseDouble(value.strip());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "'" + value + "' is not a number");
+        }
+        if (!(days > 0) || Double.isInfinite(days)) {
+            throw new IllegalArgumentException(
+                    "'" + value + "' is not more than 0 days");
+        }
+        return days;
+    }
+
+    /**
+     * runLoadTest
+     *
+     * Measure the throughput and latency of a server by connecting many
+     * clients at once. Each client sends a request as soon as it gets the
+     * response to its last one: half look up a book, three in ten search
+     * titles, and the rest loan or return a book.
+     *
+     * @param address the host and port of the server
+     * @param clients the amount of clients
+     * @param seconds how long to run for
+     */
+    private static void runLoadTest(String address, int clients,
+            int seconds) {
+        int separator = address.lastIndexOf(':');
+        InetSocketAddress serverAddress = new InetSocketAddress(
+                address.substring(0, separator),
+                Integer.parseInt(address.substring(separator + 1)));
+        SplittableRandom random = new SplittableRandom();
+        long[] latencies = new long[1024];
+        int requests = 0;
+        int errors = 0;
+
+        try (Selector selector = Selector.open()) {
+            // Ask the server for the IDs of its books, which have gaps
+            // where books were deleted
+            int[] ids;
+            try (Socket socket = new Socket(serverAddress.getAddress(),
+                    serverAddress.getPort());
+                    BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8))) {
+                socket.getOutputStream().write(
+                        ("LIST\t1\t" + Integer.MAX_VALUE + "\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                String status = reader.readLine();
+                if (status == null || !status.startsWith("OK ")) {
+                    throw new IOException("Could not list the books");
+                }
+                ids = new int[Integer.parseInt(status.substring(3))];
+                for (int i = 0; i < ids.length; i++) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        throw new IOException("Could not list the books");
+                    }
+                    ids[i] = Integer.parseInt(
+                            line.substring(0, line.indexOf('\t')));
+                }
+            }
+            if (ids.length == 0) {
+                throw new IOException("The server has no books");
+            }
+
+            // Connect all clients
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(serverAddress);
+                channel.register(selector, SelectionKey.OP_CONNECT,
+                        new LoadClient());
+            }
+
+            long startTime = System.nanoTime();
+            long endTime = startTime + seconds * 1_000_000_000L;
+            while (System.nanoTime() < endTime) {
+                selector.select(100);
+
+                Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    LoadClient client = (LoadClient) key.attachment();
+
+                    if (key.isConnectable()) {
+                        channel.finishConnect();
+                        sendLoadRequest(key, client, random, ids);
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        channel.write(client.request);
+                        if (!client.request.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    }
+                    if (!key.isReadable()) {
+                        continue;
+                    }
+                    if (channel.read(client.response) < 0) {
+                        throw new IOException("Server closed a connection");
+                    }
+
+                    // Count the lines of the response read so far
+                    ByteBuffer response = client.response.flip();
+                    boolean complete = false;
+                    while (!complete) {
+                        int lineEnd = response.position();
+                        while (lineEnd < response.limit()
+                                && response.get(lineEnd) != '\n') {
+                            lineEnd++;
+                        }
+                        if (lineEnd == response.limit()) {
+                            break;
+                        }
+
+                        if (client.linesLeft < 0) {
+                            if (response.get(response.position()) == 'O') {
+                                client.linesLeft = Integer.parseInt(
+                                        new String(response.array(),
+                                        response.position() + 3, lineEnd
+                                        - response.position() - 3,
+                                        StandardCharsets.US_ASCII));
+                            } else {
+                                client.linesLeft = 0;
+                                errors++;
+                            }
+                        } else {
+                            client.linesLeft--;
+                        }
+                        response.position(lineEnd + 1);
+                        complete = client.linesLeft == 0;
+                    }
+                    response.compact();
+
+                    // Grow the buffer for responses with long lines
+                    if (!response.hasRemaining()) {
+                        client.response = ByteBuffer.allocate(
+                                response.capacity() * 2).put(response.flip());
+                    }
+
+                    if (complete) {
+                        if (requests == latencies.length) {
+                            latencies = Arrays.copyOf(latencies,
+                                    requests * 2);
+                        }
+                        latencies[requests++] = System.nanoTime()
+                                - client.sentTime;
+                        sendLoadRequest(key, client, random, ids);
+                    }
+                }
+            }
+            double elapsed = (System.nanoTime() - startTime) / 1e9;
+
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+
+            // Print results
+            Arrays.sort(latencies, 0, requests);
+            System.out.printf("""
+                    Completed %d requests from %d clients in %.2f seconds \
+                    (%.0f requests/sec, %d errors).
+                    Latency: p50 %.3f ms, p99 %.3f ms, max %.3f ms.
+                    """, requests, clients, elapsed, requests / elapsed,
+                    errors, getPercentile(latencies, requests, 0.50) / 1e6,
+                    getPercentile(latencies, requests, 0.99) / 1e6,
+                    getPercentile(latencies, requests, 1.0) / 1e6);
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Load test failed: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * sendLoadRequest
+     *
+     * Start sending a random request from a load test client.
+     *
+     * @param key    the key of the client's connection
+     * @param client the client
+     * @param random the random number generator
+     * @param ids    the IDs of the books on the server
+     * @throws IOException if the request could not be written
+     */
+    private static void sendLoadRequest(SelectionKey key, LoadClient client,
+            SplittableRandom random, int[] ids) throws IOException {
+        int id = ids[random.nextInt(ids.length)];
+        int choice = random.nextInt(10);
+        String request;
+        if (choice < 5) {
+            request = "BOOK\t" + id;
+        } else if (choice < 8) {
+            request = "FIND\tT\t" + random.nextInt(10000, 100000);
+        } else if (choice < 9) {
+            request = "LOAN\t" + id;
+        } else {
+            request = "RETURN\t" + id;
+        }
+
+        client.request.clear().put((request + "\n")
+                .getBytes(StandardCharsets.US_ASCII)).flip();
+        client.linesLeft = -1;
+        client.sentTime = System.nanoTime();
+        ((SocketChannel) key.channel()).write(client.request);
+        key.interestOps(client.request.hasRemaining()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /**
+     * getPercentile
+     *
+     * Get a percentile of sorted values.
+     *
+     * @param values     the sorted values
+     * @param length     the amount of values
+     * @param percentile the percentile, from 0 to 1
+     * @return           the value at the percentile, or 0 if there are none
+     */
+    private static long getPercentile(long[] values, int length,
+            double percentile) {
+        if (length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * length) - 1;
+        return values[Math.max(0, Math.min(length - 1, index))];
+    }
+
+    /**
+     * LoadClient
+     *
+     * The state of one load test client.
+     */
+    private static class LoadClient {
+        private ByteBuffer request = ByteBuffer.allocate(256);
+
+        // Response bytes not yet counted, ready for reading into
+        private ByteBuffer response = ByteBuffer.allocate(16 * 1024);
+
+        // Lines of the response left to read, or -1 before the first line
+        private int linesLeft = -1;
+        private long sentTime;
+    }
+
+    /**
+     * runBatch
+     *
+     * Run the events in a file without prompting, one event per line of
+     * tab-separated fields:
+     *
+     *  - LOAN, id, optional patron / RETURN, id, optional patron: loan or
+     *    return a copy of a book
+     *  - ADD, id, title, author, copies: replace a book with a new one
+     *  - APPEND, title, author, copies: add a new book
+     *  - DELETE, id: delete a book with no copies on loan
+     *  - SEARCH, T or A, query: search titles or authors
+     *
+     * Events are spread over one worker thread per processor. Loans and
+     * returns of the same book always go to the same worker, so they run in
+     * the order they appear in the file. Searches may run in any order. An
+     * ADD, APPEND or DELETE waits for every event before it and runs before
+     * any event after it, as whether it is rejected as a duplicate, and the
+     * ID an APPEND gives the new book, depend on every book before it, and
+     * later events may use the book.
+     *
+     * @param path the path of the event file
+     */
+    private static void runBatch(String path) {
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService[] executors = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            executors[i] = Executors.newSingleThreadExecutor();
+        }
+        ConcurrentSkipListMap<Integer, String> rejections =
+                new ConcurrentSkipListMap<>();
+        int events = 0;
+        long startTime = System.nanoTime();
+
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(path),
+                StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", -1);
+                fields[0] = fields[0].strip().toUpperCase();
+                int eventLine = lineNumber;
+                Runnable event = () -> {
+                    String rejection = runBatchEvent(fields);
+                    if (rejection != null) {
+                        rejections.put(eventLine, rejection);
+                    }
+                };
+                if (fields[0].equals("ADD") || fields[0].equals("APPEND")
+                        || fields[0].equals("DELETE")) {
+                    waitForBatchWorkers(executors);
+                    event.run();
+                } else {
+                    executors[getBatchWorker(fields, events, workers)]
+                            .execute(event);
+                }
+                events++;
+            }
+        } catch (IOException e) {
+            System.out.printf("Could not read \"%s\": %s\n", path,
+                    e.getMessage());
+        } finally {
+            // Wait for every event read so far
+            for (ExecutorService executor : executors) {
+                executor.shutdown();
+            }
+            try {
+                for (ExecutorService executor : executors) {
+                    executor.awaitTermination(Long.MAX_VALUE,
+                            TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        // Print summary and the first rejected events
+        System.out.printf("Ran %d events in %.2f seconds (%.0f events/sec), "
+                + "%d rejected.\n", events, seconds, events / seconds,
+                rejections.size());
+        int printed = 0;
+        for (var rejection : rejections.entrySet()) {
+            if (printed++ == MAX_PRINTED_REJECTIONS) {
+                System.out.println("...");
+                break;
+            }
+            System.out.printf("Line %d: %s\n", rejection.getKey(),
+                    rejection.getValue());
+        }
+    }
+
+    /**
+     * waitForBatchWorkers
+     *
+     * Wait until every batch event given to the workers so far has run.
+     *
+     * @param executors the workers
+     * @throws IOException if interrupted while waiting
+     */
+    private static void waitForBatchWorkers(ExecutorService[] executors)
+            throws IOException {
+        // Each worker runs its events in order, so once an empty event
+        // given to every worker has run, so has everything before it
+        CountDownLatch done = new CountDownLatch(executors.length);
+        for (ExecutorService executor : executors) {
+            executor.execute(done::countDown);
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for "
+                    + "events before a change to the books");
+        }
+    }
+
+    /**
+     * getBatchWorker
+     *
+     * Choose the worker to run a batch event on. Loans and returns of a
+     * book go to the worker for its ID, and searches are spread evenly.
+     * ADD, APPEND and DELETE events are not given to a worker.
+     *
+     * @param fields  the fields of the event
+     * @param events  the amount of events read before this one
+     * @param workers the amount of workers
+     * @return        the number of the worker
+     */
+    private static int getBatchWorker(String[] fields, int events,
+            int workers) {
+        if (fields.length > 1 && !fields[0].equals("SEARCH")) {
+            try {
+                return Math.floorMod(Integer.parseInt(fields[1].strip()),
+                        workers);
+            } catch (NumberFormatException e) {
+                // Rejected when it runs
+            }
+        }
+        return events % workers;
+    }
+
+    /**
+     * runBatchEvent
+     *
+     * Run one batch event, whose type is already in upper case.
+     *
+     * @param fields the fields of the event
+     * @return       the reason the event was rejected, or null if it ran
+     */
+    private static String runBatchEvent(String[] fields) {
+        try {
+            switch (fields[0]) {
+                case "LOAN" -> {
+                    return catalog.loan(getRequestIndex(fields[1]),
+                            getRequestPatron(fields)) ? null
+                            : "No copies available";
+                }
+                case "RETURN" -> {
+                    return catalog.returnCopy(getRequestIndex(fields[1]),
+                            getRequestPatron(fields)) ? null
+                            : "No copies on loan";
+                }
+                case "ADD" -> {
+                    addRequestBook(fields);
+                    return null;
+                }
+                case "APPEND" -> {
+                    appendRequestBook(fields);
+                    return null;
+                }
+                case "DELETE" -> {
+                    catalog.delete(getRequestIndex(fields[1]));
+                    return null;
+                }
+                case "SEARCH" -> {
+                    findBooks(getRequestKey(fields[1]), fields[2]);
+                    return null;
+                }
+                default -> {
+                    return "Unknown event";
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return "Missing fields";
+        } catch (NumberFormatException e) {
+            return "Invalid number";
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        } catch (UncheckedIOException e) {
+            return "Not saved: " + e.getCause().getMessage();
+        }
+    }
+}
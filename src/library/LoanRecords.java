@@ -0,0 +1,359 @@
+/*
+ * LoanRecords.java
+ *
+ * The loan records of one stripe of a LibraryCatalog's books. Every copy
+ * out on loan has a record: the book, the patron, when it was loaned and
+ * when it is due, kept in columns. A book's records are linked through
+ * next starting at bookRecords, and unused records are linked from
+ * freeRecord, as record numbers plus one, so 0 ends a list.
+ *
+ * Records are also ordered by due time in an indexed binary min-heap, so
+ * overdue loans are found without visiting the others, and a returned
+ * copy's record is removed from it directly.
+ *
+ * A catalog splits its books over several stripes by index, each with its
+ * own lock, so loans and returns of books in different stripes run at the
+ * same time. Every method must be called holding the stripe's lock, or
+ * before other threads use the catalog.
+ */
+
+package library;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+class LoanRecords {
+    // Held while the records, or the loans of the stripe's books, are
+    // changed
+    final ReentrantLock lock = new ReentrantLock();
+
+    // A book's place in the stripe is its index shifted right by this
+    private final int stripeBits;
+
+    // Columns of the records, and the first record of each of the stripe's
+    // books
+    private int[] books;
+    private int[] patrons;
+    private long[] loanTimes;
+    private long[] dueTimes;
+    private int[] next;
+    private int[] bookRecords;
+    private int slots;
+    private int freeRecord;
+
+    // Records ordered by due time, and the position of each record in it
+    private int[] dueHeap;
+    private int[] dueHeapPositions;
+    private int count;
+
+    LoanRecords(int stripeBits) {
+        this.stripeBits = stripeBits;
+        clear();
+    }
+
+    /**
+     * clear
+     *
+     * Remove all records.
+     */
+    void clear() {
+        books = new int[16];
+        patrons = new int[16];
+        loanTimes = new long[16];
+        dueTimes = new long[16];
+        next = new int[16];
+        bookRecords = new int[0];
+        slots = 0;
+        freeRecord = 0;
+        dueHeap = new int[16];
+        dueHeapPositions = new int[16];
+        count = 0;
+    }
+
+    /**
+     * size
+     *
+     * Get the amount of records.
+     *
+     * @return the amount of records
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * add
+     *
+     * Record a copy of a book on loan, reusing an unused record if there is
+     * one.
+     *
+     * @param bookIndex the index of the book
+     * @param patron    the ID of the patron
+     * @param loanTime  when the copy was loaned
+     * @param dueTime   when the copy is due
+     */
+    void add(int bookIndex, int patron, long loanTime, long dueTime) {
+        int record;
+        if (freeRecord > 0) {
+            record = freeRecord - 1;
+            freeRecord = next[record];
+        } else {
+            // Grow columns if full
+            if (slots == books.length) {
+                int length = slots * 2;
+                books = Arrays.copyOf(books, length);
+                patrons = Arrays.copyOf(patrons, length);
+                loanTimes = Arrays.copyOf(loanTimes, length);
+                dueTimes = Arrays.copyOf(dueTimes, length);
+                next = Arrays.copyOf(next, length);
+                dueHeap = Arrays.copyOf(dueHeap, length);
+                dueHeapPositions = Arrays.copyOf(dueHeapPositions, length);
+            }
+            record = slots++;
+        }
+        books[record] = bookIndex;
+        patrons[record] = patron;
+        loanTimes[record] = loanTime;
+        dueTimes[record] = dueTime;
+
+        // Put the record first in the book's list
+        int place = bookIndex >>> stripeBits;
+        if (place >= bookRecords.length) {
+            bookRecords = Arrays.copyOf(bookRecords, Math.max(place + 1,
+                    bookRecords.length * 3 / 2));
+        }
+        next[record] = bookRecords[place];
+        bookRecords[place] = record + 1;
+
+        dueHeap[count] = record;
+        dueHeapPositions[record] = count;
+        siftDueUp(count++);
+    }
+
+    /**
+     * getFirst
+     *
+     * Get the record of the copy of a book loaned most recently.
+     *
+     * @param bookIndex the index of the book
+     * @return          the loan record, or -1 if there is none
+     */
+    int getFirst(int bookIndex) {
+        int place = bookIndex >>> stripeBits;
+        return place < bookRecords.length ? bookRecords[place] - 1 : -1;
+    }
+
+    /**
+     * getNext
+     *
+     * Get the record of the copy of the same book loaned before a record's.
+     *
+     * @param record the loan record
+     * @return       the next loan record, or -1 if there is none
+     */
+    int getNext(int record) {
+        return next[record] - 1;
+    }
+
+    /**
+     * find
+     *
+     * Find the record of the copy of a book loaned to a patron most
+     * recently.
+     *
+     * @param bookIndex the index of the book
+     * @param patron    the ID of the patron, or UNKNOWN_PATRON for any
+     *                  patron
+     * @return          the loan record, or -1 if there is none
+     */
+    int find(int bookIndex, int patron) {
+        for (int record = getFirst(bookIndex); record >= 0;
+                record = getNext(record)) {
+            if (patron == LibraryCatalog.UNKNOWN_PATRON
+                    || patrons[record] == patron) {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * count
+     *
+     * Count the records of a book.
+     *
+     * @param bookIndex the index of the book
+     * @return          the amount of loan records
+     */
+    int count(int bookIndex) {
+        int records = 0;
+        for (int record = getFirst(bookIndex); record >= 0;
+                record = getNext(record)) {
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * remove
+     *
+     * Remove a record from its book's list and the heap of due times, and
+     * keep it to be reused.
+     *
+     * @param record the loan record
+     */
+    void remove(int record) {
+        // Unlink the record from its book's list
+        int place = books[record] >>> stripeBits;
+        if (bookRecords[place] == record + 1) {
+            bookRecords[place] = next[record];
+        } else {
+            int previous = bookRecords[place] - 1;
+            while (next[previous] != record + 1) {
+                previous = next[previous] - 1;
+            }
+            next[previous] = next[record];
+        }
+
+        // Fill its place in the heap with the last record
+        int position = dueHeapPositions[record];
+        int last = dueHeap[--count];
+        if (position < count) {
+            dueHeap[position] = last;
+            dueHeapPositions[last] = position;
+            siftDueUp(position);
+            siftDueDown(dueHeapPositions[last]);
+        }
+
+        next[record] = freeRecord;
+        freeRecord = record + 1;
+    }
+
+    /**
+     * removeBook
+     *
+     * Remove all records of a book.
+     *
+     * @param bookIndex the index of the book
+     */
+    void removeBook(int bookIndex) {
+        for (int record = getFirst(bookIndex); record >= 0;
+                record = getFirst(bookIndex)) {
+            remove(record);
+        }
+    }
+
+    /**
+     * getHeapRecord
+     *
+     * Get the record at a position of the heap of due times. The record at
+     * position 0 is due first, and the records at 2 * position + 1 and
+     * 2 * position + 2 are due no earlier than the record at position.
+     *
+     * @param position the position in the heap, less than size()
+     * @return         the loan record
+     */
+    int getHeapRecord(int position) {
+        return dueHeap[position];
+    }
+
+    /**
+     * getBook
+     *
+     * Get the book of a record.
+     *
+     * @param record the loan record
+     * @return       the index of the book
+     */
+    int getBook(int record) {
+        return books[record];
+    }
+
+    /**
+     * getPatron
+     *
+     * Get the patron of a record.
+     *
+     * @param record the loan record
+     * @return       the ID of the patron, or UNKNOWN_PATRON
+     */
+    int getPatron(int record) {
+        return patrons[record];
+    }
+
+    /**
+     * getLoanTime
+     *
+     * Get when the copy of a record was loaned.
+     *
+     * @param record the loan record
+     * @return       the time in milliseconds since the epoch
+     */
+    long getLoanTime(int record) {
+        return loanTimes[record];
+    }
+
+    /**
+     * getDueTime
+     *
+     * Get when the copy of a record is due.
+     *
+     * @param record the loan record
+     * @return       the time in milliseconds since the epoch
+     */
+    long getDueTime(int record) {
+        return dueTimes[record];
+    }
+
+    /**
+     * siftDueUp
+     *
+     * Move a record up the heap of due times until its parent is due no
+     * later than it.
+     *
+     * @param position the position of the record in dueHeap
+     */
+    private void siftDueUp(int position) {
+        int record = dueHeap[position];
+        long due = dueTimes[record];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (dueTimes[dueHeap[parent]] <= due) {
+                break;
+            }
+            dueHeap[position] = dueHeap[parent];
+            dueHeapPositions[dueHeap[position]] = position;
+            position = parent;
+        }
+        dueHeap[position] = record;
+        dueHeapPositions[record] = position;
+    }
+
+    /**
+     * siftDueDown
+     *
+     * Move a record down the heap of due times until its children are due
+     * no earlier than it.
+     *
+     * @param position the position of the record in dueHeap
+     */
+    private void siftDueDown(int position) {
+        int record = dueHeap[position];
+        long due = dueTimes[record];
+        while (2 * position + 1 < count) {
+            int child = 2 * position + 1;
+            if (child + 1 < count && dueTimes[dueHeap[child + 1]]
+                    < dueTimes[dueHeap[child]]) {
+                child++;
+            }
+            if (due <= dueTimes[dueHeap[child]]) {
+                break;
+            }
+            dueHeap[position] = dueHeap[child];
+            dueHeapPositions[dueHeap[position]] = position;
+            position = child;
+        }
+        dueHeap[position] = record;
+        dueHeapPositions[record] = position;
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * TransactionLog.java
+ *
+ * The transaction log of a LibraryCatalog saved in a data directory. Every
+ * change to the books is written to the log before it is applied, and the
+ * log is replayed after the latest snapshot when the catalog is loaded.
+ * Each record is its length, the record itself and a CRC32 checksum, so a
+ * record cut off by a crash is found and dropped. A record starts with its
+ * type, its sequence number and the index of its book.
+ *
+ * Records are written as soon as they are made, holding the log's
+ * monitor, so loans and returns of different stripes are logged at the
+ * same time. With group commits, operations wait for the log to be forced
+ * once they are applied and their locks are released. Whoever forces the
+ * log forces every record written so far, so operations waiting meanwhile
+ * share one force.
+ */
+
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+class TransactionLog {
+    // Types of records
+    static final byte LOAN = 1;
+    static final byte RETURN = 2;
+    static final byte ADD = 3;
+    static final byte DELETE = 4;
+
+    // A snapshot is due after this many records
+    private static final int SNAPSHOT_INTERVAL = 10000;
+
+    // The log file, or null if it is not open, written holding the log's
+    // monitor
+    private Path path;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private long sequence = 0;
+    private volatile int recordsSinceSnapshot = 0;
+
+    // When the log is forced to disk
+    private int fsyncPolicy = LibraryCatalog.FSYNC_GROUP;
+
+    // Group commits: whoever holds forceLock forces every record written
+    // so far
+    private final Object forceLock = new Object();
+    private volatile long writtenSequence = 0;
+    private long forcedSequence = 0;
+
+    // Commit latency statistics, read from other threads than the writers
+    private final LongAdder commitCount = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+
+    /**
+     * RecordHandler
+     *
+     * Applies the records of a log being replayed.
+     */
+    interface RecordHandler {
+        /**
+         * apply
+         *
+         * Apply a record.
+         *
+         * @param type   the type of the record
+         * @param index  the index of the record's book
+         * @param record the rest of the record
+         * @return       true if the record was applied, false if it was
+         *               skipped
+         */
+        boolean apply(byte type, int index, ByteBuffer record);
+    }
+
+    /**
+     * open
+     *
+     * Open a log file for writing, creating it if it doesn't exist. Records
+     * are numbered on from the last operation already saved.
+     *
+     * @param logPath       the path of the log file
+     * @param savedSequence the sequence number of the last operation saved
+     * @throws IOException if the file could not be opened
+     */
+    synchronized void open(Path logPath, long savedSequence)
+            throws IOException {
+        path = logPath;
+        sequence = savedSequence;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * isOpen
+     *
+     * Check if the log is open, so changes are written to it.
+     *
+     * @return true if the log is open, else false
+     */
+    synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * discard
+     *
+     * Close the log after it could not be loaded, so changes are not
+     * written to it.
+     *
+     * @param error the error loading the log, which any error closing it is
+     *              added to
+     */
+    synchronized void discard(Exception error) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException closeError) {
+                error.addSuppressed(closeError);
+            }
+            channel = null;
+        }
+        sequence = 0;
+        recordsSinceSnapshot = 0;
+    }
+
+    /**
+     * replay
+     *
+     * Apply the records that came after the snapshot. The log is cut off at
+     * the first incomplete or damaged record, which is left over from a
+     * crash during a write.
+     *
+     * @param snapshotSequence the sequence number of the last operation in
+     *                         the snapshot
+     * @param handler          applies each record
+     * @return                 the amount of records applied
+     * @throws IOException if the log could not be read
+     */
+    int replay(long snapshotSequence, RecordHandler handler)
+            throws IOException {
+        int replayed = 0;
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream stream = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path),
+                64 * 1024))) {
+            while (true) {
+                // Read and check the next record
+                byte[] record;
+                try {
+                    int length = stream.readInt();
+                    if (length < 13 || length > (1 << 20)) {
+                        break;
+                    }
+                    record = new byte[length];
+                    stream.readFully(record);
+
+                    crc.reset();
+                    crc.update(record);
+                    if (stream.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                validLength += record.length + 8;
+
+                ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+                byte type = recordBuffer.get();
+                long recordSequence = recordBuffer.getLong();
+                int index = recordBuffer.getInt();
+                sequence = Math.max(sequence, recordSequence);
+
+                // Operations already in the snapshot are skipped
+                if (recordSequence > snapshotSequence
+                        && handler.apply(type, index, recordBuffer)) {
+                    replayed++;
+                    recordsSinceSnapshot++;
+                }
+            }
+        }
+
+        // Drop anything after the last complete record
+        channel.truncate(validLength);
+        channel.position(validLength);
+        return replayed;
+    }
+
+    /**
+     * getSequence
+     *
+     * Get the sequence number of the last record written.
+     *
+     * @return the sequence number
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * setFsyncPolicy
+     *
+     * Set when the log is forced to disk.
+     *
+     * @param policy FSYNC_ALWAYS, FSYNC_GROUP or FSYNC_NEVER
+     */
+    void setFsyncPolicy(int policy) {
+        fsyncPolicy = policy;
+    }
+
+    /**
+     * isSnapshotDue
+     *
+     * Check if enough records were written since the last snapshot that
+     * another should be taken.
+     *
+     * @return true if a snapshot is due, else false
+     */
+    boolean isSnapshotDue() {
+        return recordsSinceSnapshot >= SNAPSHOT_INTERVAL;
+    }
+
+    /**
+     * logCirculation
+     *
+     * Write a loan, return or deleted book to the log. Loans are saved with
+     * their patron, loan time and due time, and returns with their patron.
+     *
+     * @param type      the type of the record (LOAN, RETURN or DELETE)
+     * @param bookIndex the index of the book
+     * @param patron    the patron of a loan or return
+     * @param loanTime  when a copy was loaned
+     * @param dueTime   when a loaned copy is due
+     * @return          the sequence number of the record, or 0 if the log
+     *                  is not open
+     * @throws UncheckedIOException if the log could not be written
+     */
+    synchronized long logCirculation(byte type, int bookIndex, int patron,
+            long loanTime, long dueTime) {
+        if (channel == null) {
+            return 0;
+        }
+        long startTime = System.nanoTime();
+
+        int length = type == LOAN ? 33 : type == RETURN ? 17 : 13;
+        ensureSpace(length + 4);
+        int recordStart = buffer.position();
+        buffer.putInt(length).put(type).putLong(++sequence)
+                .putInt(bookIndex);
+        if (type != DELETE) {
+            buffer.putInt(patron);
+        }
+        if (type == LOAN) {
+            buffer.putLong(loanTime).putLong(dueTime);
+        }
+        finishRecord(recordStart, startTime);
+        return sequence;
+    }
+
+    /**
+     * logAdd
+     *
+     * Write an added or replaced book to the log.
+     *
+     * @param bookIndex the index of the book
+     * @param title     the new title of the book
+     * @param author    the new author of the book
+     * @param copies    the amount of copies of the book
+     * @return          the sequence number of the record, or 0 if the log
+     *                  is not open
+     * @throws UncheckedIOException if the log could not be written
+     */
+    synchronized long logAdd(int bookIndex, String title, String author,
+            int copies) {
+        if (channel == null) {
+            return 0;
+        }
+        long startTime = System.nanoTime();
+
+        byte[] titleText = title.getBytes(StandardCharsets.UTF_8);
+        byte[] authorText = author.getBytes(StandardCharsets.UTF_8);
+        int length = 25 + titleText.length + authorText.length;
+
+        ensureSpace(length + 4);
+        int recordStart = buffer.position();
+        buffer.putInt(length).put(ADD).putLong(++sequence)
+                .putInt(bookIndex).putInt(copies)
+                .putInt(titleText.length).put(titleText)
+                .putInt(authorText.length).put(authorText);
+        finishRecord(recordStart, startTime);
+        return sequence;
+    }
+
+    /**
+     * ensureSpace
+     *
+     * Make sure a record and its checksum fit in the buffer. Every record
+     * is written as soon as it is finished, so the buffer is empty here.
+     *
+     * @param length the length of the record without its checksum
+     */
+    private void ensureSpace(int length) {
+        if (buffer.capacity() < length + 4) {
+            buffer = ByteBuffer.allocate(length + 4);
+        }
+    }
+
+    /**
+     * finishRecord
+     *
+     * Add a checksum to the record in the buffer and commit it. If it could
+     * not be written, whatever part of it reached the log is cut off again,
+     * so later records still follow a complete one, and the error is thrown
+     * so the operation is not applied.
+     *
+     * @param recordStart the position of the record in the buffer
+     * @param startTime   when the operation started being logged
+     * @throws UncheckedIOException if the log could not be written
+     */
+    private void finishRecord(int recordStart, long startTime) {
+        // Checksum covers the record after its length
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), recordStart + 4,
+                buffer.position() - recordStart - 4);
+        buffer.putInt((int) crc.getValue());
+
+        long logEnd = -1;
+        try {
+            logEnd = channel.position();
+            commit(false);
+        } catch (IOException e) {
+            buffer.clear();
+            sequence--;
+            try {
+                if (logEnd >= 0) {
+                    channel.truncate(logEnd);
+                    channel.position(logEnd);
+                }
+            } catch (IOException truncateError) {
+                e.addSuppressed(truncateError);
+            }
+            throw new UncheckedIOException("Could not write to the "
+                    + "transaction log", e);
+        }
+
+        long nanos = System.nanoTime() - startTime;
+        commitCount.increment();
+        commitNanos.add(nanos);
+        maxCommitNanos.accumulateAndGet(nanos, Math::max);
+        recordsSinceSnapshot++;
+    }
+
+    /**
+     * commit
+     *
+     * Write the buffer to the log, forcing it to disk if asked to or if
+     * every record is forced by itself. Group commits are forced later by
+     * awaitForced. Called holding the log's monitor.
+     *
+     * @param force whether to force the log to disk regardless of policy
+     * @throws IOException if the log could not be written
+     */
+    private void commit(boolean force) throws IOException {
+        if (buffer.position() > 0) {
+            CatalogFile.writeBuffer(channel, buffer);
+            writtenSequence = sequence;
+        }
+
+        if (force || fsyncPolicy == LibraryCatalog.FSYNC_ALWAYS) {
+            synchronized (forceLock) {
+                channel.force(false);
+                forcedSequence = sequence;
+            }
+        }
+    }
+
+    /**
+     * force
+     *
+     * Make sure every record written is in the log and on disk, if the log
+     * is open.
+     *
+     * @throws IOException if the log could not be written
+     */
+    synchronized void force() throws IOException {
+        if (channel != null) {
+            commit(true);
+        }
+    }
+
+    /**
+     * awaitForced
+     *
+     * Wait until a record is forced to disk, when group commits are used.
+     * Called once the operation is applied and its locks are released, so
+     * other operations can be logged while the log is forced. The first
+     * operation to wait forces every record written so far, and any that
+     * were waiting for it are then already forced, so one force is shared
+     * by all of them.
+     *
+     * @param recordSequence the sequence number of the record, or 0 if the
+     *                       operation was not logged
+     * @throws UncheckedIOException if the log could not be forced, in which
+     *                              case the operation stays applied but may
+     *                              be lost if the system fails
+     */
+    void awaitForced(long recordSequence) {
+        if (recordSequence == 0 || fsyncPolicy != LibraryCatalog.FSYNC_GROUP) {
+            return;
+        }
+        synchronized (forceLock) {
+            if (forcedSequence >= recordSequence) {
+                return;
+            }
+            long written = writtenSequence;
+            FileChannel forcedChannel = channel;
+            try {
+                if (forcedChannel == null) {
+                    throw new ClosedChannelException();
+                }
+                forcedChannel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not force the "
+                        + "transaction log", e);
+            }
+            forcedSequence = written;
+        }
+    }
+
+    /**
+     * truncate
+     *
+     * Empty the log once a snapshot holds every operation in it, opening it
+     * again if it was closed.
+     *
+     * @param logPath the path of the log file
+     * @throws IOException if the log could not be emptied
+     */
+    synchronized void truncate(Path logPath) throws IOException {
+        if (channel == null) {
+            open(logPath, sequence);
+        }
+        channel.truncate(0);
+        channel.position(0);
+        recordsSinceSnapshot = 0;
+    }
+
+    /**
+     * close
+     *
+     * Close the log file. Records are no longer written once it is closed.
+     *
+     * @throws IOException if the file could not be closed
+     */
+    synchronized void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            channel = null;
+        }
+    }
+
+    /**
+     * getCommitCount
+     *
+     * Get the amount of records committed to the log.
+     *
+     * @return the amount of records
+     */
+    long getCommitCount() {
+        return commitCount.sum();
+    }
+
+    /**
+     * getCommitNanos
+     *
+     * Get the total time spent committing records to the log.
+     *
+     * @return the time in nanoseconds
+     */
+    long getCommitNanos() {
+        return commitNanos.sum();
+    }
+
+    /**
+     * getMaxCommitNanos
+     *
+     * Get the longest time spent committing one record to the log.
+     *
+     * @return the time in nanoseconds
+     */
+    long getMaxCommitNanos() {
+        return maxCommitNanos.get();
+    }
+}
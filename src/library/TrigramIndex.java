@@ -0,0 +1,525 @@
+/*
+ * TrigramIndex.java
+ *
+ * The trigram inverted index of the titles or the authors of a
+ * LibraryCatalog's books, which narrows down the books substring and fuzzy
+ * searches check in large libraries. Slots of an open-addressing table
+ * hold a trigram of case-folded characters and the list of books
+ * containing it, stored as the differences between books in 7 bit groups.
+ *
+ * The index also orders books by the length of their folded key, so fuzzy
+ * searches of short queries only check books of a similar length. Books
+ * replaced or added after the index was built are listed apart and always
+ * checked, until so many are that the index is built again.
+ *
+ * The index is built on the first search, and must only be changed holding
+ * the catalog's search write lock. Searches read it holding the read lock.
+ */
+
+package library;
+
+import java.util.Arrays;
+
+class TrigramIndex {
+    // The index is rebuilt after this many books are replaced
+    private static final int REBUILD_THRESHOLD = 1024;
+
+    // The key the index is of (TITLE_KEY or AUTHOR_KEY)
+    private final int key;
+
+    // Slots hold a trigram and the delta-encoded list of books containing
+    // it
+    private boolean built = false;
+    private long[] keys;
+    private byte[][] postings;
+    private int[] postingLengths;
+    private int[] postingBooks;
+    private int[] postingLastBooks;
+    private int slotsUsed;
+
+    // Books replaced since the index was built are always checked
+    private int[] replacedBooks;
+    private long[] replacedBits;
+    private int replacedCount;
+
+    // Books ordered by the length of their case-folded key. Books of
+    // length n are at [lengthStarts[n], lengthStarts[n + 1]) in lengthOrder
+    private int[] lengthOrder;
+    private int[] lengthStarts;
+
+    TrigramIndex(int key) {
+        this.key = key;
+    }
+
+    /**
+     * getTrigram
+     *
+     * Get the trigram starting at a position of case-folded characters.
+     *
+     * @param chars    the case-folded characters
+     * @param position the position of the first character of the trigram
+     * @return         the trigram, never 0
+     */
+    static long getTrigram(char[] chars, int position) {
+        // The highest bit marks the trigram so it can't be an empty slot
+        return 1L << 48 | (long) chars[position] << 32
+                | (long) chars[position + 1] << 16 | chars[position + 2];
+    }
+
+    /**
+     * isBuilt
+     *
+     * Check if the index is built and up to date enough to search.
+     *
+     * @return true if the index is built, else false
+     */
+    boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * reset
+     *
+     * Drop the index so it is built again on the next search.
+     */
+    void reset() {
+        built = false;
+        keys = null;
+        postings = null;
+        postingLengths = null;
+        postingBooks = null;
+        postingLastBooks = null;
+        replacedBooks = null;
+        replacedBits = null;
+        lengthOrder = null;
+        lengthStarts = null;
+    }
+
+    /**
+     * build
+     *
+     * Build the index of the folded keys of all books.
+     *
+     * @param folded the case-folded keys of the books
+     * @param books  the amount of book slots
+     */
+    void build(FoldedKeys folded, int books) {
+        keys = new long[1024];
+        postings = new byte[1024][];
+        postingLengths = new int[1024];
+        postingBooks = new int[1024];
+        postingLastBooks = new int[1024];
+        slotsUsed = 0;
+
+        replacedBooks = new int[REBUILD_THRESHOLD];
+        replacedBits = new long[(books + 63) >>> 6];
+        replacedCount = 0;
+
+        // Books are added in order, so every posting list stays sorted
+        char[] chars = folded.getChars(key);
+        for (int book = 0; book < books; book++) {
+            int end = folded.getEnd(key, book);
+            for (int i = folded.getStart(key, book); i + 3 <= end; i++) {
+                int slot = findSlot(getTrigram(chars, i), true);
+
+                // Skip trigrams appearing more than once in the string
+                int lastBook = postingLastBooks[slot];
+                if (lastBook != book) {
+                    addPosting(slot, book - lastBook);
+                    postingLastBooks[slot] = book;
+                }
+            }
+        }
+
+        // Order books by length with a counting sort, for fuzzy searches
+        int maxLength = 0;
+        for (int book = 0; book < books; book++) {
+            maxLength = Math.max(maxLength, folded.getLength(key, book));
+        }
+        int[] starts = new int[maxLength + 2];
+        for (int book = 0; book < books; book++) {
+            starts[folded.getLength(key, book) + 1]++;
+        }
+        for (int length = 1; length < starts.length; length++) {
+            starts[length] += starts[length - 1];
+        }
+        int[] order = new int[books];
+        int[] next = Arrays.copyOf(starts, starts.length);
+        for (int book = 0; book < books; book++) {
+            order[next[folded.getLength(key, book)]++] = book;
+        }
+        lengthOrder = order;
+        lengthStarts = starts;
+
+        built = true;
+    }
+
+    /**
+     * findSlot
+     *
+     * Find the slot of a trigram.
+     *
+     * @param trigram the trigram
+     * @param add     whether to add the trigram if it is not indexed
+     * @return        the slot of the trigram, or -1 if it is not indexed
+     */
+    int findSlot(long trigram, boolean add) {
+        int mask = keys.length - 1;
+
+        int hash = (int) (trigram ^ (trigram >>> 29)) * 0x9E3779B9;
+        int i = (hash ^ (hash >>> 16)) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == trigram) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (!add) {
+            return -1;
+        }
+
+        // Grow index when more than three quarters of the slots are used
+        if ((slotsUsed + 1) * 4 > keys.length * 3) {
+            grow();
+            return findSlot(trigram, true);
+        }
+
+        keys[i] = trigram;
+        postings[i] = new byte[8];
+        postingLastBooks[i] = -1;
+        slotsUsed++;
+        return i;
+    }
+
+    /**
+     * grow
+     *
+     * Double the amount of slots in the index.
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        byte[][] oldPostings = postings;
+        int[] oldLengths = postingLengths;
+        int[] oldBooks = postingBooks;
+        int[] oldLastBooks = postingLastBooks;
+
+        int length = oldKeys.length * 2;
+        keys = new long[length];
+        postings = new byte[length][];
+        postingLengths = new int[length];
+        postingBooks = new int[length];
+        postingLastBooks = new int[length];
+        slotsUsed = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = findSlot(oldKeys[i], true);
+                postings[slot] = oldPostings[i];
+                postingLengths[slot] = oldLengths[i];
+                postingBooks[slot] = oldBooks[i];
+                postingLastBooks[slot] = oldLastBooks[i];
+            }
+        }
+    }
+
+    /**
+     * addPosting
+     *
+     * Append a book to the posting list of a trigram. Lists store the
+     * difference from the previous book in 7 bit groups, so most books only
+     * take one or two bytes.
+     *
+     * @param slot  the slot of the trigram
+     * @param delta the difference from the previous book in the list
+     */
+    private void addPosting(int slot, int delta) {
+        byte[] posting = postings[slot];
+        int length = postingLengths[slot];
+
+        // Grow posting list if it might not fit another book
+        if (length + 5 > posting.length) {
+            posting = Arrays.copyOf(posting, posting.length * 2);
+            postings[slot] = posting;
+        }
+
+        while (delta >= 0x80) {
+            posting[length++] = (byte) (delta | 0x80);
+            delta >>>= 7;
+        }
+        posting[length++] = (byte) delta;
+
+        postingLengths[slot] = length;
+        postingBooks[slot]++;
+    }
+
+    /**
+     * getPostingBooks
+     *
+     * Get the amount of books in the posting list of a trigram.
+     *
+     * @param slot the slot of the trigram
+     * @return     the amount of books
+     */
+    int getPostingBooks(int slot) {
+        return postingBooks[slot];
+    }
+
+    /**
+     * findCandidates
+     *
+     * Find the books whose folded key contains every trigram of a query, by
+     * intersecting the posting lists of the trigrams starting from the
+     * shortest. The books are stored in the candidates of the buffers.
+     *
+     * @param foldedQuery the case-folded search term/query, at least 3
+     *                    characters long
+     * @param buffers     the search buffers of the thread
+     * @return            the amount of candidate books
+     */
+    int findCandidates(char[] foldedQuery,
+            LibraryCatalog.SearchBuffers buffers) {
+        // Find the slots of the query's trigrams
+        int[] slots = new int[foldedQuery.length - 2];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = findSlot(getTrigram(foldedQuery, i), false);
+
+            // No book contains a trigram that is not indexed
+            if (slots[i] < 0) {
+                return 0;
+            }
+        }
+
+        // Start from the shortest posting list
+        int shortest = 0;
+        for (int i = 1; i < slots.length; i++) {
+            if (postingBooks[slots[i]] < postingBooks[slots[shortest]]) {
+                shortest = i;
+            }
+        }
+
+        int shortestSlot = slots[shortest];
+        if (buffers.candidates.length < postingBooks[shortestSlot]) {
+            buffers.candidates = new int[Math.max(postingBooks[shortestSlot],
+                    buffers.candidates.length * 2)];
+        }
+        int[] trigramCandidates = buffers.candidates;
+
+        // Decode the shortest posting list
+        byte[] posting = postings[shortestSlot];
+        int length = postingLengths[shortestSlot];
+        int candidates = 0;
+        int book = -1;
+        for (int position = 0; position < length; ) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = posting[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+
+            book += delta;
+            trigramCandidates[candidates++] = book;
+        }
+
+        // Keep only candidates found in every other posting list
+        for (int i = 0; i < slots.length && candidates > 0; i++) {
+            if (slots[i] != shortestSlot) {
+                candidates = intersectPosting(slots[i], trigramCandidates,
+                        candidates);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * intersectPosting
+     *
+     * Remove the candidate books that are not in the posting list of a
+     * trigram.
+     *
+     * @param slot              the slot of the trigram
+     * @param trigramCandidates the candidate books, in order of index
+     * @param candidates        the amount of candidate books
+     * @return                  the amount of candidate books left
+     */
+    private int intersectPosting(int slot, int[] trigramCandidates,
+            int candidates) {
+        byte[] posting = postings[slot];
+        int length = postingLengths[slot];
+
+        int kept = 0;
+        int candidate = 0;
+        int book = -1;
+        int position = 0;
+        while (candidate < candidates && position < length) {
+            // Decode the next book in the posting list
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = posting[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            book += delta;
+
+            // Skip candidates before the book
+            while (candidate < candidates
+                    && trigramCandidates[candidate] < book) {
+                candidate++;
+            }
+
+            if (candidate < candidates
+                    && trigramCandidates[candidate] == book) {
+                trigramCandidates[kept++] = book;
+                candidate++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * countFuzzyTrigrams
+     *
+     * Add one to the trigram count of every book in a posting list. The
+     * books are added to the candidates the first time they are counted,
+     * or skipped if they are not candidates yet and no more may be added.
+     *
+     * @param slot       the slot of the trigram
+     * @param addBooks   whether books not counted yet become candidates
+     * @param candidates the amount of candidate books
+     * @param buffers    the search buffers of the thread
+     * @return           the amount of candidate books afterwards
+     */
+    int countFuzzyTrigrams(int slot, boolean addBooks, int candidates,
+            LibraryCatalog.SearchBuffers buffers) {
+        byte[] posting = postings[slot];
+        int length = postingLengths[slot];
+
+        if (addBooks && buffers.candidates.length
+                < candidates + postingBooks[slot]) {
+            buffers.candidates = Arrays.copyOf(buffers.candidates, Math.max(
+                    candidates + postingBooks[slot],
+                    buffers.candidates.length * 2));
+        }
+        int[] trigramCandidates = buffers.candidates;
+        short[] fuzzyCounts = buffers.fuzzyCounts;
+
+        int book = -1;
+        for (int position = 0; position < length; ) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = posting[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            book += delta;
+
+            if (fuzzyCounts[book] > 0) {
+                fuzzyCounts[book]++;
+            } else if (addBooks) {
+                fuzzyCounts[book] = 1;
+                trigramCandidates[candidates++] = book;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * replaceBook
+     *
+     * Mark a book as replaced, if the index is built. Replaced books are
+     * checked on every search until the index is rebuilt, which is also how
+     * books added after the index was built are found.
+     *
+     * @param bookIndex the index of the book
+     */
+    void replaceBook(int bookIndex) {
+        if (!built) {
+            return;
+        }
+
+        if (bookIndex >>> 6 >= replacedBits.length) {
+            replacedBits = Arrays.copyOf(replacedBits, Math.max(
+                    (bookIndex >>> 6) + 1, replacedBits.length * 3 / 2));
+        }
+        if ((replacedBits[bookIndex >>> 6] & (1L << bookIndex)) != 0) {
+            return;
+        }
+
+        // Rebuild the index on the next search if too many books changed
+        if (replacedCount == REBUILD_THRESHOLD) {
+            built = false;
+            return;
+        }
+
+        replacedBits[bookIndex >>> 6] |= 1L << bookIndex;
+        replacedBooks[replacedCount++] = bookIndex;
+    }
+
+    /**
+     * isReplaced
+     *
+     * Check if a book was replaced or added since the index was built. Its
+     * entries in the posting lists may be of its old key, so it is checked
+     * apart from them.
+     *
+     * @param bookIndex the index of the book
+     * @return          true if the book was replaced, else false
+     */
+    boolean isReplaced(int bookIndex) {
+        return (replacedBits[bookIndex >>> 6] & (1L << bookIndex)) != 0;
+    }
+
+    /**
+     * getReplacedBooks
+     *
+     * Get the books replaced or added since the index was built, of which
+     * the first getReplacedCount are used.
+     *
+     * @return the books
+     */
+    int[] getReplacedBooks() {
+        return replacedBooks;
+    }
+
+    /**
+     * getReplacedCount
+     *
+     * Get the amount of books replaced or added since the index was built.
+     *
+     * @return the amount of books
+     */
+    int getReplacedCount() {
+        return replacedCount;
+    }
+
+    /**
+     * getLengthOrder
+     *
+     * Get the books ordered by the length of their case-folded key, as the
+     * index was built.
+     *
+     * @return the books
+     */
+    int[] getLengthOrder() {
+        return lengthOrder;
+    }
+
+    /**
+     * getLengthStarts
+     *
+     * Get where the books of each length start in getLengthOrder. Books of
+     * length n are at [starts[n], starts[n + 1]).
+     *
+     * @return the positions, one more than the longest key plus one
+     */
+    int[] getLengthStarts() {
+        return lengthStarts;
+    }
+}
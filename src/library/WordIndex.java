@@ -0,0 +1,243 @@
+/*
+ * WordIndex.java
+ *
+ * The word index of the titles or the authors of a LibraryCatalog's books,
+ * which boolean searches look words up in. Words are runs of letters and
+ * digits in the case-folded titles or authors. Slots of an open-addressing
+ * table hold a word number plus one, or 0 if empty. Each word is at
+ * [starts, starts + lengths) in chars and has a sorted list of the books
+ * containing it.
+ *
+ * The index is built on the first boolean search, and must only be changed
+ * holding the catalog's search write lock. Searches read it holding the
+ * read lock.
+ */
+
+package library;
+
+import java.util.Arrays;
+
+class WordIndex {
+    // The key the index is of (TITLE_KEY or AUTHOR_KEY)
+    private final int key;
+
+    private boolean built = false;
+    private int[] slots;
+    private char[] chars;
+    private int charsLength;
+    private int[] starts;
+    private int[] lengths;
+    private int[][] postings;
+    private int[] postingLengths;
+    private int count;
+
+    WordIndex(int key) {
+        this.key = key;
+    }
+
+    /**
+     * isBuilt
+     *
+     * Check if the index is built.
+     *
+     * @return true if the index is built, else false
+     */
+    boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * reset
+     *
+     * Drop the index so it is built again on the next boolean search.
+     */
+    void reset() {
+        built = false;
+        slots = null;
+        chars = null;
+        starts = null;
+        lengths = null;
+        postings = null;
+        postingLengths = null;
+        count = 0;
+        charsLength = 0;
+    }
+
+    /**
+     * build
+     *
+     * Build the index of the folded keys of all books.
+     *
+     * @param folded the case-folded keys of the books
+     * @param books  the amount of book slots
+     */
+    void build(FoldedKeys folded, int books) {
+        slots = new int[1024];
+        chars = new char[4096];
+        charsLength = 0;
+        starts = new int[512];
+        lengths = new int[512];
+        postings = new int[512][];
+        postingLengths = new int[512];
+        count = 0;
+        built = true;
+
+        // Books are added in order, so they are appended to every list
+        for (int book = 0; book < books; book++) {
+            indexBook(folded, book, true);
+        }
+    }
+
+    /**
+     * indexBook
+     *
+     * Add a book to or remove it from the lists of every word in its
+     * case-folded title or author.
+     *
+     * @param folded    the case-folded keys of the books
+     * @param bookIndex the index of the book
+     * @param add       true to add the book, false to remove it
+     */
+    void indexBook(FoldedKeys folded, int bookIndex, boolean add) {
+        char[] keyChars = folded.getChars(key);
+        int end = folded.getEnd(key, bookIndex);
+        int i = folded.getStart(key, bookIndex);
+        while (i < end) {
+            // Find the next word
+            while (i < end && !Character.isLetterOrDigit(keyChars[i])) {
+                i++;
+            }
+            int wordStart = i;
+            while (i < end && Character.isLetterOrDigit(keyChars[i])) {
+                i++;
+            }
+            if (wordStart == i) {
+                break;
+            }
+
+            int word = findWord(keyChars, wordStart, i, add);
+            if (word < 0) {
+                continue;
+            }
+
+            // Books are only listed once for each word
+            int[] posting = postings[word];
+            int length = postingLengths[word];
+            int position = Arrays.binarySearch(posting, 0, length, bookIndex);
+            if (add && position < 0) {
+                position = -position - 1;
+                if (length == posting.length) {
+                    posting = Arrays.copyOf(posting, length * 2);
+                    postings[word] = posting;
+                }
+                System.arraycopy(posting, position, posting, position + 1,
+                        length - position);
+                posting[position] = bookIndex;
+                postingLengths[word]++;
+            } else if (!add && position >= 0) {
+                System.arraycopy(posting, position + 1, posting, position,
+                        length - position - 1);
+                postingLengths[word]--;
+            }
+        }
+    }
+
+    /**
+     * findWord
+     *
+     * Find the number of a word.
+     *
+     * @param wordChars the case-folded characters holding the word
+     * @param start     the position of the first character of the word
+     * @param end       the position after the last character of the word
+     * @param add       whether to add the word if it is not indexed
+     * @return          the number of the word, or -1 if it is not indexed
+     */
+    int findWord(char[] wordChars, int start, int end, boolean add) {
+        int mask = slots.length - 1;
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = hash * 31 + wordChars[i];
+        }
+        hash *= 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0) {
+            int word = slots[slot] - 1;
+            if (Arrays.equals(chars, starts[word],
+                    starts[word] + lengths[word], wordChars, start, end)) {
+                return word;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (!add) {
+            return -1;
+        }
+
+        // Grow index when more than half of the slots are used
+        if ((count + 1) * 2 > slots.length) {
+            grow();
+            return findWord(wordChars, start, end, true);
+        }
+
+        // Store the word's characters and an empty list of books
+        int word = count++;
+        int length = end - start;
+        if (charsLength + length > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(charsLength + length,
+                    chars.length * 2));
+        }
+        System.arraycopy(wordChars, start, chars, charsLength, length);
+        starts[word] = charsLength;
+        lengths[word] = length;
+        charsLength += length;
+        postings[word] = new int[4];
+        slots[slot] = word + 1;
+        return word;
+    }
+
+    /**
+     * grow
+     *
+     * Double the amount of slots and words in the index.
+     */
+    private void grow() {
+        int[] newSlots = new int[slots.length * 2];
+        int mask = newSlots.length - 1;
+        for (int word = 0; word < count; word++) {
+            int start = starts[word];
+            int hash = 0;
+            for (int i = start; i < start + lengths[word]; i++) {
+                hash = hash * 31 + chars[i];
+            }
+            hash *= 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = word + 1;
+        }
+        slots = newSlots;
+
+        int capacity = slots.length / 2;
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        postings = Arrays.copyOf(postings, capacity);
+        postingLengths = Arrays.copyOf(postingLengths, capacity);
+    }
+
+    /**
+     * getPostings
+     *
+     * Get the books containing a word. The list is part of the index, so
+     * it must be copied before it is returned from a search.
+     *
+     * @param word the number of the word
+     * @return     the books, in order of index
+     */
+    LibraryCatalog.BookList getPostings(int word) {
+        return new LibraryCatalog.BookList(postings[word], 0,
+                postingLengths[word]);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * CatalogFileTest.java
+ *
+ * Tests of catalog files mapped into memory: the layout of the file,
+ * reading files of the first version, rejecting files that are not
+ * catalogs, loans written straight to the file, and books added after the
+ * file was saved.
+ */
+
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CatalogFileTest {
+    // Header fields of catalog files
+    private static final int MAGIC = 0x4C494243;
+    private static final int HEADER_SIZE = 32;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * readFile
+     *
+     * Read a whole catalog file.
+     *
+     * @param path the path of the file
+     * @return     the file, in little-endian byte order
+     * @throws IOException if the file could not be read
+     */
+    private static ByteBuffer readFile(Path path) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(path))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * getColumn
+     *
+     * Get the first values of a column of a catalog file.
+     *
+     * @param file     the file
+     * @param column   the number of the column
+     * @param capacity the amount of books the columns have room for
+     * @param length   the amount of values
+     * @return         the values
+     */
+    private static int[] getColumn(ByteBuffer file, int column,
+            int capacity, int length) {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = file.getInt(HEADER_SIZE + 4 * (column * capacity + i));
+        }
+        return values;
+    }
+
+    /**
+     * newMappedCatalog
+     *
+     * Make a catalog saved to a catalog file, of books titled "Title i" by
+     * "Author i".
+     *
+     * @param path  the path of the catalog file
+     * @param books the amount of books
+     * @return      the catalog, using the mapped file
+     * @throws IOException if the books could not be saved
+     */
+    private static LibraryCatalog newMappedCatalog(Path path, int books)
+            throws IOException {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.open(path);
+        catalog.startBooks(books);
+        for (int i = 0; i < books; i++) {
+            catalog.appendBook("Title " + i, "Author " + i, 2);
+        }
+        catalog.finishBooks();
+        return catalog;
+    }
+
+    @Test
+    void savedFilesHaveRoomForMoreBooks() throws IOException {
+        Path path = directory.resolve("books.catalog");
+        LibraryCatalog catalog = newMappedCatalog(path, 3);
+        catalog.replace(0, "Zeta", "Author Z", 3);
+        catalog.delete(1);
+        assertTrue(catalog.loan(2, 42));
+        catalog.close();
+
+        // Header: magic, version, sequence, books, text, records, capacity
+        ByteBuffer file = readFile(path);
+        int textLength = "ZetaTitle 2Author ZAuthor 2".length();
+        assertEquals(MAGIC, file.getInt(0));
+        assertEquals(2, file.getInt(4));
+        assertEquals(3, file.getInt(16));
+        assertEquals(textLength, file.getInt(20));
+        assertEquals(1, file.getInt(24));
+        int capacity = file.getInt(28);
+        assertEquals(16, capacity);
+
+        // Columns: text starts and lengths of titles, then of authors,
+        // copies, loans, and books sorted by title and by author, with
+        // deleted books last
+        assertArrayEquals(new int[] {0, 4, 4}, getColumn(file, 0, capacity,
+                3));
+        assertArrayEquals(new int[] {4, 0, 7}, getColumn(file, 1, capacity,
+                3));
+        assertArrayEquals(new int[] {11, 19, 19}, getColumn(file, 2,
+                capacity, 3));
+        assertArrayEquals(new int[] {8, 0, 8}, getColumn(file, 3, capacity,
+                3));
+        assertArrayEquals(new int[] {3, 0, 2, 0}, getColumn(file, 4,
+                capacity, 4));
+        assertArrayEquals(new int[] {0, -1, 1, 0}, getColumn(file, 5,
+                capacity, 4));
+        assertArrayEquals(new int[] {2, 0, 1}, getColumn(file, 6, capacity,
+                3));
+        assertArrayEquals(new int[] {2, 0, 1}, getColumn(file, 7, capacity,
+                3));
+
+        // Text, then the loan records
+        int textStart = HEADER_SIZE + 4 * 8 * capacity;
+        assertEquals("ZetaTitle 2Author ZAuthor 2", new String(file.array(),
+                textStart, textLength, StandardCharsets.UTF_8));
+        int record = textStart + textLength;
+        assertEquals(record + 24, file.capacity());
+        assertEquals(2, file.getInt(record));
+        assertEquals(42, file.getInt(record + 4));
+        assertEquals(catalog.getLoanPeriod(), file.getLong(record + 16)
+                - file.getLong(record + 8));
+    }
+
+    @Test
+    void filesOfTheFirstVersionAreRead() throws IOException {
+        // Two books with no room for more: "Beta" by "Zed", with one of its
+        // two copies on loan, and "Alpha" by "Young"
+        Path path = directory.resolve("old.catalog");
+        byte[] text = "BetaAlphaZedYoung".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer file = ByteBuffer.allocate(HEADER_SIZE + 4 * 8 * 2
+                + text.length + 24).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(MAGIC).putInt(1).putLong(0).putInt(2)
+                .putInt(text.length).putInt(1).putInt(0);
+        for (int value : new int[] {0, 4, 4, 5, 9, 12, 3, 5, 2, 1, 1, 0, 1,
+                0, 1, 0}) {
+            file.putInt(value);
+        }
+        file.put(text).putInt(0).putInt(42).putLong(1000).putLong(2000);
+        Files.write(path, file.array());
+
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.open(path);
+        assertEquals(2, catalog.getBookCount());
+        assertEquals("Beta", catalog.getBookTitle(0));
+        assertEquals("Young", catalog.getBookAuthor(1));
+        assertEquals(1, catalog.getBooksOnLoan(0));
+        assertEquals(42, catalog.getLoans(0).getPatron(0));
+        assertEquals(2000, catalog.getOverdueLoans(3000).getDueTime(0));
+        assertEquals(1, catalog.getSortedBooks(LibraryCatalog.TITLE_KEY)
+                .get(0));
+
+        // Adding a book writes the file again in the current version, with
+        // room for the book, which is saved on closing
+        int added = catalog.add("Gamma", "Xi", 1);
+        assertTrue(catalog.loan(added));
+        file = readFile(path);
+        assertEquals(2, file.getInt(4));
+        assertEquals(16, file.getInt(28));
+        catalog.close();
+
+        LibraryCatalog reopened = new LibraryCatalog();
+        reopened.open(path);
+        assertEquals("Gamma", reopened.getBookTitle(added));
+        assertEquals(1, reopened.getBooksOnLoan(added));
+        assertEquals(1, reopened.getBooksOnLoan(0));
+        assertEquals(2, reopened.getTotalOnLoan());
+    }
+
+    @Test
+    void filesThatAreNotCatalogsAreRejected() throws IOException {
+        Path path = directory.resolve("books.catalog");
+        newMappedCatalog(path, 3).close();
+        byte[] saved = Files.readAllBytes(path);
+
+        // Wrong magic, a later version, and a file cut off
+        ByteBuffer file = ByteBuffer.wrap(saved.clone())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        Files.write(path, file.putInt(0, 0x12345678).array());
+        assertRejected(path, "Not a catalog file");
+        file = ByteBuffer.wrap(saved.clone()).order(ByteOrder.LITTLE_ENDIAN);
+        Files.write(path, file.putInt(4, 3).array());
+        assertRejected(path, "Not a catalog file");
+        Files.write(path, Arrays.copyOf(saved, saved.length - 1));
+        assertRejected(path, "Catalog file is incomplete");
+        Files.write(path, Arrays.copyOf(saved, 10));
+        assertRejected(path, "Not a catalog file");
+    }
+
+    /**
+     * assertRejected
+     *
+     * Check that a catalog file can't be opened, and leaves the catalog
+     * empty.
+     *
+     * @param path    the path of the file
+     * @param message the message of the error
+     */
+    private static void assertRejected(Path path, String message) {
+        LibraryCatalog catalog = new LibraryCatalog();
+        IOException e = assertThrows(IOException.class,
+                () -> catalog.open(path));
+        assertEquals(message, e.getMessage());
+        assertEquals(0, catalog.getBookCount());
+    }
+
+    @Test
+    void loansAreWrittenToTheFileAfterBooksAreAdded() throws IOException {
+        Path path = directory.resolve("books.catalog");
+        LibraryCatalog catalog = newMappedCatalog(path, 10);
+
+        // More books than the file has room for, so it is written again
+        int added = 0;
+        for (int i = 0; i < 100; i++) {
+            added = catalog.add("Added " + i, "Author " + i, 1);
+        }
+        assertTrue(catalog.loan(3));
+        assertTrue(catalog.loan(3));
+        assertTrue(catalog.loan(50));
+        assertTrue(catalog.returnCopy(3));
+        assertEquals(109, added);
+
+        // Open the file without closing the catalog, as after a crash
+        LibraryCatalog reopened = new LibraryCatalog();
+        reopened.open(path);
+        assertEquals(1, reopened.getBooksOnLoan(3));
+        assertEquals(1, reopened.getBooksOnLoan(50));
+        assertEquals(2, reopened.getTotalOnLoan());
+        assertEquals("Title 3", reopened.getBookTitle(3));
+        assertEquals("Added 40", reopened.getBookTitle(50));
+        assertTrue(reopened.getBookSlots() >= 51);
+
+        // Closing writes every book and loan
+        catalog.close();
+        reopened = new LibraryCatalog();
+        reopened.open(path);
+        assertEquals(110, reopened.getBookCount());
+        assertEquals("Added 99", reopened.getBookTitle(added));
+        assertEquals(2, reopened.getTotalOnLoan());
+        assertTrue(reopened.loan(added));
+        assertEquals(added, reopened.search(LibraryCatalog.TITLE_KEY,
+                "Added 99", LibraryCatalog.SEARCH_EXACT).get(0));
+    }
+}
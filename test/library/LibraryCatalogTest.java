@@ -0,0 +1,263 @@
+/*
+ * LibraryCatalogTest.java
+ *
+ * Tests of the catalog: recovering from the transaction log, the hash
+ * indexes after books are deleted, reusing the slots of deleted books,
+ * search results staying the same after later changes, and the totals of
+ * loans and returns made from several threads at once.
+ */
+
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LibraryCatalogTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * newCatalog
+     *
+     * Make a catalog of books titled "Title i" by "Author i % authors".
+     *
+     * @param books   the amount of books
+     * @param authors the amount of different authors
+     * @param copies  the amount of copies of each book
+     * @return        the catalog
+     * @throws IOException if the books could not be saved
+     */
+    private static LibraryCatalog newCatalog(int books, int authors,
+            int copies) throws IOException {
+        LibraryCatalog catalog = new LibraryCatalog();
+        fillCatalog(catalog, books, authors, copies);
+        return catalog;
+    }
+
+    /**
+     * fillCatalog
+     *
+     * Set up the books of a catalog like newCatalog does.
+     *
+     * @param catalog the catalog
+     * @param books   the amount of books
+     * @param authors the amount of different authors
+     * @param copies  the amount of copies of each book
+     * @throws IOException if the books could not be saved
+     */
+    private static void fillCatalog(LibraryCatalog catalog, int books,
+            int authors, int copies) throws IOException {
+        catalog.startBooks(books);
+        for (int i = 0; i < books; i++) {
+            catalog.appendBook("Title " + i, "Author " + i % authors, copies);
+        }
+        catalog.finishBooks();
+    }
+
+    @Test
+    void recoverReplaysTheLogAfterTheSnapshot() throws IOException {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.recover(directory);
+        fillCatalog(catalog, 10, 10, 2);
+        int added = catalog.add("New title", "New author", 3);
+        catalog.replace(3, "Replaced title", "Replaced author", 1);
+        catalog.delete(5);
+        assertTrue(catalog.loan(1, 7));
+        assertTrue(catalog.loan(added));
+
+        // Recover without closing, as after a crash
+        LibraryCatalog recovered = new LibraryCatalog();
+        assertEquals(5, recovered.recover(directory));
+        assertEquals(10, recovered.getBookCount());
+        assertEquals("New title", recovered.getBookTitle(added));
+        assertEquals("Replaced author", recovered.getBookAuthor(3));
+        assertTrue(recovered.isDeleted(5));
+        assertEquals(1, recovered.getBooksOnLoan(1));
+        assertEquals(1, recovered.getBooksOnLoan(added));
+        assertEquals(2, recovered.getTotalOnLoan());
+        assertEquals(1, recovered.getLoans(1).size());
+        assertEquals(7, recovered.getLoans(1).getPatron(0));
+        recovered.close();
+    }
+
+    @Test
+    void recoverCutsOffATornRecord() throws IOException {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.recover(directory);
+        fillCatalog(catalog, 10, 10, 2);
+        assertTrue(catalog.loan(4));
+        Path logPath = directory.resolve("catalog.log");
+        long validLength = Files.size(logPath);
+
+        // A record cut off partway, then one with a damaged checksum
+        try (FileChannel log = FileChannel.open(logPath,
+                StandardOpenOption.APPEND)) {
+            log.write(ByteBuffer.allocate(10).putInt(40).flip());
+        }
+        LibraryCatalog torn = new LibraryCatalog();
+        assertEquals(1, torn.recover(directory));
+        assertEquals(validLength, Files.size(logPath));
+        assertEquals(1, torn.getBooksOnLoan(4));
+
+        try (FileChannel log = FileChannel.open(logPath,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer record = ByteBuffer.allocate(25);
+            record.putInt(13).put((byte) 1).putLong(99).putInt(4)
+                    .putInt(0xBAD).flip();
+            log.write(record);
+        }
+        LibraryCatalog damaged = new LibraryCatalog();
+        assertEquals(1, damaged.recover(directory));
+        assertEquals(validLength, Files.size(logPath));
+        assertEquals(1, damaged.getBooksOnLoan(4));
+
+        // Changes after the cut are logged after the last good record
+        assertTrue(damaged.loan(4));
+        LibraryCatalog recovered = new LibraryCatalog();
+        assertEquals(2, recovered.recover(directory));
+        assertEquals(2, recovered.getBooksOnLoan(4));
+    }
+
+    @Test
+    void exactSearchesFollowProbeChainsPastDeletedBooks() throws IOException {
+        LibraryCatalog catalog = newCatalog(300, 7, 1);
+        for (int i = 0; i < 300; i += 3) {
+            catalog.delete(i);
+        }
+
+        int[] authorBooks = new int[7];
+        for (int i = 0; i < 300; i++) {
+            LibraryCatalog.BookList found = catalog.search(
+                    LibraryCatalog.TITLE_KEY, "Title " + i,
+                    LibraryCatalog.SEARCH_EXACT);
+            if (i % 3 == 0) {
+                assertEquals(0, found.size());
+                assertFalse(catalog.searchExistingBooks("Title " + i,
+                        "Author " + i % 7));
+            } else {
+                assertEquals(1, found.size());
+                assertEquals(i, found.get(0));
+                assertTrue(catalog.searchExistingBooks("Title " + i,
+                        "Author " + i % 7));
+                authorBooks[i % 7]++;
+            }
+        }
+        for (int author = 0; author < 7; author++) {
+            assertEquals(authorBooks[author], catalog.search(
+                    LibraryCatalog.AUTHOR_KEY, "Author " + author,
+                    LibraryCatalog.SEARCH_EXACT).size());
+        }
+
+        // Deleted books can be added again and are found
+        for (int i = 0; i < 300; i += 3) {
+            catalog.add("Title " + i, "Author " + i % 7, 1);
+        }
+        for (int i = 0; i < 300; i++) {
+            assertEquals(1, catalog.search(LibraryCatalog.TITLE_KEY,
+                    "Title " + i, LibraryCatalog.SEARCH_EXACT).size());
+        }
+    }
+
+    @Test
+    void addReusesTheSlotOfADeletedBook() throws IOException {
+        LibraryCatalog catalog = newCatalog(10, 10, 1);
+        assertTrue(catalog.loan(4));
+        catalog.returnCopy(4);
+        catalog.delete(4);
+        assertTrue(catalog.isDeleted(4));
+        assertEquals(9, catalog.getBookCount());
+        assertFalse(catalog.loan(4));
+
+        assertEquals(4, catalog.add("Other title", "Other author", 2));
+        assertEquals(10, catalog.getBookSlots());
+        assertEquals(10, catalog.getBookCount());
+        assertFalse(catalog.isDeleted(4));
+        assertEquals("Other title", catalog.getBookTitle(4));
+        assertEquals(0, catalog.getBooksOnLoan(4));
+        assertEquals(0, catalog.search(LibraryCatalog.TITLE_KEY, "Title 4",
+                LibraryCatalog.SEARCH_EXACT).size());
+        assertEquals(4, catalog.search(LibraryCatalog.AUTHOR_KEY, "Other",
+                LibraryCatalog.SEARCH_CONTAINS).get(0));
+        assertTrue(catalog.loan(4));
+        assertTrue(catalog.loan(4));
+        assertFalse(catalog.loan(4));
+
+        // With no slot free, the next book goes after the last one
+        assertEquals(10, catalog.add("Last title", "Last author", 1));
+    }
+
+    @Test
+    void wordQueryResultsStayTheSameAfterChanges() throws IOException {
+        LibraryCatalog catalog = newCatalog(20, 4, 1);
+        LibraryCatalog.BookList found = catalog.search(
+                LibraryCatalog.TITLE_KEY, "title",
+                LibraryCatalog.SEARCH_WORDS);
+        assertEquals(20, found.size());
+
+        catalog.add("Another title", "Author 0", 1);
+        catalog.delete(0);
+        assertEquals(20, found.size());
+        assertEquals(0, found.get(0));
+        assertEquals(20, catalog.search(LibraryCatalog.TITLE_KEY, "title",
+                LibraryCatalog.SEARCH_WORDS).size());
+    }
+
+    @Test
+    void totalsAddUpAfterConcurrentLoansAndReturns() throws Exception {
+        int books = 64;
+        LibraryCatalog catalog = newCatalog(books, 8, 3);
+        AtomicLong loaned = new AtomicLong();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int book = (i * 31 + seed) % books;
+                    if (catalog.loan(book)) {
+                        loaned.incrementAndGet();
+                    }
+                    if (catalog.returnCopy(book)) {
+                        loaned.decrementAndGet();
+                    }
+                }
+                for (int i = 0; i < books; i++) {
+                    if (catalog.loan((i + seed) % books)) {
+                        loaned.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long onLoan = 0;
+        long loans = 0;
+        int available = 0;
+        for (int i = 0; i < books; i++) {
+            onLoan += catalog.getBooksOnLoan(i);
+            loans += catalog.getLoans(i).size();
+            if (catalog.getBooksOnLoan(i) < catalog.getBookCopies(i)) {
+                available++;
+            }
+        }
+        assertEquals(loaned.get(), catalog.getTotalOnLoan());
+        assertEquals(onLoan, catalog.getTotalOnLoan());
+        assertEquals(3L * books, onLoan);
+        assertEquals(available, catalog.getBooksAvailable());
+        assertEquals(onLoan, loans);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * LibrarySystemTest.java
+ *
+ * Tests of reading rows of catalog files, and of the requests the server
+ * answers, handled one line at a time without a socket.
+ */
+
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LibrarySystemTest {
+
+    /**
+     * setUpCatalog
+     *
+     * Give the server three books, one with two copies.
+     *
+     * @throws IOException never, as the catalog has no files
+     */
+    @BeforeEach
+    void setUpCatalog() throws IOException {
+        LibraryCatalog catalog = LibrarySystem.catalog;
+        catalog.startBooks(3);
+        catalog.appendBook("War and Peace", "Leo Tolstoy", 2);
+        catalog.appendBook("Anna Karenina", "Leo Tolstoy", 1);
+        catalog.appendBook("The Sea-Wolf", "Jack London", 1);
+        catalog.finishBooks();
+    }
+
+    /**
+     * split
+     *
+     * Split a row, expecting every field to fit.
+     *
+     * @param line      the row
+     * @param delimiter the character separating fields
+     * @return          the fields
+     */
+    private static String[] split(String line, char delimiter) {
+        String[] fields = new String[8];
+        int count = LibrarySystem.splitRow(line, delimiter, fields);
+        String[] result = new String[count];
+        System.arraycopy(fields, 0, result, 0, count);
+        return result;
+    }
+
+    @Test
+    void splitsPlainFields() {
+        assertArrayEquals(new String[] {"War and Peace", "Leo Tolstoy", "3"},
+                split("War and Peace, Leo Tolstoy ,3", ','));
+        assertArrayEquals(new String[] {"a", "b", "c"},
+                split("a\tb\tc", '\t'));
+    }
+
+    @Test
+    void keepsEmptyFields() {
+        assertArrayEquals(new String[] {"", "b", ""}, split(",b,", ','));
+        assertArrayEquals(new String[] {""}, split("", ','));
+    }
+
+    @Test
+    void unquotesFieldsWithDelimitersAndQuotes() {
+        assertArrayEquals(new String[] {"Hello, World", "Author", "1"},
+                split("\"Hello, World\",Author,1", ','));
+        assertArrayEquals(new String[] {"Say \"Hi\"", "A, B", "2"},
+                split("\"Say \"\"Hi\"\"\",\"A, B\",2", ','));
+        assertArrayEquals(new String[] {"", "x"}, split("\"\",x", ','));
+    }
+
+    @Test
+    void ignoresTextAfterAClosingQuote() {
+        assertArrayEquals(new String[] {"Title", "Author"},
+                split("\"Title\" extra,Author", ','));
+    }
+
+    @Test
+    void unclosedQuoteRunsToTheEnd() {
+        assertArrayEquals(new String[] {"Title, Author"},
+                split("\"Title, Author", ','));
+    }
+
+    @Test
+    void countsFieldsPastTheArray() {
+        String[] fields = new String[2];
+        assertEquals(4, LibrarySystem.splitRow("a,b,c,d", ',', fields));
+        assertArrayEquals(new String[] {"a", "b"}, fields);
+    }
+
+    @Test
+    void readRequestsListBooksWithTheirCopies() {
+        String war = "1\tWar and Peace\tLeo Tolstoy\t2\t0\n";
+        String anna = "2\tAnna Karenina\tLeo Tolstoy\t1\t0\n";
+        String sea = "3\tThe Sea-Wolf\tJack London\t1\t0\n";
+        assertEquals("OK 1\n" + war,
+                LibrarySystem.handleRequest("FIND\tT\tpeace"));
+        assertEquals("OK 1\n" + anna,
+                LibrarySystem.handleRequest("FIND\tT\t\"Anna Karenina\""));
+        assertEquals("OK 2\n" + war + anna,
+                LibrarySystem.handleRequest("PREFIX\tA\tLeo"));
+        assertEquals("OK 1\n" + anna,
+                LibrarySystem.handleRequest("RANGE\tT\tA\tT\t1"));
+        assertEquals("OK 1\n" + war,
+                LibrarySystem.handleRequest("FUZZY\tT\tWar and Peas\t1"));
+        assertEquals("OK 1\n" + war, LibrarySystem.handleRequest(
+                "QUERY\tauthor:tolstoy NOT anna"));
+        assertEquals("OK 1\n" + sea,
+                LibrarySystem.handleRequest("BOOK\t3"));
+        assertEquals("OK 2\n" + anna + sea,
+                LibrarySystem.handleRequest("LIST\t2\t5"));
+        assertEquals("OK 0\n", LibrarySystem.handleRequest("LIST\t9\t5"));
+        assertEquals("OK 1\n3\n", LibrarySystem.handleRequest("count"));
+        assertEquals("OK 0\n", LibrarySystem.handleRequest("ONLOAN"));
+    }
+
+    @Test
+    void writeRequestsChangeTheCatalog() {
+        assertEquals("OK 0\n", LibrarySystem.handleRequest("LOAN\t1\t7"));
+        assertEquals("OK 1\n1\tWar and Peace\tLeo Tolstoy\t2\t1\n",
+                LibrarySystem.handleRequest("ONLOAN"));
+        assertEquals("ERR No copies on loan\n",
+                LibrarySystem.handleRequest("RETURN\t1\t8"));
+        assertEquals("OK 0\n", LibrarySystem.handleRequest("RETURN\t1\t7"));
+        assertEquals("OK 0\n", LibrarySystem.handleRequest("LOAN\t3"));
+        assertEquals("ERR No copies available\n",
+                LibrarySystem.handleRequest("LOAN\t3"));
+        assertEquals("ERR Book has copies on loan\n",
+                LibrarySystem.handleRequest("DELETE\t3"));
+
+        assertEquals("OK 1\n4\tNew Title\tNew Author\t4\t0\n",
+                LibrarySystem.handleRequest(
+                "APPEND\t New Title \tNew Author\t4"));
+        assertEquals("OK 0\n", LibrarySystem.handleRequest(
+                "ADD\t4\tOther Title\tOther Author\t1"));
+        assertEquals("OK 0\n", LibrarySystem.handleRequest("DELETE\t2"));
+        assertEquals("OK 2\n3\tThe Sea-Wolf\tJack London\t1\t1\n"
+                + "4\tOther Title\tOther Author\t1\t0\n",
+                LibrarySystem.handleRequest("LIST\t2\t5"));
+        assertEquals("OK 1\n3\n", LibrarySystem.handleRequest("COUNT"));
+    }
+
+    @Test
+    void overdueRequestsListPatronsAndDueTimes() {
+        LibraryCatalog catalog = LibrarySystem.catalog;
+        long loanPeriod = catalog.getLoanPeriod();
+        try {
+            assertEquals("OK 0\n",
+                    LibrarySystem.handleRequest("LOAN\t2\t5"));
+            assertEquals("OK 0\n", LibrarySystem.handleRequest("OVERDUE"));
+
+            // Loans already due a minute ago
+            catalog.setLoanPeriod(-60000);
+            assertEquals("OK 0\n",
+                    LibrarySystem.handleRequest("LOAN\t1\t9"));
+            String response = LibrarySystem.handleRequest("OVERDUE");
+            assertTrue(response.startsWith("OK 1\n1\t9\t"), response);
+            assertEquals(catalog.getLoans(0).getDueTime(0), Long.parseLong(
+                    response.substring(9, response.length() - 1)));
+        } finally {
+            catalog.setLoanPeriod(loanPeriod);
+        }
+    }
+
+    @Test
+    void badRequestsGetErrors() {
+        String[][] requests = {
+                {"NOPE", "ERR Unknown request\n"},
+                {"BOOK", "ERR Missing fields\n"},
+                {"BOOK\tone", "ERR Invalid number\n"},
+                {"BOOK\t99", "ERR No book with ID 99\n"},
+                {"LIST\t0\t5", "ERR No book with ID 0\n"},
+                {"FIND\tX\tpeace", "ERR Search T or A\n"},
+                {"FUZZY\tT\tpeace\t0", "ERR Invalid limit\n"},
+                {"QUERY\t(war", "ERR Missing \")\"\n"},
+                {"LOAN\t1\t-3", "ERR Invalid patron\n"},
+                {"APPEND\t \tAuthor\t1", "ERR Invalid book\n"},
+                {"APPEND\tWar and Peace\tLeo Tolstoy\t1",
+                        "ERR Book already exists\n"},
+                {"ADD\t1\tTitle\tAuthor\t0", "ERR Invalid book\n"}};
+        for (String[] request : requests) {
+            assertEquals(request[1], LibrarySystem.handleRequest(request[0]),
+                    request[0]);
+        }
+        assertEquals("OK 1\n3\n", LibrarySystem.handleRequest("COUNT"));
+    }
+}
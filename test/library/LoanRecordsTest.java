@@ -0,0 +1,152 @@
+/*
+ * LoanRecordsTest.java
+ *
+ * Tests of loan records: the heap of due times staying ordered as records
+ * are added and removed, finding the records of a book and its patrons,
+ * and the overdue loans of a catalog found across every stripe of books,
+ * most overdue first.
+ */
+
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LoanRecordsTest {
+
+    /**
+     * assertHeapOrdered
+     *
+     * Check that no record in the heap of due times is due before its
+     * parent.
+     *
+     * @param records the loan records
+     */
+    private static void assertHeapOrdered(LoanRecords records) {
+        for (int position = 1; position < records.size(); position++) {
+            int parent = (position - 1) / 2;
+            assertTrue(records.getDueTime(records.getHeapRecord(parent))
+                    <= records.getDueTime(records.getHeapRecord(position)));
+        }
+    }
+
+    @Test
+    void dueHeapStaysOrderedAsRecordsChange() {
+        // Books 1, 5, 9 and so on, as in stripe 1 of 4
+        LoanRecords records = new LoanRecords(2);
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            int book = 1 + 4 * random.nextInt(50);
+            records.add(book, i, i, random.nextInt(1000));
+            assertHeapOrdered(records);
+
+            // Return a copy of a random book now and then
+            if (random.nextInt(3) == 0) {
+                int record = records.getFirst(1 + 4 * random.nextInt(50));
+                if (record >= 0) {
+                    records.remove(record);
+                    assertHeapOrdered(records);
+                }
+            }
+        }
+
+        // Every record is in the heap once
+        int counted = 0;
+        for (int book = 1; book < 200; book += 4) {
+            counted += records.count(book);
+        }
+        assertEquals(records.size(), counted);
+
+        // Records removed by book leave the rest ordered
+        for (int book = 1; book < 200; book += 8) {
+            records.removeBook(book);
+            assertEquals(-1, records.getFirst(book));
+            assertHeapOrdered(records);
+        }
+    }
+
+    @Test
+    void recordsAreFoundByBookAndPatron() {
+        LoanRecords records = new LoanRecords(2);
+        records.add(6, 10, 100, 1100);
+        records.add(6, 11, 200, 1200);
+        records.add(10, 10, 300, 1300);
+        records.add(6, 10, 400, 1400);
+
+        // Most recent loan first, to any patron or to one
+        int record = records.find(6, LibraryCatalog.UNKNOWN_PATRON);
+        assertEquals(400, records.getLoanTime(record));
+        record = records.find(6, 11);
+        assertEquals(200, records.getLoanTime(record));
+        assertEquals(1200, records.getDueTime(record));
+        assertEquals(-1, records.find(6, 12));
+        assertEquals(-1, records.find(2, LibraryCatalog.UNKNOWN_PATRON));
+        assertEquals(3, records.count(6));
+
+        // Removed records are reused
+        records.remove(records.find(6, 10));
+        assertEquals(100, records.getLoanTime(records.find(6, 10)));
+        records.add(10, 12, 500, 1500);
+        assertEquals(4, records.size());
+        assertEquals(2, records.count(10));
+        assertEquals(1100, records.getDueTime(records.getHeapRecord(0)));
+    }
+
+    @Test
+    void overdueLoansOfEveryStripeComeMostOverdueFirst()
+            throws IOException {
+        int books = 300;
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.startBooks(books);
+        for (int i = 0; i < books; i++) {
+            catalog.appendBook("Title " + i, "Author " + i, 3);
+        }
+        catalog.finishBooks();
+
+        // Loans due from an hour ago to an hour from now
+        Random random = new Random(2);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 600; i++) {
+            catalog.setLoanPeriod(random.nextInt(7200000) - 3600000);
+            catalog.loan(random.nextInt(books), i + 1);
+            if (random.nextInt(4) == 0) {
+                catalog.returnCopy(random.nextInt(books));
+            }
+        }
+
+        // Every loan due before now, checked book by book
+        List<long[]> expected = new ArrayList<>();
+        long loans = 0;
+        for (int i = 0; i < books; i++) {
+            LibraryCatalog.LoanList bookLoans = catalog.getLoans(i);
+            loans += bookLoans.size();
+            for (int j = 0; j < bookLoans.size(); j++) {
+                if (bookLoans.getDueTime(j) < now) {
+                    expected.add(new long[] {bookLoans.getDueTime(j), i,
+                            bookLoans.getPatron(j)});
+                }
+            }
+        }
+        expected.sort((a, b) -> Long.compare(a[0], b[0]));
+        assertEquals(catalog.getTotalOnLoan(), loans);
+
+        LibraryCatalog.LoanList overdue = catalog.getOverdueLoans(now);
+        assertEquals(expected.size(), overdue.size());
+        long[] dueTimes = new long[overdue.size()];
+        long[] expectedDueTimes = new long[overdue.size()];
+        for (int i = 0; i < overdue.size(); i++) {
+            dueTimes[i] = overdue.getDueTime(i);
+            expectedDueTimes[i] = expected.get(i)[0];
+            assertTrue(catalog.getLoans(overdue.getBook(i)).size() > 0);
+        }
+        assertArrayEquals(expectedDueTimes, dueTimes);
+        assertTrue(expected.size() > 100);
+    }
+}
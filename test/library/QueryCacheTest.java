@@ -0,0 +1,123 @@
+/*
+ * QueryCacheTest.java
+ *
+ * Tests of the query cache: repeated searches answered from it, results
+ * dropped once books are added, replaced or deleted, and the least
+ * recently used results evicted when it is full.
+ */
+
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+class QueryCacheTest {
+
+    /**
+     * newCatalog
+     *
+     * Make a catalog of a few books with a query cache.
+     *
+     * @return the catalog
+     * @throws IOException never, as the catalog has no files
+     */
+    private static LibraryCatalog newCatalog() throws IOException {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.setQueryCacheSize(16);
+        catalog.startBooks(4);
+        catalog.appendBook("War and Peace", "Leo Tolstoy", 1);
+        catalog.appendBook("Anna Karenina", "Leo Tolstoy", 1);
+        catalog.appendBook("Peace Like a River", "Leif Enger", 1);
+        catalog.appendBook("The Sea-Wolf", "Jack London", 1);
+        catalog.finishBooks();
+        return catalog;
+    }
+
+    /**
+     * search
+     *
+     * Search titles containing a text and copy the books found.
+     *
+     * @param catalog the catalog
+     * @param query   the text
+     * @return        the books found, in order of ID
+     */
+    private static int[] search(LibraryCatalog catalog, String query) {
+        LibraryCatalog.BookList books = catalog.search(
+                LibraryCatalog.TITLE_KEY, query,
+                LibraryCatalog.SEARCH_CONTAINS);
+        int[] array = new int[books.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = books.get(i);
+        }
+        return array;
+    }
+
+    @Test
+    void repeatedSearchesAreAnsweredFromTheCache() throws IOException {
+        LibraryCatalog catalog = newCatalog();
+        assertArrayEquals(new int[] {0, 2}, search(catalog, "peace"));
+        assertEquals(0, catalog.getQueryCacheHits());
+        assertEquals(1, catalog.getQueryCacheMisses());
+
+        // Substring searches ignore case, so they share a result
+        assertArrayEquals(new int[] {0, 2}, search(catalog, "PEACE"));
+        assertArrayEquals(new int[] {0, 2}, search(catalog, "Peace"));
+        assertEquals(2, catalog.getQueryCacheHits());
+
+        // Loans don't change what searches find
+        catalog.loan(0);
+        catalog.returnCopy(0);
+        assertArrayEquals(new int[] {0, 2}, search(catalog, "peace"));
+        assertEquals(3, catalog.getQueryCacheHits());
+        assertEquals(1, catalog.getQueryCacheMisses());
+    }
+
+    @Test
+    void changedBooksDropCachedResults() throws IOException {
+        LibraryCatalog catalog = newCatalog();
+        assertArrayEquals(new int[] {0, 2}, search(catalog, "peace"));
+        assertEquals(2, catalog.search(LibraryCatalog.AUTHOR_KEY, "Leo",
+                LibraryCatalog.SEARCH_PREFIX).size());
+
+        int added = catalog.add("Peace at Last", "Jill Murphy", 1);
+        assertArrayEquals(new int[] {0, 2, added}, search(catalog, "peace"));
+        catalog.replace(2, "A River Runs Through It", "Norman Maclean", 1);
+        assertArrayEquals(new int[] {0, added}, search(catalog, "peace"));
+        catalog.delete(0);
+        assertArrayEquals(new int[] {added}, search(catalog, "peace"));
+        assertEquals(1, catalog.search(LibraryCatalog.AUTHOR_KEY, "Leo",
+                LibraryCatalog.SEARCH_PREFIX).size());
+        assertEquals(0, catalog.getQueryCacheHits());
+
+        // The result found after the last change is cached again
+        assertArrayEquals(new int[] {added}, search(catalog, "peace"));
+        assertEquals(1, catalog.getQueryCacheHits());
+    }
+
+    @Test
+    void leastRecentlyUsedResultsAreEvicted() throws IOException {
+        LibraryCatalog catalog = newCatalog();
+        catalog.setQueryCacheSize(2);
+        search(catalog, "war");
+        search(catalog, "peace");
+        search(catalog, "war");
+        search(catalog, "sea");
+        assertEquals(1, catalog.getQueryCacheEvictions());
+
+        // "peace" was used least recently, so it was evicted
+        search(catalog, "war");
+        assertEquals(2, catalog.getQueryCacheHits());
+        search(catalog, "peace");
+        assertEquals(2, catalog.getQueryCacheHits());
+
+        // A cache of no results keeps nothing
+        catalog.setQueryCacheSize(0);
+        assertEquals(0, catalog.getQueryCacheBytes());
+        search(catalog, "war");
+        assertEquals(2, catalog.getQueryCacheHits());
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * SearchTest.java
+ *
+ * Tests of the searches that use their own indexes: substring searches
+ * through the trigram index, fuzzy searches ranked by edit distance, and
+ * boolean queries over the word indexes. Substring and fuzzy results are
+ * checked against searching every book directly, on catalogs below and
+ * above the size the trigram index is used from.
+ */
+
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class SearchTest {
+    // Words titles and authors are made of, some of them a typo apart
+    private static final String[] WORDS = {"River", "Rover", "Night",
+            "Knight", "Stone", "Store", "Light", "Sight", "Garden", "Warden",
+            "Sea", "Tea", "Glass", "Grass"};
+
+    // Amounts of books searched without and with the trigram index
+    private static final int SMALL_CATALOG = 300;
+    private static final int LARGE_CATALOG = 5000;
+
+    /**
+     * newCatalog
+     *
+     * Make a catalog of books with titles and authors of random words, so
+     * many books share parts of their text, the same for the same amount.
+     *
+     * @param books the amount of books
+     * @return      the catalog
+     * @throws Exception if the books could not be set up
+     */
+    private static LibraryCatalog newCatalog(int books) throws Exception {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.setQueryCacheSize(0);
+        catalog.startBooks(books);
+        Random random = new Random(books);
+        for (int i = 0; i < books; i++) {
+            catalog.appendBook(randomText(random, 3) + " " + i,
+                    randomText(random, 2), 1);
+        }
+        catalog.finishBooks();
+        return catalog;
+    }
+
+    /**
+     * randomText
+     *
+     * Join random words, each in upper or lower case.
+     *
+     * @param random the random numbers
+     * @param words  the amount of words
+     * @return       the words separated by spaces
+     */
+    private static String randomText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            text.append(i > 0 ? " " : "").append(random.nextBoolean()
+                    ? word : word.toLowerCase());
+        }
+        return text.toString();
+    }
+
+    /**
+     * toArray
+     *
+     * Copy the books of a list into an array.
+     *
+     * @param books the list
+     * @return      the books, in the order of the list
+     */
+    private static int[] toArray(LibraryCatalog.BookList books) {
+        int[] array = new int[books.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = books.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * getText
+     *
+     * Get the title or author of a book.
+     *
+     * @param catalog the catalog
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @param book    the index of the book
+     * @return        the title or author
+     */
+    private static String getText(LibraryCatalog catalog, int key,
+            int book) {
+        return key == LibraryCatalog.TITLE_KEY ? catalog.getBookTitle(book)
+                : catalog.getBookAuthor(book);
+    }
+
+    /**
+     * findSubstrings
+     *
+     * Find the books containing a text, ignoring case, by checking every
+     * book.
+     *
+     * @param catalog the catalog
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @param query   the text
+     * @return        the books found, in order of ID
+     */
+    private static int[] findSubstrings(LibraryCatalog catalog, int key,
+            String query) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < catalog.getBookSlots(); i++) {
+            if (!catalog.isDeleted(i) && getText(catalog, key, i)
+                    .toLowerCase().contains(query.toLowerCase())) {
+                found.add(i);
+            }
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * findClosest
+     *
+     * Find the books closest to a query, ignoring case, by checking every
+     * book: those at most 1 edit from queries up to 4 characters, 2 up to
+     * 20 and 3 from longer ones, closest first, then in order of ID.
+     *
+     * @param catalog the catalog
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @param query   the query
+     * @param limit   the most books to return
+     * @return        the closest books
+     */
+    private static int[] findClosest(LibraryCatalog catalog, int key,
+            String query, int limit) {
+        int maxDistance = query.length() <= 4 ? 1
+                : query.length() <= 20 ? 2 : 3;
+        List<int[]> found = new ArrayList<>();
+        for (int i = 0; i < catalog.getBookSlots(); i++) {
+            if (catalog.isDeleted(i)) {
+                continue;
+            }
+            int distance = getEditDistance(getText(catalog, key, i)
+                    .toLowerCase(), query.toLowerCase());
+            if (distance <= maxDistance) {
+                found.add(new int[] {distance, i});
+            }
+        }
+        found.sort(Comparator.<int[]>comparingInt(match -> match[0])
+                .thenComparingInt(match -> match[1]));
+        return found.stream().limit(limit).mapToInt(match -> match[1])
+                .toArray();
+    }
+
+    /**
+     * getEditDistance
+     *
+     * Get the amount of characters inserted, removed or changed to turn
+     * one text into another.
+     *
+     * @param a the first text
+     * @param b the second text
+     * @return  the edit distance
+     */
+    private static int getEditDistance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                row[j] = Math.min(Math.min(row[j - 1], previous[j]) + 1,
+                        previous[j - 1]
+                        + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+            }
+            int[] swap = previous;
+            previous = row;
+            row = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * checkSubstringSearches
+     *
+     * Check substring searches of both keys, of lengths from one character
+     * to whole words, against checking every book.
+     *
+     * @param catalog the catalog
+     */
+    private static void checkSubstringSearches(LibraryCatalog catalog) {
+        String[] queries = {"a", "Se", "sea", "IVER", "ver ri", "night k",
+                "tone stone", "gar", "1", "42", "4999", "light sight 7",
+                "none", "rss", ""};
+        for (int key = LibraryCatalog.TITLE_KEY;
+                key <= LibraryCatalog.AUTHOR_KEY; key++) {
+            for (String query : queries) {
+                assertArrayEquals(findSubstrings(catalog, key, query),
+                        toArray(catalog.search(key, query,
+                        LibraryCatalog.SEARCH_CONTAINS)), query);
+            }
+        }
+    }
+
+    /**
+     * checkFuzzySearches
+     *
+     * Check fuzzy searches of both keys against checking every book, for
+     * short and long queries with and without typos.
+     *
+     * @param catalog the catalog
+     */
+    private static void checkFuzzySearches(LibraryCatalog catalog) {
+        String[] queries = {"sea", "Tee", "rivr", "Rover Sea",
+                "night knight", "Stone Store", "glass grass garden 1",
+                "River Night Stone 12", "garden warden sight 4321", "xyz"};
+        for (int key = LibraryCatalog.TITLE_KEY;
+                key <= LibraryCatalog.AUTHOR_KEY; key++) {
+            for (String query : queries) {
+                for (int limit : new int[] {1, 5, 50}) {
+                    assertArrayEquals(findClosest(catalog, key, query,
+                            limit), toArray(catalog.fuzzySearch(key, query,
+                            limit)), query + " " + limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * changeBooks
+     *
+     * Delete, replace and add books, so the indexes have to follow.
+     *
+     * @param catalog the catalog
+     */
+    private static void changeBooks(LibraryCatalog catalog) {
+        int books = catalog.getBookSlots();
+        for (int i = 0; i < books; i += 7) {
+            catalog.delete(i);
+        }
+        for (int i = 3; i < books; i += 11) {
+            if (!catalog.isDeleted(i)) {
+                catalog.replace(i, "Replaced sea river " + i,
+                        "Knight Warden", 2);
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            catalog.add("Added night stone " + i, "Sea Grass", 1);
+        }
+    }
+
+    @Test
+    void substringSearchesFindWhatEveryBookContains() throws Exception {
+        for (int books : new int[] {SMALL_CATALOG, LARGE_CATALOG}) {
+            LibraryCatalog catalog = newCatalog(books);
+            checkSubstringSearches(catalog);
+            changeBooks(catalog);
+            checkSubstringSearches(catalog);
+        }
+    }
+
+    @Test
+    void fuzzySearchesRankByEditDistanceThenId() throws Exception {
+        for (int books : new int[] {SMALL_CATALOG, LARGE_CATALOG}) {
+            LibraryCatalog catalog = newCatalog(books);
+            checkFuzzySearches(catalog);
+            changeBooks(catalog);
+            checkFuzzySearches(catalog);
+        }
+    }
+
+    @Test
+    void booleanQueriesCombineWordsOfBothKeys() throws Exception {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.startBooks(6);
+        catalog.appendBook("The Old Man and the Sea", "Ernest Hemingway", 1);
+        catalog.appendBook("The Sun Also Rises", "Ernest Hemingway", 1);
+        catalog.appendBook("War and Peace", "Leo Tolstoy", 1);
+        catalog.appendBook("Anna Karenina", "Leo Tolstoy", 1);
+        catalog.appendBook("The Sea-Wolf", "Jack London", 1);
+        catalog.appendBook("Peace Like a River", "Leif Enger", 1);
+        catalog.finishBooks();
+
+        String[] queries = {"sea", "SEA hemingway", "the sea",
+                "sea AND hemingway", "sea OR peace", "NOT hemingway",
+                "NOT NOT tolstoy", "title:peace NOT author:tolstoy",
+                "author:leo", "TITLE:\"sea-wolf\"",
+                "(sea OR peace) AND NOT (tolstoy OR london)",
+                "war OR anna AND karenina", "title:ernest", "whale"};
+        int[][] expected = {{0, 4}, {0}, {0, 4}, {0}, {0, 2, 4, 5},
+                {2, 3, 4, 5}, {2, 3}, {5}, {2, 3}, {4}, {0, 5}, {2, 3}, {},
+                {}};
+        for (int i = 0; i < queries.length; i++) {
+            assertArrayEquals(expected[i], toArray(catalog.search(
+                    LibraryCatalog.TITLE_KEY, queries[i],
+                    LibraryCatalog.SEARCH_WORDS)), queries[i]);
+        }
+
+        // The index follows changes to the books
+        catalog.delete(0);
+        catalog.replace(1, "The Sea Around Us", "Rachel Carson", 1);
+        assertArrayEquals(new int[] {1, 4}, toArray(catalog.search(
+                LibraryCatalog.TITLE_KEY, "sea",
+                LibraryCatalog.SEARCH_WORDS)));
+        assertArrayEquals(new int[] {}, toArray(catalog.search(
+                LibraryCatalog.TITLE_KEY, "hemingway",
+                LibraryCatalog.SEARCH_WORDS)));
+    }
+
+    @Test
+    void booleanQueriesThatDoNotParseAreRejected() throws Exception {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.startBooks(1);
+        catalog.appendBook("War and Peace", "Leo Tolstoy", 1);
+        catalog.finishBooks();
+
+        for (String query : new String[] {"(war", "war AND", "OR war",
+                "war )", "()", "NOT"}) {
+            assertThrows(IllegalArgumentException.class, () -> catalog.search(
+                    LibraryCatalog.TITLE_KEY, query,
+                    LibraryCatalog.SEARCH_WORDS), query);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * SortedSearchTest.java
+ *
+ * Tests of the searches that read the sorted indexes: every book in sorted
+ * order, prefix searches and range searches. Results are checked against
+ * sorting every book directly, after books are deleted, replaced and added
+ * since the books were sorted, and while and after a compaction merges
+ * those changes into the sorted indexes.
+ */
+
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.Test;
+
+class SortedSearchTest {
+    // Words titles and authors are made of
+    private static final String[] WORDS = {"River", "Night", "Stone",
+            "Light", "Garden", "Sea", "Glass", "river", "sea"};
+
+    // Prefixes searched, including some no book starts with
+    private static final String[] PREFIXES = {"", "R", "River", "river N",
+            "Sea", "Sea Sea", "S", "Added", "Replaced", "Z", "a"};
+
+    // Ranges searched, from one text up to another, an empty text leaving
+    // that end open
+    private static final String[][] RANGES = {{"", ""}, {"", "L"},
+            {"N", "S"}, {"S", ""}, {"Garden", "Garden Sea"}, {"a", "s"},
+            {"Stone", "Sea"}, {"Z", ""}};
+
+    /**
+     * newCatalog
+     *
+     * Make a catalog of books with titles and authors of random words,
+     * sorted by both.
+     *
+     * @param books  the amount of books
+     * @param random the random numbers
+     * @return       the catalog
+     * @throws Exception if the books could not be set up
+     */
+    private static LibraryCatalog newCatalog(int books, Random random)
+            throws Exception {
+        LibraryCatalog catalog = new LibraryCatalog();
+        catalog.setQueryCacheSize(0);
+        catalog.startBooks(books);
+        for (int i = 0; i < books; i++) {
+            catalog.appendBook(randomText(random, 3) + " " + i,
+                    randomText(random, 2), 1);
+        }
+        catalog.finishBooks();
+        catalog.sortBooks();
+        return catalog;
+    }
+
+    /**
+     * randomText
+     *
+     * Join random words.
+     *
+     * @param random the random numbers
+     * @param words  the amount of words
+     * @return       the words separated by spaces
+     */
+    private static String randomText(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i > 0 ? " " : "")
+                    .append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * toArray
+     *
+     * Copy the books of a list into an array.
+     *
+     * @param books the list
+     * @return      the books, in the order of the list
+     */
+    private static int[] toArray(LibraryCatalog.BookList books) {
+        int[] array = new int[books.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = books.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * getText
+     *
+     * Get the title or author of a book.
+     *
+     * @param catalog the catalog
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @param book    the index of the book
+     * @return        the title or author
+     */
+    private static String getText(LibraryCatalog catalog, int key,
+            int book) {
+        return key == LibraryCatalog.TITLE_KEY ? catalog.getBookTitle(book)
+                : catalog.getBookAuthor(book);
+    }
+
+    /**
+     * findSorted
+     *
+     * Find the books whose title or author matches, by checking every book,
+     * sorted by the text, case-sensitive, then in order of ID.
+     *
+     * @param catalog the catalog
+     * @param key     the key (TITLE_KEY or AUTHOR_KEY)
+     * @param matches whether a title or author is included
+     * @param limit   the most books to return, or 0 for all of them
+     * @return        the books found, in sorted order
+     */
+    private static int[] findSorted(LibraryCatalog catalog, int key,
+            Predicate<String> matches, int limit) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < catalog.getBookSlots(); i++) {
+            if (!catalog.isDeleted(i) && matches.test(getText(catalog, key,
+                    i))) {
+                found.add(i);
+            }
+        }
+        found.sort(Comparator.<Integer, String>comparing(
+                book -> getText(catalog, key, book))
+                .thenComparing(Comparator.naturalOrder()));
+        return found.stream().limit(limit > 0 ? limit : Long.MAX_VALUE)
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * checkSortedSearches
+     *
+     * Check every book in sorted order, prefix searches and range
+     * searches of both keys, with and without a limit, against sorting
+     * every book.
+     *
+     * @param catalog the catalog
+     */
+    private static void checkSortedSearches(LibraryCatalog catalog) {
+        for (int key = LibraryCatalog.TITLE_KEY;
+                key <= LibraryCatalog.AUTHOR_KEY; key++) {
+            assertArrayEquals(findSorted(catalog, key, text -> true, 0),
+                    toArray(catalog.getSortedBooks(key)));
+            for (int limit : new int[] {0, 1, 10}) {
+                for (String prefix : PREFIXES) {
+                    assertArrayEquals(findSorted(catalog, key,
+                            text -> text.startsWith(prefix), limit),
+                            toArray(catalog.prefixSearch(key, prefix,
+                            limit)), prefix + " " + limit);
+                }
+                for (String[] range : RANGES) {
+                    assertArrayEquals(findSorted(catalog, key,
+                            text -> text.compareTo(range[0]) >= 0
+                            && (range[1].isEmpty()
+                            || text.compareTo(range[1]) < 0), limit),
+                            toArray(catalog.rangeSearch(key, range[0],
+                            range[1], limit)), range[0] + "-" + range[1]
+                            + " " + limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * changeBooks
+     *
+     * Delete, replace and add random books, so the sorted indexes get
+     * removed entries and books waiting to be merged. New titles end in a
+     * random number, so they don't repeat.
+     *
+     * @param catalog the catalog
+     * @param random  the random numbers
+     * @param changes the amount of changes
+     */
+    private static void changeBooks(LibraryCatalog catalog, Random random,
+            int changes) {
+        for (int i = 0; i < changes; i++) {
+            int book = random.nextInt(catalog.getBookSlots());
+            switch (random.nextInt(3)) {
+            case 0:
+                if (!catalog.isDeleted(book)) {
+                    catalog.delete(book);
+                }
+                break;
+            case 1:
+                if (!catalog.isDeleted(book)) {
+                    catalog.replace(book, "Replaced " + randomText(random, 2)
+                            + " " + random.nextInt(Integer.MAX_VALUE),
+                            randomText(random, 2), 1);
+                }
+                break;
+            default:
+                catalog.add("Added " + randomText(random, 2) + " "
+                        + random.nextInt(Integer.MAX_VALUE),
+                        randomText(random, 2), 1);
+                break;
+            }
+        }
+    }
+
+    @Test
+    void searchesSkipRemovedEntriesAndMergeWaitingBooks() throws Exception {
+        Random random = new Random(1);
+        LibraryCatalog catalog = newCatalog(2000, random);
+        checkSortedSearches(catalog);
+
+        // Too few changes for a compaction, so the books deleted or
+        // replaced are skipped and the books added are merged in by reads
+        changeBooks(catalog, random, 300);
+        checkSortedSearches(catalog);
+
+        // Sorting again drops the removed entries
+        catalog.sortBooks();
+        checkSortedSearches(catalog);
+    }
+
+    @Test
+    void searchesStayTheSameWhileAndAfterCompacting() throws Exception {
+        Random random = new Random(2);
+        LibraryCatalog catalog = newCatalog(3000, random);
+        CatalogMetrics metrics = catalog.getMetrics();
+
+        // Enough changes to start compactions, with books changed and
+        // searched while they run
+        for (int i = 0; i < 12; i++) {
+            changeBooks(catalog, random, 250);
+            checkSortedSearches(catalog);
+        }
+        assertTrue(metrics.getCount(CatalogMetrics.COMPACT) > 0);
+
+        // Once the last compaction is done, only the books changed since
+        // are left out or merged by reads
+        long compactions = metrics.getCount(CatalogMetrics.COMPACT);
+        changeBooks(catalog, random, 2000);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (metrics.getCount(CatalogMetrics.COMPACT) == compactions
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(metrics.getCount(CatalogMetrics.COMPACT) > compactions);
+        checkSortedSearches(catalog);
+    }
+}